@@ -0,0 +1,391 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+
+import org.opencv.android.CameraBridgeViewBase.CvCameraViewFrame;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoding stage of the camera frames: frames are converted and encoded in parallel on a pool of
+ * workers, then delivered in capture order to the {@link Callback}, one at a time.
+ * <p>
+ * Each frame is copied into one of a few preallocated inputs before leaving the camera
+ * thread (the camera reuses its own); if all of them are busy, the frame is dropped.
+ * <p>
+ * Frames can be taken from the RGBA preview (converted again to BGR for OpenCV), or straight
+ * from the NV21 camera data: JPEGs are then compressed by {@link YuvImage} with no color
+ * conversion at all, and gray images are encoded from the Y plane alone.
+ */
+public class FrameEncoder {
+
+    private final static String TAG = FrameEncoder.class.getSimpleName();
+
+    /** How long to wait for the pending frames when disposing (ms) */
+    private final static long DISPOSE_TIMEOUT = 2000;
+
+    /** Encode the RGBA preview frame */
+    public final static int SOURCE_RGBA = 0;
+    /** Encode the raw NV21 camera frame */
+    public final static int SOURCE_YUV = 1;
+    /** Encode the Y plane of the camera frame (grayscale) */
+    public final static int SOURCE_GRAY = 2;
+
+    /** Quality of the JPEGs compressed from NV21 (the same as the OpenCV default) */
+    private final static int JPEG_QUALITY = 95;
+
+    /**
+     * Receiver of the encoded frames
+     */
+    public interface Callback {
+        /**
+         * Called in capture order, from one worker at a time
+         *
+         * @param frame the encoded frame (to retain if kept after returning)
+         * @param timestamp the capture timestamp
+         */
+        void onFrameEncoded(FrameBuffer frame, long timestamp);
+    }
+
+    private final int source;
+    private final String imgFormat;
+    /** If JPEGs are compressed directly from the NV21 data */
+    private final boolean yuvJpeg;
+    private final BufferPool pool;
+    private final Callback callback;
+    private final ExecutorService workers;
+
+    /** Free copies of the input frames */
+    private final ArrayBlockingQueue<Input> inputs;
+    /** All the Mats allocated by this encoder (to release them at the end) */
+    private final List<Mat> mats;
+    /** Conversion and encoding buffers of each worker */
+    private final ThreadLocal<Mat> converted;
+    private final ThreadLocal<MatOfByte> encoded;
+    private final ThreadLocal<FrameOutputStream> output;
+    /** Length of the latest encoded frame (to estimate the next one) */
+    private volatile int lastLength;
+
+    /** Sequence number of the next submitted frame */
+    private final AtomicLong submitted;
+    private final AtomicLong dropped;
+
+    /** Guards the reordering of the encoded frames (never held while delivering them) */
+    private final Object reorder = new Object();
+    /** Sequence number of the next frame to deliver */
+    private long next;
+    /** Encoded frames waiting for their turn */
+    private final Map<Long, Encoded> ready;
+    /** If a worker is delivering frames (the others just leave theirs in {@link #ready}) */
+    private boolean delivering;
+
+    /** Latency of each stage (see {@link Metrics}) */
+    private final Histogram captureStats, queueStats, convertStats, encodeStats, reorderStats, totalStats;
+    private final AtomicLong droppedCount;
+
+    /** Copy of an input frame */
+    private static class Input {
+        final Mat mat;
+        byte[] bytes;
+        int width, height;
+        Input(Mat mat) {
+            this.mat = mat;
+        }
+    }
+
+    /** Stream writing into a frame buffer */
+    private static class FrameOutputStream extends OutputStream {
+        FrameBuffer frame;
+        @Override
+        public void write(int b) {
+            frame.append(new byte[] {(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) {
+            frame.append(b, off, len);
+        }
+    }
+
+    /** An encoded frame (or a failed one, with a null frame) */
+    private static class Encoded {
+        final FrameBuffer frame;
+        final long timestamp, submitted, encoded;
+        Encoded(FrameBuffer frame, long timestamp, long submitted, long encoded) {
+            this.frame = frame;
+            this.timestamp = timestamp;
+            this.submitted = submitted;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * Create a new encoder
+     *
+     * @param nWorkers number of encoding threads (0=one less than the available cores)
+     * @param source one of {@link #SOURCE_RGBA}, {@link #SOURCE_YUV}, {@link #SOURCE_GRAY}
+     * @param imgFormat the image format (extension, as in {@link Imgcodecs#imencode})
+     * @param pool the pool of the encoded frames
+     * @param callback the receiver of the encoded frames
+     */
+    public FrameEncoder(int nWorkers, int source, String imgFormat, BufferPool pool, Callback callback) {
+        if (nWorkers <= 0)
+            nWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.source = source;
+        this.imgFormat = imgFormat;
+        String format = imgFormat.toLowerCase(Locale.US);
+        yuvJpeg = source == SOURCE_YUV && (format.equals(".jpg") || format.equals(".jpeg"));
+        this.pool = pool;
+        this.callback = callback;
+        mats = new ArrayList<>();
+        inputs = new ArrayBlockingQueue<>(nWorkers * 2);
+        for (int i = 0; i < nWorkers * 2; i++)
+            inputs.add(new Input(newMat(new Mat())));
+        converted = new ThreadLocal<Mat>() {
+            @Override
+            protected Mat initialValue() {
+                return newMat(new Mat());
+            }
+        };
+        encoded = new ThreadLocal<MatOfByte>() {
+            @Override
+            protected MatOfByte initialValue() {
+                return newMat(new MatOfByte());
+            }
+        };
+        output = new ThreadLocal<FrameOutputStream>() {
+            @Override
+            protected FrameOutputStream initialValue() {
+                return new FrameOutputStream();
+            }
+        };
+        ready = new HashMap<>();
+        submitted = new AtomicLong();
+        dropped = new AtomicLong();
+        Metrics metrics = Metrics.get();
+        captureStats = metrics.histogram("capture_seconds", "Copy of a camera frame, on the camera thread");
+        queueStats = metrics.histogram("encode_queue_seconds", "Wait of a frame for an encoding worker");
+        convertStats = metrics.histogram("convert_seconds", "Colour conversion of a frame");
+        encodeStats = metrics.histogram("encode_seconds", "Encoding of a frame");
+        reorderStats = metrics.histogram("reorder_seconds", "Wait of an encoded frame for the previous ones");
+        totalStats = metrics.histogram("frame_seconds", "From the copy of a frame to the end of its recording");
+        droppedCount = metrics.counter("dropped_total", "Frames dropped", "target", "encoder");
+        final AtomicInteger count = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(nWorkers, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG + " " + count.incrementAndGet());
+            }
+        });
+        Util.Log.i(TAG, "Encoding with " + nWorkers + " workers from "
+                + (source == SOURCE_GRAY ? "gray" : source == SOURCE_YUV ? "yuv" : "rgba"));
+    }
+
+    private <M extends Mat> M newMat(M mat) {
+        synchronized (mats) {
+            mats.add(mat);
+        }
+        return mat;
+    }
+
+    /**
+     * Submit a frame for encoding (from the camera thread)
+     *
+     * @param frame the camera frame, copied before returning
+     * @param timestamp the capture timestamp
+     * @return false if the frame has been dropped because all the workers are busy
+     */
+    public boolean submit(CvCameraViewFrame frame, final long timestamp) {
+        long capture = System.nanoTime(), trace = Tracer.get().begin();
+        final Input input = inputs.poll();
+        if (input == null) {
+            dropped.incrementAndGet();
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        switch (source) {
+            case SOURCE_YUV:
+                Mat yuv = frame.yuv();
+                input.width = yuv.cols();
+                input.height = yuv.rows() * 2 / 3;
+                if (yuvJpeg) {
+                    int size = (int) yuv.total();
+                    if (input.bytes == null || input.bytes.length != size)
+                        input.bytes = new byte[size];
+                    yuv.get(0, 0, input.bytes);
+                } else
+                    yuv.copyTo(input.mat);
+                break;
+            case SOURCE_GRAY:
+                frame.gray().copyTo(input.mat);
+                break;
+            default:
+                frame.rgba().copyTo(input.mat);
+        }
+        final long seq = submitted.getAndIncrement(), start = System.nanoTime();
+        captureStats.record(start - capture);
+        Tracer.get().end("capture", trace, seq);
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                long begin = System.nanoTime(), trace = Tracer.get().begin();
+                FrameBuffer frame = null;
+                try {
+                    frame = encode(input);
+                } catch (Exception e) {
+                    Util.Log.e(TAG, "Cannot encode frame " + seq, e);
+                } finally {
+                    inputs.add(input);
+                }
+                long end = System.nanoTime();
+                queueStats.record(begin - start);
+                Tracer.get().end("encode", trace, seq);
+                deliver(seq, new Encoded(frame, timestamp, start, end));
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Encode a frame (on a worker thread)
+     *
+     * @param input the copy of the frame
+     * @return the encoded frame
+     */
+    private FrameBuffer encode(Input input) {
+        if (yuvJpeg) {
+            long start = System.nanoTime();
+            FrameOutputStream out = output.get();
+            out.frame = pool.acquire(lastLength > 0 ? lastLength + lastLength / 4 : input.bytes.length / 4);
+            try {
+                new YuvImage(input.bytes, ImageFormat.NV21, input.width, input.height, null)
+                        .compressToJpeg(new Rect(0, 0, input.width, input.height), JPEG_QUALITY, out);
+            } catch (RuntimeException e) {
+                out.frame.release();
+                throw e;
+            } finally {
+                lastLength = out.frame.length();
+            }
+            encodeStats.recordSince(start);
+            FrameBuffer ret = out.frame;
+            out.frame = null;
+            return ret;
+        }
+
+        long start = System.nanoTime(), trace = Tracer.get().begin();
+        Mat mat = input.mat;
+        if (source == SOURCE_RGBA) {
+            mat = converted.get();
+            Imgproc.cvtColor(input.mat, mat, Imgproc.COLOR_RGB2BGRA);//convert colors
+        } else if (source == SOURCE_YUV) {
+            mat = converted.get();
+            Imgproc.cvtColor(input.mat, mat, Imgproc.COLOR_YUV2BGR_NV21);//the only conversion
+        }//gray: the Y plane is encoded as it is
+        if (mat != input.mat) {
+            long now = System.nanoTime();
+            convertStats.record(now - start);
+            Tracer.get().end("convert", trace);
+            start = now;
+        }
+        MatOfByte enc = encoded.get();
+        Imgcodecs.imencode(imgFormat, mat, enc);//encode the frame in the format specified by imgFormat
+        int length = (int) enc.total();
+        FrameBuffer ret = pool.acquire(length);
+        enc.get(0, 0, ret.data());
+        encodeStats.recordSince(start);
+        return ret.setLength(length);
+    }
+
+    /**
+     * Deliver the frames that are ready, in order. The callback may block (e.g. on a full
+     * queue), so it is invoked with no lock held: the camera thread can keep submitting, and
+     * the other workers leave their frames to the one already delivering.
+     */
+    private void deliver(long seq, Encoded e) {
+        synchronized (reorder) {
+            ready.put(seq, e);
+            if (delivering)
+                return;
+            delivering = true;
+        }
+        while (true) {
+            synchronized (reorder) {
+                e = ready.remove(next);
+                if (e == null) {
+                    delivering = false;
+                    return;
+                }
+                seq = next++;
+            }
+            if (e.frame == null)
+                continue;
+            long now = System.nanoTime();
+            reorderStats.record(now - e.encoded);
+            long trace = Tracer.get().begin();
+            try {
+                callback.onFrameEncoded(e.frame, e.timestamp);
+            } catch (Exception ex) {
+                Util.Log.e(TAG, "Error delivering frame", ex);
+            } finally {
+                e.frame.release();
+            }
+            Tracer.get().end("deliver", trace, seq);
+            totalStats.recordSince(e.submitted);
+        }
+    }
+
+    /**
+     * Stop the workers (after the pending frames) and release the buffers
+     */
+    public void dispose() {
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(DISPOSE_TIMEOUT, TimeUnit.MILLISECONDS))
+                Util.Log.w(TAG, "Encoding workers still busy");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Util.Log.i(TAG, toString());
+        if (workers.isTerminated())
+            synchronized (mats) {
+                for (Mat m : mats)
+                    m.release();
+                mats.clear();
+            }
+    }
+
+    /** @return the number of frames dropped because all the workers were busy */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return the latency of the encoding of the frames (as in {@link Metrics}) */
+    public Histogram getEncodeStats() {
+        return encodeStats;
+    }
+
+    @Override
+    public String toString() {
+        return "Frames: " + submitted + " encoded, " + dropped + " dropped\n"
+                + captureStats + "\n" + queueStats + "\n" + convertStats + "\n" + encodeStats + "\n"
+                + reorderStats + "\n" + totalStats;
+    }
+
+}
@@ -0,0 +1,269 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * A logged-in FTP session, that reconnects transparently when the connection drops, and keeps
+ * its own transfer statistics
+ */
+public class FtpSession {
+
+    private final static String TAG = FtpSession.class.getSimpleName();
+
+    /** Control connection keep alive (s) */
+    private final static int KEEP_ALIVE = 30;
+
+    private final String name, address, user, password;
+    private final int port;
+    private final FTPClient client;
+    /** Working directory after the login, where the recording folders are created */
+    private String root;
+    /** Current working directory (null=not changed yet) */
+    private String folder;
+
+    private long files, bytes, nanos, failures, reconnects;
+    private boolean connected;
+
+    /**
+     * Create a new session (not connected yet)
+     *
+     * @param name the name of the session (for the statistics)
+     * @param address the server address
+     * @param user the username
+     * @param password the password
+     */
+    public FtpSession(String name, String address, String user, String password) {
+        this(name, address, FTP.DEFAULT_PORT, user, password);
+    }
+
+    FtpSession(String name, String address, int port, String user, String password) {
+        this.name = name;
+        this.address = address;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        client = new FTPClient();
+    }
+
+    /**
+     * Connect and login, if not connected already
+     *
+     * @throws IOException if the server cannot be reached or refuses the login
+     */
+    public synchronized void connect() throws IOException {
+        if (client.isConnected())
+            return;
+        Util.Log.d(TAG, name + ": connecting to " + address);
+        client.connect(address, port);
+        if (!FTPReply.isPositiveCompletion(client.getReplyCode()) || !client.login(user, password)) {
+            String reply = client.getReplyString();
+            client.disconnect();
+            throw new IOException("Login refused by " + address + ": " + reply);
+        }
+        client.enterLocalPassiveMode();
+        client.setControlKeepAliveTimeout(KEEP_ALIVE);
+        client.setFileType(FTP.BINARY_FILE_TYPE);
+        root = client.printWorkingDirectory();
+        if (root == null)
+            root = "/";
+        folder = null;
+        if (connected)
+            reconnects++;
+        connected = true;
+    }
+
+    /**
+     * Drop the current connection (if any) and connect again
+     */
+    public synchronized void reconnect() throws IOException {
+        Util.Log.w(TAG, name + ": reconnecting to " + address);
+        abort();
+        connect();
+    }
+
+    /**
+     * Change the working directory to a recording folder (in the login directory), creating it if
+     * needed
+     *
+     * @param folder the recording folder
+     */
+    private void changeFolder(String folder) throws IOException {
+        if (folder.equals(this.folder))
+            return;
+        if (this.folder != null && !client.changeWorkingDirectory(root))
+            throw new IOException("Cannot access folder " + root + ": " + client.getReplyString());
+        this.folder = null;
+        client.makeDirectory(folder);
+        if (!client.changeWorkingDirectory(folder))
+            throw new IOException("Cannot access folder " + folder + ": " + client.getReplyString());
+        this.folder = folder;
+    }
+
+    /**
+     * Open a stream to upload a file (in the order of the calls)
+     *
+     * @param folder the recording folder
+     * @param filename the filename
+     * @return the stream, to be closed and then completed by {@link #complete()}
+     * @throws IOException if the transfer cannot be started
+     */
+    public synchronized OutputStream open(String folder, String filename) throws IOException {
+        return open(folder, filename, 0);
+    }
+
+    /**
+     * Open a stream to upload a file, resuming a partial upload (REST) at the given offset
+     *
+     * @param folder the recording folder
+     * @param filename the filename
+     * @param offset where to resume the upload (0=from the beginning)
+     * @return the stream, to be closed and then completed by {@link #complete()}
+     * @throws IOException if the transfer cannot be started
+     */
+    public synchronized OutputStream open(String folder, String filename, long offset) throws IOException {
+        connect();
+        changeFolder(folder);
+        client.setRestartOffset(offset);
+        long trace = Tracer.get().begin();
+        OutputStream out = client.storeFileStream(filename);
+        Tracer.get().end("storeFileStream", trace);
+        if (out == null)
+            throw new IOException("Cannot store " + filename + ": " + client.getReplyString());
+        return out;
+    }
+
+    /**
+     * Get the size of a file on the server (SIZE command)
+     *
+     * @param folder the recording folder
+     * @param filename the filename
+     * @return the size in bytes, or -1 if the file does not exist or the server cannot tell
+     * @throws IOException if the server cannot be reached
+     */
+    public synchronized long size(String folder, String filename) throws IOException {
+        connect();
+        changeFolder(folder);
+        if (client.sendCommand("SIZE", filename) != 213)
+            return -1;
+        try {
+            return Long.parseLong(client.getReplyString().substring(4).trim());
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Add bytes uploaded out of {@link #store(String, String, FrameBuffer)} to the statistics
+     *
+     * @param files the number of files completed
+     * @param bytes the bytes
+     * @param nanos the time spent uploading them
+     */
+    public synchronized void count(int files, long bytes, long nanos) {
+        this.files += files;
+        this.bytes += bytes;
+        this.nanos += nanos;
+    }
+
+    /**
+     * Complete the transfer of a stream returned by {@link #open(String, String)} (after closing it)
+     *
+     * @return true if the server confirmed the transfer
+     */
+    public synchronized boolean complete() throws IOException {
+        return client.completePendingCommand();
+    }
+
+    /**
+     * Upload a whole file, reconnecting and retrying once if the connection has been lost
+     *
+     * @param folder the recording folder
+     * @param filename the filename
+     * @param data the content
+     * @throws IOException if the upload fails again after reconnecting
+     */
+    public synchronized void store(String folder, String filename, FrameBuffer data) throws IOException {
+        long start = System.nanoTime();
+        try {
+            upload(folder, filename, data);
+        } catch (IOException e) {
+            Util.Log.w(TAG, name + ": upload of " + filename + " failed (" + e.getMessage() + ")");
+            try {
+                reconnect();
+                upload(folder, filename, data);
+            } catch (IOException again) {
+                failures++;
+                abort();
+                throw again;
+            }
+        }
+        files++;
+        bytes += data.length();
+        nanos += System.nanoTime() - start;
+    }
+
+    private void upload(String folder, String filename, FrameBuffer data) throws IOException {
+        long trace = Tracer.get().begin();
+        OutputStream out = open(folder, filename);
+        try {
+            out.write(data.data(), 0, data.length());
+        } finally {
+            out.close();
+        }
+        if (!complete())
+            throw new IOException("Transfer of " + filename + " not completed: " + client.getReplyString());
+        Tracer.get().end("upload", trace, data.length());
+    }
+
+    /**
+     * Drop the connection without logging out (i.e. after an error)
+     */
+    public synchronized void abort() {
+        try {
+            if (client.isConnected())
+                client.disconnect();
+        } catch (IOException e) {
+            //disconnected anyway
+        }
+        folder = null;
+    }
+
+    /**
+     * Logout and disconnect
+     */
+    public synchronized void disconnect() {
+        if (client.isConnected())
+            try {
+                client.logout();
+            } catch (IOException e) {
+                Util.Log.w(TAG, name + ": cannot logout (" + e.getMessage() + ")");
+            }
+        abort();
+    }
+
+    public synchronized boolean isConnected() {
+        return client.isConnected();
+    }
+
+    /** @return the number of files uploaded */
+    public synchronized long getFiles() {
+        return files;
+    }
+
+    /** @return the upload throughput so far, in bytes/s */
+    public synchronized double getThroughput() {
+        return nanos > 0 ? bytes * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: %d files, %d bytes, %.1f KB/s, %d failed, %d reconnects",
+                name, files, bytes, getThroughput() / 1024, failures, reconnects);
+    }
+}
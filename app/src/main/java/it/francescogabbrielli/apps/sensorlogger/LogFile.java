@@ -2,6 +2,8 @@ package it.francescogabbrielli.apps.sensorlogger;
 
 import android.content.SharedPreferences;
 import android.os.Environment;
+import android.system.ErrnoException;
+import android.system.Os;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -9,25 +11,74 @@ import java.io.IOException;
 import java.io.OutputStream;
 
 /**
- * Save data (images / sensor data) to local file-system, in the app folder
+ * Save data (images / sensor data) to local file-system, in the app folder. Repeated frames are
+ * hard links to the previous one
  */
 public class LogFile extends LogTarget {
 
     /** The app folder, not the recording folder */
     protected File folder;
 
-    LogFile(LoggingService service, SharedPreferences prefs) {
-        super(service, prefs);
+    /** Filename of the sensor data */
+    private String dataFilename;
+    /** Size of the memory-mapped extents of the sensor data file (0=not mapped) */
+    private int mappedExtent;
+
+    public LogFile(LoggingService service, SharedPreferences prefs) {
+        this(service, prefs, Util.PREF_FILE);
+    }
+
+    /**
+     * @param prefKey the main preference key of the target (see {@link LogTarget})
+     */
+    protected LogFile(LoggingService service, SharedPreferences prefs, String prefKey) {
+        super(service, prefs, prefKey);
         folder = new File(Environment.getExternalStorageDirectory(),
                 prefs.getString(Util.PREF_APP_FOLDER, "SensorLogger"));
-
+        dataFilename = Util.getDataFilename(prefs);
+        if (prefs.getBoolean(Util.PREF_FILE_MMAP, false))
+            mappedExtent = Math.max(1, Util.getIntPref(prefs, Util.PREF_FILE_MMAP_EXTENT)) * 1024 * 1024;
+        setArchive(prefs);
     }
 
     @Override
     protected OutputStream openOutputStream(String folder, String filename) throws IOException {
+        File file = getFile(folder, filename);
+        return mappedExtent>0 && filename.startsWith(dataFilename)
+                ? new MappedFileOutputStream(file, mappedExtent)
+                : new FileOutputStream(file);
+    }
+
+    /**
+     * Get the local file to write, creating its folder if needed
+     *
+     * @param folder the recording folder
+     * @param filename the filename
+     * @return the file
+     */
+    protected File getFile(String folder, String filename) {
         File subfolder = new File(this.folder, folder);
         subfolder.mkdir();
-        return new FileOutputStream(new File(subfolder, filename));
+        return new File(subfolder, filename);
+    }
+
+    /**
+     * Link the frame repeated (nothing if the filename is the same), or add it to the manifest if
+     * the file-system does not support hard links
+     */
+    @Override
+    public void repeat(String folder, String filename, String reference, FrameBuffer data, long timestamp)
+            throws IOException {
+        if (filename.equals(reference))
+            return;
+        File file = getFile(folder, filename);
+        try {
+            file.delete();
+            Os.link(getFile(folder, reference).getPath(), file.getPath());
+        } catch (ErrnoException e) {
+            Util.Log.w(getTag(), "Cannot link " + filename + ": " + e.getMessage());
+            super.repeat(folder, filename, reference, data, timestamp);
+        }
     }
 
     @Override
@@ -2,76 +2,185 @@ package it.francescogabbrielli.apps.sensorlogger;
 
 import android.content.SharedPreferences;
 
-import org.apache.commons.net.ftp.FTPClient;
-
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Transfer data (images / sensor readings) to an FTP server
+ * <p>
+ * The sensor data file is written in order on the main session, on the target thread, while
+ * the frames are spread across a pool of sessions uploading in parallel. When all the pool
+ * sessions are busy the target thread waits, so the target queue policy applies as before.
  */
 public class LogFtp extends LogTarget {
 
-    private FTPClient client;
-    private String address, user, password;
-    private boolean folderCreated;
+    /** How long to wait for the uploads in progress when disconnecting (ms) */
+    private final static long DISCONNECT_TIMEOUT = 5000;
+
+    private String address;
     private int skip;
     private int skipCount;
 
+    private final String user, password;
+    /** Size of the pool of sessions uploading the frames */
+    private final int poolSize;
+
+    /** Session of the sensor data file (and of the frames if there is no pool) */
+    private final FtpSession main;
+    /** Sessions uploading the frames (only if this instance logs the frames, see {@link #connect}) */
+    private FtpSession[] sessions = new FtpSession[0];
+    /** Sessions not uploading at the moment */
+    private BlockingQueue<FtpSession> idle;
+    /** One thread for each session of the pool (null=no pool) */
+    private volatile ExecutorService uploaders;
+
+    /** Stream currently open on the main session */
+    private boolean pending;
+
     /**
      * Creates a new FTP uploader, that is a wrapper around Apache Commons FTPClient
      *
      * @param prefs the application preferences
-     * @see Util#PREF_FTP_ADDRESS, Util#PREF_FTP_USER, Util#PREF_FTP_PW
+     * @see Util#PREF_FTP_ADDRESS, Util#PREF_FTP_USER, Util#PREF_FTP_PW, Util#PREF_FTP_SESSIONS
      */
     public LogFtp(LoggingService service, SharedPreferences prefs) {
-        super(service, prefs);
-        client = new FTPClient();
+        super(service, prefs, Util.PREF_FTP);
         address = prefs.getString(Util.PREF_FTP_ADDRESS, "");
         user = prefs.getString(Util.PREF_FTP_USER, "");
         password = prefs.getString(Util.PREF_FTP_PW, "");
         skip = Util.getIntPref(prefs, Util.PREF_FTP_SKIP);
         skipCount = 0;
+        setArchive(prefs);
+        main = new FtpSession(getTag() + " main", address, user, password);
+        poolSize = Math.max(0, Util.getIntPref(prefs, Util.PREF_FTP_SESSIONS));
     }
 
-     /**
-     * Connects to the FTP server
+    /**
+     * Connects to the FTP server, and creates the pool of sessions if this instance uploads the
+     * frames one by one (the pool sessions connect on their first upload)
      */
     @Override
     public void connect() throws IOException {
-        if (!client.isConnected()) {
-            Util.Log.d(getTag(), "Connecting to " + address);
-            client.connect(address);
-            client.login(user, password);
-            client.enterLocalPassiveMode();
-            client.setControlKeepAliveTimeout(30);
-            client.setFileType(org.apache.commons.net.ftp.FTP.BINARY_FILE_TYPE);
+        main.connect();
+        if (uploaders == null && poolSize > 0 && !isShared() && logsImages())
+            startPool();
+    }
+
+    private void startPool() {
+        sessions = new FtpSession[poolSize];
+        idle = new ArrayBlockingQueue<>(poolSize);
+        for (int i = 0; i < poolSize; i++) {
+            sessions[i] = new FtpSession(getTag() + " " + (i + 1), address, user, password);
+            idle.add(sessions[i]);
         }
+        uploaders = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, getTag() + " Upload " + count.incrementAndGet());
+            }
+        });
     }
 
     @Override
     protected OutputStream openOutputStream(String folder, String filename) throws IOException {
-        if (!folderCreated) {
-            client.makeDirectory(folder);
-            folderCreated = client.changeWorkingDirectory(folder);
+        OutputStream ret;
+        try {
+            ret = main.open(folder, filename);
+        } catch (IOException e) {
+            //i.e. the server closed an idle connection
+            main.reconnect();
+            ret = main.open(folder, filename);
         }
-        return client.storeFileStream(filename);
+        pending = true;
+        return ret;
     }
 
     @Override
     public void close() throws IOException {
         super.close();
-        client.completePendingCommand();
+        if (pending) {
+            pending = false;
+            main.complete();
+        }
+    }
+
+    /**
+     * Upload a frame on the first idle session of the pool, waiting for one if all are busy (a
+     * failed upload is reported as dropped)
+     */
+    @Override
+    public void send(final String folder, final String filename, final FrameBuffer data, long timestamp)
+            throws IOException {
+        ExecutorService uploaders = this.uploaders;
+        if (uploaders == null) {
+            main.store(folder, filename, data);
+            return;
+        }
+        final FtpSession session;
+        try {
+            session = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for an upload session");
+        }
+        data.retain();
+        try {
+            uploaders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        session.store(folder, filename, data);
+                    } catch (IOException e) {
+                        Util.Log.e(getTag(), "Cannot upload " + filename + " (" + session + ")", e);
+                        onFailed(data.length());
+                    } finally {
+                        data.release();
+                        idle.add(session);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            data.release();
+            idle.add(session);
+            throw e;
+        }
     }
 
     @Override
     public void disconnect() throws IOException {
-        if (client != null && client.isConnected()) {
+        //wait for the uploads in progress
+        long deadline = System.currentTimeMillis() + DISCONNECT_TIMEOUT;
+        try {
+            while (idle != null && idle.size() < sessions.length && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (FtpSession s : sessions) {
+            s.disconnect();
+            Util.Log.i(getTag(), s.toString());
+        }
+        if (main.isConnected()) {
             Util.Log.d(getTag(), "Disconnecting from "+address);
-            client.logout();
-            client.disconnect();
+            main.disconnect();
             Util.Log.i(getTag(), "Client disconnected: "+address);
         }
+        Util.Log.i(getTag(), main.toString());
+    }
+
+    @Override
+    public void dispose() {
+        ExecutorService uploaders = this.uploaders;
+        if (uploaders != null)
+            uploaders.shutdown();
+        super.dispose();
     }
 
     @Override
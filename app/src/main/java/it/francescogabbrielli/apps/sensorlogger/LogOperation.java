@@ -11,18 +11,20 @@ public class LogOperation {
 
     private int type;
     private String folder, filename;
-    private byte[] data;
+    private FrameBuffer data;
     private long timestamp;
+    /** The frame time of the frame repeated (only for {@link LogTarget#REPEAT}) */
+    private long reference;
 
     /**
      * Create a new {@link LogOperation}
      *
      * @param type one of {@link LogTarget#OPEN}, {@link LogTarget#WRITE}, {@link LogTarget#CLOSE}, {@link LogTarget#SEND}
-     * @param data the actual data to log
+     * @param data the actual data to log (shared by all the targets, retained while pending)
      * @param folder the folder
      * @param filename the filename to log to
      */
-    LogOperation(int type, byte[]data, String folder, String filename, long timestamp) {
+    LogOperation(int type, FrameBuffer data, String folder, String filename, long timestamp) {
         this.type = type;
         this.data = data;
         this.folder = folder;
@@ -30,40 +32,97 @@ public class LogOperation {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Create a new {@link LogTarget#REPEAT} operation
+     *
+     * @param data the frame repeated (logged in full only by the targets that have not logged it)
+     * @param folder the folder
+     * @param filename the filename of the repetition
+     * @param timestamp the frame time of the repetition
+     * @param reference the frame time of the frame repeated
+     */
+    LogOperation(FrameBuffer data, String folder, String filename, long timestamp, long reference) {
+        this(LogTarget.REPEAT, data, folder, filename, timestamp);
+        this.reference = reference;
+    }
+
     /**
      * Operate on a {@link LogTarget}, i.e.: post the task identified by {@code this} operation
-     * on the LogTarget own thread
+     * on the LogTarget own thread, subject to the target queue policy
      *
      * @param target the destination
+     * @return false if the operation has been dropped by the target queue
      */
-    public void on(final LogTarget target) {
+    public boolean on(final LogTarget target) {
 //        Util.Log.v(target.  getTag(), LogTarget.OP_NAMES[type] + " " + filename + "; time: " + timestamp);
-        target.post(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    switch (type) {
-                        case LogTarget.OPEN:
-                            target.open(folder, filename);
-                        case LogTarget.WRITE:
-                            target.write(data, timestamp);
-                            break;
-                        case LogTarget.CLOSE:
-                            target.close();
-                            break;
-                        case LogTarget.SEND:
-                            if (target.skip())
-                                return;
-                            target.open(folder, filename);
-                            target.write(data, timestamp);
-                            target.close();
-                    }
-                } catch(Exception e) {
-                    report(e,"Cannot %s %s (%s)",
-                            LogTarget.OP_NAMES[type], filename, target);
-                }
+        if (data!=null)
+            data.retain();
+        if (target.post(new Task(target)))
+            return true;
+        if (data!=null)
+            data.release();
+        target.onDropped();
+        return false;
+    }
+
+    /**
+     * The task executing this operation on a specific target
+     */
+    class Task implements Runnable, LogQueue.Item {
+
+        private final LogTarget target;
+        /** When the task has been queued (System.nanoTime) */
+        private final long posted;
+
+        Task(LogTarget target) {
+            this.target = target;
+            posted = System.nanoTime();
+        }
+
+        /** Repeats hold no memory of their own (the frame is held by the operation repeated) */
+        @Override
+        public int size() {
+            return data!=null && type != LogTarget.REPEAT ? data.length() : 0;
+        }
+
+        /** Only frames can be dropped: sensor data and open/close operations are always kept */
+        @Override
+        public boolean isDroppable() {
+            return type == LogTarget.SEND || type == LogTarget.REPEAT;
+        }
+
+        @Override
+        public void discard() {
+            target.onDropped();
+            release();
+        }
+
+        private void release() {
+            if (data!=null)
+                data.release();
+        }
+
+        @Override
+        public void run() {
+            if (!target.getQueue().start(this))
+                return;//dropped in the meantime
+            long trace = Tracer.get().begin(), length = data!=null ? data.length() : Tracer.NO_ARG;
+            try {
+                target.executeQueued(type, folder, filename, data, timestamp, reference, posted);
+            } catch(Exception e) {
+                report(e,"Cannot %s %s (%s)",
+                        LogTarget.OP_NAMES[type], filename, target);
+            } finally {
+                target.getQueue().done(this);
+                release();
+                Tracer.get().end(LogTarget.OP_NAMES[type], trace, length);
             }
-        });
+        }
+
+        @Override
+        public String toString() {
+            return LogTarget.OP_NAMES[type] + " " + filename;
+        }
     }
 
     /**
@@ -0,0 +1,63 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import android.content.SharedPreferences;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Store-and-forward FTP transfer: images and sensor data are written in the local {@link Spool}
+ * (as by {@link LogFile}), and uploaded in background by the {@link SpoolUploader} of the service.
+ * Files are written with the {@link Spool#PARTIAL} suffix, removed when complete.
+ */
+public class LogSpool extends LogFile {
+
+    private final SpoolUploader uploader;
+    private final Spool spool;
+    /** File currently being written */
+    private File partial;
+
+    public LogSpool(LoggingService service, SharedPreferences prefs) {
+        super(service, prefs, Util.PREF_FTP);
+        uploader = service.getSpoolUploader();
+        spool = uploader.getSpool();
+        folder = spool.getRoot();
+    }
+
+    @Override
+    protected File getFile(String folder, String filename) {
+        spool.setSession(folder);//before creating the folder, so that it is never found empty and deleted
+        return super.getFile(folder, filename);
+    }
+
+    @Override
+    protected OutputStream openOutputStream(String folder, String filename) throws IOException {
+        OutputStream out = super.openOutputStream(folder, filename + Spool.PARTIAL);
+        partial = getFile(folder, filename + Spool.PARTIAL);
+        return out;
+    }
+
+    /**
+     * The link to the frame repeated is complete as soon as it is created
+     */
+    @Override
+    public void repeat(String folder, String filename, String reference, FrameBuffer data, long timestamp)
+            throws IOException {
+        super.repeat(folder, filename, reference, data, timestamp);
+        uploader.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        if (partial != null) {
+            String name = partial.getName();
+            File file = new File(partial.getParentFile(), name.substring(0, name.length() - Spool.PARTIAL.length()));
+            if (!partial.renameTo(file))
+                throw new IOException("Cannot complete " + file);
+            partial = null;
+            uploader.wakeup();
+        }
+    }
+}
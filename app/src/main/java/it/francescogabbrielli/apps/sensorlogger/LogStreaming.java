@@ -4,6 +4,7 @@ import android.content.SharedPreferences;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -26,18 +27,37 @@ public class LogStreaming extends LogTarget {
     private StreamingServer server;
     /** If recording can be controlled remotely */
     private boolean remoteControl;
-    /** If to try to find sensors headers when opening */
+    /** If to try to find sensors headers (CSV line or binary sensor log header) when opening */
     private boolean sendHeaders;
+    /** Filename of the sensor data */
+    private String dataFilename;
+    /** Content-Type of the sensor data */
+    private String dataType;
+    /** If the current operation is on an image */
+    private boolean image;
 
     public LogStreaming(LoggingService service, SharedPreferences prefs) {
-        super(service, prefs);
+        super(service, prefs, Util.PREF_STREAMING);
         server = service.getStreamingServer();
         port = Util.getIntPref(prefs, Util.PREF_STREAMING_PORT);
         imageType = CONTENT_TYPES.get(prefs.getString(Util.PREF_CAPTURE_IMGFORMAT, ""));
         if (imageType == null)
             imageType = "image/*";
         remoteControl = prefs.getBoolean(Util.PREF_STREAMING_RECORD, false);
+        dataFilename = Util.getDataFilename(prefs);
+        dataType = dataFilename.endsWith(SensorLogHeader.EXTENSION) || dataFilename.endsWith(GorillaEncoder.EXTENSION)
+                ? "application/octet-stream" : "text/csv";
+        server.setBatching(
+                Util.getIntPref(prefs, Util.PREF_STREAMING_BATCH_BYTES),
+                Util.getLongPref(prefs, Util.PREF_STREAMING_BATCH_LATENCY),
+                Util.getIntPref(prefs, Util.PREF_STREAMING_BATCH_MAX) * 1024);
+        server.setFlushPolicy(prefs.getString(Util.PREF_STREAMING_FLUSH, ""));
+    }
 
+    /** The streaming server is one for both images and sensor data */
+    @Override
+    public boolean isShared() {
+        return true;
     }
 
     @Override
@@ -54,30 +74,52 @@ public class LogStreaming extends LogTarget {
     @Override
     public void open(String folder, String filename) throws IOException {
         //overriding default stream to manage everything in the streaming server
-        sendHeaders = true;
+        image = !dataFilename.equals(filename);
+        sendHeaders = !image;
+        if (sendHeaders)
+            server.setDataHeaders(null);//not the ones of the previous recording
     }
 
     @Override
-    public void write(byte[] data, long timestamp) throws IOException {
-        String type = imageType;
-        if (data.length<2000) {//heuristic guess: TODO pass content-type?
-            if (sendHeaders && data[0]>64) {
+    public void write(FrameBuffer data, long timestamp) throws IOException {
+        if (!image) {
+            byte[] bytes = data.data();
+            int offset = 0, length = data.length();
+            if (sendHeaders && length>0 && !"text/csv".equals(dataType)) {
+                sendHeaders = false;
+                offset = SensorLogHeader.length(bytes, 0, length);//pinned: never dropped with the blocks
+                if (offset>0)
+                    server.setDataHeaders(Arrays.copyOf(bytes, offset));
+            } else if (sendHeaders && length>0 && bytes[0]>64) {
                 sendHeaders = false;
-                String headers = new String(data);
-                int endLine = headers.indexOf('\n');
-                if (endLine>0 && endLine<data.length) {
-                    data = headers.substring(endLine + 1).getBytes();
-                    server.setTextHeaders(headers.substring(0, endLine + 1));
+                int endLine = 0;
+                while (endLine<length && bytes[endLine]!='\n')
+                    endLine++;
+                if (endLine>0 && endLine<length) {
+                    offset = endLine + 1;
+                    server.setDataHeaders(Arrays.copyOf(bytes, offset));
                 }
             }
-            server.streamData(data, timestamp);
+            server.streamData(bytes, offset, length - offset, timestamp, dataType);
         } else
-            server.streamImage(data, timestamp, type);
+            server.streamImage(data, timestamp, imageType);
+    }
+
+    /** Stream a repetition header (binary protocol), not the frame again */
+    @Override
+    public void repeat(String folder, String filename, String reference, FrameBuffer data, long timestamp) {
+        server.streamRepeat(data, timestamp, imageType);
+    }
+
+    /** The stream has no recording folder: files are not attached */
+    @Override
+    public void attach(String folder, String filename, FrameBuffer data, long timestamp) {
     }
 
     @Override
     public void close() throws IOException {
         //overriding default stream to manage everything in the streaming server
+        image = false;
     }
 
     @Override
@@ -6,6 +6,7 @@ import android.os.HandlerThread;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Generic destination where to log (transfer, save) recording data
@@ -20,9 +21,13 @@ public abstract class LogTarget {
     static final int CLOSE = 2;
     /** Send operation: OPEN, WRITE, CLOSE */
     static final int SEND = 3;
+    /** Attach operation: a whole file next to the recording (i.e. a report), never archived nor skipped */
+    static final int ATTACH = 4;
+    /** Repeat operation: a frame identical to the previous one (a duplicated fill-in), logged as a reference to it */
+    static final int REPEAT = 5;
 
     /** Operation names (for debugging) */
-    final static String[] OP_NAMES = {"write", "open", "close", "send"};
+    final static String[] OP_NAMES = {"write", "open", "close", "send", "attach", "repeat"};
 
     /** The stream to log to */
     protected OutputStream out;
@@ -31,13 +36,108 @@ public abstract class LogTarget {
     private HandlerThread thread;
     /** Own hander */
     private Handler handler;
+    /** Bounded queue of the pending operations */
+    private final LogQueue queue;
+    /** What this instance logs (bitmask of {@link Util#LOG_IMAGE} and {@link Util#LOG_DATA}) */
+    private int streams;
 
-    LogTarget(LoggingService service, SharedPreferences prefs) {
+    /** Archive segments (null=no archive, every frame in its own file) */
+    private SegmentWriter segments;
+
+    /** Compression of the sensor data (see {@link CompressedOutputStream#newCodec}) */
+    private final String compression;
+    private final int compressionLevel, compressionBlock;
+    /** The current stream, if compressed (for statistics) */
+    private CompressedOutputStream compressed;
+
+    /** Latency of the queue and of each operation type, and counters (see {@link Metrics}) */
+    private final Histogram queueStats;
+    private final Histogram[] opStats;
+    private final AtomicLong framesCount, bytesCount, droppedCount;
+    /** Frames, bytes and busy time (ns) of this session (written on the target thread, see {@link #report}) */
+    private volatile long sessionFrames, sessionBytes, sessionBusy;
+    /** Frames (and their bytes) of this session counted as logged, but then lost (see {@link #onFailed}) */
+    private final AtomicLong sessionFailed = new AtomicLong(), sessionFailedBytes = new AtomicLong();
+
+    /** The last frame logged, that can be referenced by a repeat, and the manifest of the repeats (see {@link #repeat}) */
+    private final RepeatTracker repeats = new RepeatTracker();
+
+    /**
+     * Create a new target, with its own thread and queue
+     *
+     * @param service the logging service
+     * @param prefs the preferences
+     * @param prefKey the main preference key of this target (i.e. "pref_file"), used as prefix for
+     *                the queue preferences: {@code <prefKey>_queue_ops}, {@code <prefKey>_queue_bytes} (KB),
+     *                {@code <prefKey>_queue_policy} and {@code <prefKey>_queue_every}, and for the
+     *                compression of the sensor data: {@code <prefKey>_compress}, {@code <prefKey>_compress_level}
+     *                and {@code <prefKey>_compress_block} (KB)
+     */
+    LogTarget(LoggingService service, SharedPreferences prefs, String prefKey) {
+        queue = new LogQueue(
+                LogQueue.parsePolicy(prefs.getString(prefKey + Util.PREF_QUEUE_POLICY, "")),
+                Util.getIntPref(prefs, prefKey + Util.PREF_QUEUE_OPS),
+                Util.getLongPref(prefs, prefKey + Util.PREF_QUEUE_BYTES) * 1024L,
+                Util.getIntPref(prefs, prefKey + Util.PREF_QUEUE_EVERY));
+        compression = prefs.getString(prefKey + Util.PREF_COMPRESS, CompressedOutputStream.NONE);
+        compressionLevel = Util.getIntPref(prefs, prefKey + Util.PREF_COMPRESS_LEVEL);
+        compressionBlock = Math.max(1, Util.getIntPref(prefs, prefKey + Util.PREF_COMPRESS_BLOCK)) * 1024;
+        Metrics metrics = Metrics.get();
+        String tag = getTag();
+        queueStats = metrics.histogram("target_queue_seconds", "Wait of an operation in the queue of a target",
+                "target", tag);
+        opStats = new Histogram[OP_NAMES.length];
+        for (int i = 0; i < OP_NAMES.length; i++)
+            opStats[i] = metrics.histogram("target_op_seconds",
+                    "Execution of an operation by a target (the close also flushes)", "target", tag, "op", OP_NAMES[i]);
+        framesCount = metrics.counter("frames_total", "Frames logged", "target", tag);
+        bytesCount = metrics.counter("bytes_total", "Bytes logged, before compression", "target", tag);
+        droppedCount = metrics.counter("dropped_total", "Frames dropped", "target", tag);
         thread = new HandlerThread(getTag()+" Thread");
         thread.start();
         handler = new Handler(thread.getLooper());
     }
 
+    /**
+     * Pack the frames in archive segments, with the sensor data logged in the meantime, instead of
+     * logging each frame in its own file. The archive is written sequentially and rolled over at the
+     * chunk boundary, when full, and when the recording is closed.
+     * <p>
+     * Tar segments hold {@link Util#PREF_LOGGING_CHUNK} frames each, and the sensor data. A video
+     * (if {@link Util#PREF_LOGGING_CONTAINER} is avi and the frames are JPEG) holds all the frames
+     * of the recording, up to the AVI size limit, and the sensor data is logged next to it.
+     * A session (if the container is session) holds all the frames and the sensor data of the
+     * recording, indexed, with a checkpoint every {@link Util#PREF_LOGGING_CHUNK} frames.
+     *
+     * @param prefs the preferences
+     */
+    protected void setArchive(SharedPreferences prefs) {
+        String container = prefs.getString(Util.PREF_LOGGING_CONTAINER, Util.CONTAINER_TAR);
+        LogArchive archive = null;
+        int chunk = 0;
+        if (Util.CONTAINER_AVI.equals(container)) {
+            String format = prefs.getString(Util.PREF_CAPTURE_IMGFORMAT, "");
+            if (".jpg".equalsIgnoreCase(format) || ".jpeg".equalsIgnoreCase(format)) {
+                archive = new AviArchive(Util.getLongPref(prefs, Util.PREF_LOGGING_RATE));
+            } else
+                Util.Log.w(getTag(), "Videos need JPEG frames, not " + format + ": using " + Util.CONTAINER_TAR);
+        }
+        if (Util.CONTAINER_SESSION.equals(container))
+            archive = new SessionArchive(Util.getLongPref(prefs, Util.PREF_LOGGING_RATE),
+                    Util.getIntPref(prefs, Util.PREF_LOGGING_CHUNK));
+        if (archive == null && (chunk = Util.getIntPref(prefs, Util.PREF_LOGGING_CHUNK)) > 0)
+            archive = new TarArchive();
+        if (archive != null)
+            segments = new SegmentWriter(this, archive, chunk, repeats);
+    }
+
+    /**
+     * @return if this target logs both images and sensor data (i.e. to pack them in the same archive)
+     */
+    public boolean isShared() {
+        return segments != null;
+    }
+
     public static <T extends LogTarget> T newInstance(Class<T> loggerClass,
                                                       LoggingService service,
                                                       SharedPreferences prefs) throws Exception {
@@ -55,13 +155,45 @@ public abstract class LogTarget {
             handler.post(runnable);
     }
 
+    /**
+     * Post an operation in the thread managed by this class, through the bounded queue
+     *
+     * @param task the operation
+     * @return false if the operation has been dropped
+     */
+    boolean post(LogOperation.Task task) {
+        if (handler==null || !queue.offer(task))
+            return false;
+        handler.post(task);
+        return true;
+    }
+
     /**
      * Check if this thread is running any operation/task
      *
      * @return if is running anything
      */
     public boolean isRunning() {
-        return handler!=null && handler.hasMessages(0);
+        return handler!=null && (queue.getDepth()>0 || handler.hasMessages(0));
+    }
+
+    /**
+     * @return the queue of the pending operations (for statistics)
+     */
+    public LogQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Add the statistics of this session to a report, once the queue is drained (or the drain
+     * has timed out: the operations still pending are reported too)
+     *
+     * @param report the session report
+     */
+    public void report(SessionReport report) {
+        long failed = sessionFailed.get();
+        report.addTarget(getName(), sessionFrames - failed, sessionBytes - sessionFailedBytes.get(), sessionBusy,
+                queue.getDropped() + failed, queue.getHighWaterMark(), queue.getHighWaterBytes(), queue.getDepth());
     }
 
     /**
@@ -81,6 +213,153 @@ public abstract class LogTarget {
     public abstract void connect() throws IOException;
 
 
+    /**
+     * Execute an operation taken from the queue (on the target thread), measuring it (the
+     * frames skipped are not counted)
+     *
+     * @param reference the frame time of the frame repeated (only for {@link #REPEAT})
+     * @param posted when the operation has been queued (System.nanoTime)
+     * @see #execute(int, String, String, FrameBuffer, long)
+     */
+    void executeQueued(int type, String folder, String filename, FrameBuffer data, long timestamp, long reference,
+                       long posted) throws IOException {
+        long begin = System.nanoTime();
+        queueStats.record(begin - posted);
+        boolean done;
+        try {
+            done = type == REPEAT
+                    ? executeRepeat(folder, filename, data, timestamp, reference)
+                    : execute(type, folder, filename, data, timestamp);
+        } finally {
+            long elapsed = System.nanoTime() - begin;
+            opStats[type].record(elapsed);
+            sessionBusy += elapsed;
+        }
+        if (!done)
+            return;
+        if (type == SEND || type == REPEAT) {
+            framesCount.incrementAndGet();
+            sessionFrames++;
+        }
+        if (data != null && type != REPEAT) {
+            bytesCount.addAndGet(data.length());
+            sessionBytes += data.length();
+        }
+    }
+
+    /**
+     * An operation has been dropped by the queue
+     */
+    void onDropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    /**
+     * A frame already logged has been lost (i.e. a background upload failed): it is reported as
+     * dropped. Can be called from any thread
+     *
+     * @param bytes the size of the frame
+     */
+    protected void onFailed(int bytes) {
+        droppedCount.incrementAndGet();
+        sessionFailed.incrementAndGet();
+        sessionFailedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Execute an operation (on the target thread)
+     *
+     * @param type one of {@link #OPEN}, {@link #WRITE}, {@link #CLOSE}, {@link #SEND}, {@link #ATTACH}
+     * @param folder the recording folder
+     * @param filename the filename to log to
+     * @param data the data (shared with other targets: do not modify)
+     * @param timestamp
+     * @return false if the frame has been skipped (see {@link #skip()})
+     * @throws IOException
+     */
+    boolean execute(int type, String folder, String filename, FrameBuffer data, long timestamp) throws IOException {
+        if (type == ATTACH) {
+            attach(folder, filename, data, timestamp);
+            return true;
+        }
+        if (segments != null) {
+            segments.execute(type, folder, filename, data, timestamp);
+            return true;
+        }
+        switch (type) {
+            case OPEN:
+                openData(folder, filename);
+            case WRITE:
+                write(data, timestamp);
+                break;
+            case CLOSE:
+                close();
+                writeRepeats(folder);
+                break;
+            case SEND:
+                if (skip())
+                    return false;
+                send(folder, filename, data, timestamp);
+                repeats.logged(timestamp, filename);
+        }
+        return true;
+    }
+
+    /**
+     * Execute a repetition of a frame: a reference to it if it is the last frame logged by this
+     * target (and in the current archive segment), otherwise (i.e. dropped or skipped) a whole frame
+     *
+     * @return false if the frame has been skipped (see {@link #skip()})
+     */
+    private boolean executeRepeat(String folder, String filename, FrameBuffer data, long timestamp, long reference)
+            throws IOException {
+        if (!repeats.canReference(reference)) {
+            boolean ret = execute(SEND, folder, filename, data, timestamp);
+            repeats.loggedInFull(timestamp, reference);//same frame: the next repetitions can reference this one
+            return ret;
+        }
+        if (segments != null)
+            segments.repeat(folder, filename, data, timestamp);
+        else if (skip())
+            return false;
+        else
+            repeat(folder, filename, repeats.getLast(), data, timestamp);
+        return true;
+    }
+
+    /**
+     * @return a new codec for the sensor data, or null if not compressed
+     */
+    CompressedOutputStream.Codec newCodec() {
+        return CompressedOutputStream.newCodec(compression, compressionLevel, compressionBlock);
+    }
+
+    /**
+     * @return the size of the compressed blocks of the sensor data
+     */
+    int getCompressionBlock() {
+        return compressionBlock;
+    }
+
+    /**
+     * Open the sensor data file, compressed if configured (the codec extension is added to the
+     * filename). The compression runs on this target thread, as every write.
+     *
+     * @param folder the recording folder
+     * @param filename the filename of the sensor data
+     * @throws IOException
+     */
+    private void openData(String folder, String filename) throws IOException {
+        CompressedOutputStream.Codec codec = newCodec();
+        if (codec == null) {
+            open(folder, filename);
+            return;
+        }
+        open(folder, filename + codec.getExtension());
+        if (out != null)
+            out = compressed = new CompressedOutputStream(out, codec, compressionBlock);
+    }
+
     /**
      * Log to a file
      *
@@ -99,12 +378,77 @@ public abstract class LogTarget {
     /**
      * Log data to current file
      *
-     * @param data bytes to write
+     * @param data bytes to write (shared with other targets: do not modify)
+     * @param timestamp
+     * @throws IOException
+     */
+    public void write(FrameBuffer data, long timestamp) throws IOException {
+        out.write(data.data(), 0, data.length());
+    }
+
+    /**
+     * Log a whole file at once (open, write, close). Override to transfer it in a different way
+     *
+     * @param folder the recording folder
+     * @param filename the filename to log to
+     * @param data bytes to write (shared with other targets: do not modify; retain to keep it
+     *             after returning)
      * @param timestamp
      * @throws IOException
      */
-    public void write(byte[] data, long timestamp) throws IOException {
-        out.write(data);
+    public void send(String folder, String filename, FrameBuffer data, long timestamp) throws IOException {
+        open(folder, filename);
+        write(data, timestamp);
+        close();
+    }
+
+    /**
+     * Log a frame identical to the previous one, that this target has just logged, without logging
+     * it again: by default it is added to a manifest of the repeated frames, written next to the
+     * recording when it is closed (nothing if the filename is the same). Override to reference the
+     * frame in a different way
+     *
+     * @param folder the recording folder
+     * @param filename the filename of the repetition
+     * @param reference the filename of the frame repeated
+     * @param data the frame (shared with other targets: do not modify), in case it has to be logged
+     * @param timestamp
+     * @throws IOException
+     */
+    public void repeat(String folder, String filename, String reference, FrameBuffer data, long timestamp)
+            throws IOException {
+        repeats.addToManifest(filename, reference);
+    }
+
+    /**
+     * Write the manifest of the repeated frames, if any (see {@link #repeat})
+     */
+    private void writeRepeats(String folder) throws IOException {
+        FrameBuffer manifest = repeats.takeManifest();
+        if (manifest == null)
+            return;
+        try {
+            attach(folder, RepeatManifest.FILENAME, manifest, 0);
+        } finally {
+            manifest.release();
+        }
+    }
+
+    /**
+     * Log a whole file next to the recording, outside of the archives. Override if the target has
+     * no recording folder
+     *
+     * @param folder the recording folder
+     * @param filename the filename to log to
+     * @param data bytes to write (shared with other targets: do not modify)
+     * @param timestamp
+     * @throws IOException
+     */
+    public void attach(String folder, String filename, FrameBuffer data, long timestamp) throws IOException {
+        open(folder, filename);
+        if (out != null)
+            write(data, timestamp);
+        close();
     }
 
     /**
@@ -112,9 +456,15 @@ public abstract class LogTarget {
      * @throws IOException
      */
     public void close() throws IOException {
-        if (out!=null)
-            out.close();
-        out = null;
+        try {
+            if (out!=null)
+                out.close();
+        } finally {
+            out = null;
+            if (compressed!=null)
+                Util.Log.i(getTag(), "Sensor data compressed: " + compressed);
+            compressed = null;
+        }
     }
 
     /**
@@ -127,15 +477,40 @@ public abstract class LogTarget {
      *
      */
     public void dispose() {
+        Util.Log.i(getTag(), queue.toString());
+        queue.close();
         thread.quitSafely();
         handler = null;
     }
 
+    /**
+     * @return if this instance logs the frames (it may log the sensor data too)
+     */
+    protected boolean logsImages() {
+        return (streams & Util.LOG_IMAGE) != 0;
+    }
+
     /** Get string TAG for debugging */
     protected String getTag() {
         return getClass().getSimpleName();
     }
 
+    /**
+     * @param mask what this instance logs too ({@link Util#LOG_IMAGE} and/or {@link Util#LOG_DATA})
+     */
+    void addStreams(int mask) {
+        streams |= mask;
+    }
+
+    /**
+     * @return the name of this instance in the report: the tag, followed by the stream it logs if
+     *      the images and the sensor data have their own instances (i.e. "LogFtp/images")
+     */
+    String getName() {
+        return streams == Util.LOG_IMAGE ? getTag() + "/images"
+                : streams == Util.LOG_DATA ? getTag() + "/data" : getTag();
+    }
+
     /**
      * If to skip SEND action
      *
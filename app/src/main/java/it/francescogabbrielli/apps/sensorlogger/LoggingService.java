@@ -4,6 +4,7 @@ import android.app.Service;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Environment;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
@@ -11,6 +12,7 @@ import android.preference.PreferenceManager;
 import android.support.annotation.Nullable;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -48,6 +50,28 @@ public class LoggingService extends Service {
     /** A simple streaming server */
     private StreamingServer streamingServer;
 
+    /** Folder of the FTP spool, in the app folder */
+    private final static String SPOOL_FOLDER = "spool";
+
+    /** Background uploader of the FTP spool (if spooling) */
+    private SpoolUploader spoolUploader;
+
+    /** Maximum time to wait for the targets to finish the pending operations of a session (ms) */
+    private final static long DRAIN_TIMEOUT = 60000;
+
+    /**
+     * A file written in the recording folder at the end of a session (see {@link #disconnect(String, List)})
+     */
+    interface SessionFile {
+        /** @return the filename */
+        String getName();
+        /**
+         * @param targets the targets of the session, done with the frames (for statistics)
+         * @return the content (null to skip the file), generated when the targets are done
+         */
+        byte[] getData(List<LogTarget> targets);
+    }
+
 
     public class Binder extends android.os.Binder {
         LoggingService getService() {
@@ -123,6 +147,9 @@ public class LoggingService extends Service {
         for(LogTarget t: dataLoggers)
             t.dispose();
         dataLoggers.clear();
+        if (spoolUploader!=null)
+            spoolUploader.quit();
+        spoolUploader = null;
         thread.quit();
         super.onDestroy();
     }
@@ -131,18 +158,27 @@ public class LoggingService extends Service {
         return streamingServer;
     }
 
-    private LogTarget getLogger(Class<? extends LogTarget> loggerClass) throws Exception {
+    /**
+     * @return the uploader of the FTP spool (null if not spooling)
+     */
+    public SpoolUploader getSpoolUploader() {
+        return spoolUploader;
+    }
+
+    private LogTarget getLogger(Class<? extends LogTarget> loggerClass, int mask) throws Exception {
         int found = -1;
         for (int i=0;found<0 && i<loggers.size();i++)
             if (loggers.get(i).getClass().equals(loggerClass))
                found = i;
-        if (!loggerClass.equals(LogStreaming.class) || found<0) {
-            LogTarget t = LogTarget.newInstance(loggerClass, this, prefs);
+        LogTarget t;
+        if (found<0 || !loggers.get(found).isShared()) {
+            t = LogTarget.newInstance(loggerClass, this, prefs);
             loggers.add(t);
             Util.Log.i(TAG, "New Logger: " + loggerClass.getSimpleName());
-            return t;
         } else
-            return loggers.get(found);
+            t = loggers.get(found);
+        t.addStreams(mask);
+        return t;
     }
 
     /**
@@ -158,13 +194,13 @@ public class LoggingService extends Service {
         // create targets based on preferences TODO: generalize
         List<LogTarget> ret = new LinkedList<>();
         if ((Util.getIntPref(prefs, Util.PREF_FILE) & mask)==mask)
-            try {ret.add(getLogger(LogFile.class));}
+            try {ret.add(getLogger(LogFile.class, mask));}
             catch (Exception e) {Util.Log.e(TAG, "Wrong file logger class", e);}
         if ((Util.getIntPref(prefs, Util.PREF_FTP) & mask)==mask)
-            try {ret.add(getLogger(LogFtp.class));}
+            try {ret.add(getLogger(spoolUploader!=null ? LogSpool.class : LogFtp.class, mask));}
             catch (Exception e) {Util.Log.e(TAG, "Wrong ftp logger class", e);}
         if ((Util.getIntPref(prefs, Util.PREF_STREAMING) & mask)==mask)
-            try {ret.add(getLogger(LogStreaming.class));}
+            try {ret.add(getLogger(LogStreaming.class, mask));}
             catch (Exception e) {Util.Log.e(TAG, "Wrong streamin logger class", e);}
 
         return ret;
@@ -172,6 +208,18 @@ public class LoggingService extends Service {
 
     void connect(StreamingServer server) {
         this.streamingServer = server;
+        if (spoolUploader==null && Util.getIntPref(prefs, Util.PREF_FTP)>0
+                && prefs.getBoolean(Util.PREF_FTP_SPOOL, false)) {
+            spoolUploader = new SpoolUploader(
+                    new File(new File(Environment.getExternalStorageDirectory(),
+                            prefs.getString(Util.PREF_APP_FOLDER, "SensorLogger")), SPOOL_FOLDER),
+                    new FtpSession("Spool",
+                            prefs.getString(Util.PREF_FTP_ADDRESS, ""),
+                            prefs.getString(Util.PREF_FTP_USER, ""),
+                            prefs.getString(Util.PREF_FTP_PW, "")),
+                    Util.getLongPref(prefs, Util.PREF_FTP_SPOOL_RATE) * 1024L);
+            spoolUploader.start();
+        }
         loggers.clear();
         imageLoggers.clear();
         imageLoggers.addAll(newLoggers(Util.LOG_IMAGE));
@@ -202,8 +250,43 @@ public class LoggingService extends Service {
         }
     }
 
-    void disconnect() {
-        for (final LogTarget t : loggers)
+    /**
+     * End a session on the service thread: when the targets have executed the pending operations
+     * (or after {@link #DRAIN_TIMEOUT}), attach the session files to the recording folder, then
+     * disconnect the targets
+     *
+     * @param folder the recording folder
+     * @param files the session files
+     */
+    void disconnect(final String folder, final List<SessionFile> files) {
+        final List<LogTarget> targets = new ArrayList<>(loggers), dataTargets = new ArrayList<>(dataLoggers);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                long start = Tracer.get().begin();
+                long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+                while (isRunning(targets) && System.currentTimeMillis() < deadline)
+                    try {Thread.sleep(100);}
+                    catch(InterruptedException e) {break;}
+                Tracer.get().end("drain", start);
+                for (SessionFile f : files) {
+                    byte[] data = f.getData(targets);
+                    if (data == null)
+                        continue;
+                    FrameBuffer buffer = FrameBuffer.wrap(data);
+                    LogOperation operate = new LogOperation(LogTarget.ATTACH, buffer, folder, f.getName(),
+                            System.currentTimeMillis());
+                    for (LogTarget t : getDestinations(targets, dataTargets))
+                        operate.on(t);
+                    buffer.release();
+                }
+                disconnect(targets);
+            }
+        });
+    }
+
+    private void disconnect(List<LogTarget> targets) {
+        for (final LogTarget t : targets)
             t.post(new Runnable() {
                 @Override
                 public void run() {
@@ -224,14 +307,72 @@ public class LoggingService extends Service {
      * @param data the data to send
      */
     public void log(final String folder, final String filename, final int type, final byte[] data, long timestamp) {
+        FrameBuffer buffer = FrameBuffer.wrap(data);
+        log(folder, filename, type, buffer, timestamp);
+        if (buffer!=null)
+            buffer.release();
+    }
+
+    /**
+     * Send data on available {@link LogTarget}s, sharing the same buffer among them
+     *
+     * @param folder the folder
+     * @param filename the filename to log to
+     * @param type the operation type
+     *     (one of {@link LogTarget#OPEN}, {@link LogTarget#WRITE}, {@link LogTarget#CLOSE}, {@link LogTarget#SEND})
+     * @param data the data to send (retained by each target as long as needed)
+     */
+    public void log(final String folder, final String filename, final int type, final FrameBuffer data, long timestamp) {
         LogOperation operate = new LogOperation(type, data, folder, filename, timestamp);
-        if (type==LogTarget.SEND) {
-            for (LogTarget t : imageLoggers)
-                operate.on(t);
-        } else {
-            for (LogTarget t : dataLoggers)
-                operate.on(t);
-        }
+        for (LogTarget t : getTargets(type, loggers, imageLoggers, dataLoggers))
+            operate.on(t);
+    }
+
+    /**
+     * Get one target for each destination, where to attach the session files once: the data
+     * instance, if the images and the sensor data have their own instances of the same target
+     *
+     * @param all all the targets
+     * @param data the data targets
+     * @return the targets, one for each destination
+     */
+    static <T> List<T> getDestinations(List<T> all, List<T> data) {
+        List<T> ret = new ArrayList<>();
+        for (T t : all)
+            if (!ret.contains(t))//targets are equal if they log to the same destination
+                ret.add(data.contains(t) ? data.get(data.indexOf(t)) : t);
+        return ret;
+    }
+
+    /**
+     * Get the targets of an operation: frames (and their repetitions) go to the image targets, sensor data to the data
+     * targets, and the end of the recording ({@link LogTarget#CLOSE}) to every target, once (i.e.
+     * for the image targets to write their manifest of the repeated frames)
+     *
+     * @param type the operation type
+     * @param all all the targets (the shared ones only once)
+     * @param images the image targets
+     * @param data the data targets
+     * @return the targets
+     */
+    static <T> List<T> getTargets(int type, List<T> all, List<T> images, List<T> data) {
+        return type == LogTarget.SEND || type == LogTarget.REPEAT ? images : type == LogTarget.CLOSE ? all : data;
+    }
+
+    /**
+     * Send a frame identical to the previous one (a duplicated fill-in) to the image
+     * {@link LogTarget}s, that log a reference to it (see {@link LogTarget#REPEAT})
+     *
+     * @param folder the folder
+     * @param filename the filename of the repetition
+     * @param data the frame repeated (logged in full by the targets that have not logged it)
+     * @param timestamp the frame time of the repetition
+     * @param reference the frame time of the frame repeated
+     */
+    public void repeat(String folder, String filename, FrameBuffer data, long timestamp, long reference) {
+        LogOperation operate = new LogOperation(data, folder, filename, timestamp, reference);
+        for (LogTarget t : getTargets(LogTarget.REPEAT, loggers, imageLoggers, dataLoggers))
+            operate.on(t);
     }
 
     /**
@@ -265,10 +406,11 @@ public class LoggingService extends Service {
     }
 
     private synchronized boolean isRunning() {
-        for (LogTarget t : dataLoggers)
-            if(t.isRunning())
-                return true;
-        for (LogTarget t : imageLoggers)
+        return isRunning(dataLoggers) || isRunning(imageLoggers);
+    }
+
+    private static boolean isRunning(List<LogTarget> targets) {
+        for (LogTarget t : targets)
             if(t.isRunning())
                 return true;
         return false;
@@ -37,27 +37,27 @@ import org.opencv.android.JavaCameraView;
 import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfByte;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 
 import java.io.File;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Locale;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity implements
-        CameraBridgeViewBase.CvCameraViewListener,
+        CameraBridgeViewBase.CvCameraViewListener2,
         LoaderCallbackInterface {
 
     private final static String TAG = MainActivity.class.getSimpleName();
     private final static double ONE_BILLION = 1000000000d;
+    /** Encoded frames kept for reuse */
+    private final static int FRAME_POOL_SIZE = 16;
+    /** Initial capacity of an encoded frame */
+    private final static int FRAME_INITIAL_CAPACITY = 256 * 1024;
 
     private final static int REQUEST_PERMISSIONS = 3;
 
@@ -68,6 +68,8 @@ public class MainActivity extends AppCompatActivity implements
     private Recorder recorder;
     private long timestamp, frameDuration;
     private String imgFormat;
+    /** Where the recorded frames are taken from (see {@link FrameEncoder}) */
+    private int frameSource;
 
     @Override
     public void onManagerConnected(int status) {
@@ -120,6 +122,9 @@ public class MainActivity extends AppCompatActivity implements
         camera.enableView();
         frameDuration = Util.getLongPref(prefs, Util.PREF_LOGGING_RATE);
         imgFormat = prefs.getString(Util.PREF_CAPTURE_IMGFORMAT, ".png");
+        frameSource = prefs.getBoolean(Util.PREF_CAPTURE_GRAY, false) ? FrameEncoder.SOURCE_GRAY
+                : prefs.getBoolean(Util.PREF_CAPTURE_YUV, false) ? FrameEncoder.SOURCE_YUV
+                : FrameEncoder.SOURCE_RGBA;
     }
 
     private boolean goodPause = true, goodResume = false, paused = true;
@@ -496,7 +501,16 @@ public class MainActivity extends AppCompatActivity implements
     //    @Override
     public void onCameraViewStarted(int width, int height) {
         Util.Log.d(TAG, String.format(Locale.US, "openCV camera started: %dx%d", width, height));
-        frameExec = Executors.newSingleThreadExecutor();
+        frameEncoder = new FrameEncoder(
+                Util.getIntPref(prefs, Util.PREF_CAPTURE_WORKERS), frameSource, imgFormat, framePool,
+                new FrameEncoder.Callback() {
+                    @Override
+                    public void onFrameEncoded(FrameBuffer frame, long timestamp) {
+                        if (recording)
+                            recorder.record(frame, timestamp);//record the frame
+                    }
+                });
+        recorder.setFrameEncoder(frameEncoder);
         frameDurationAvg = frameDuration;
         frameNumber = 0;
         lastTime = 0;
@@ -505,7 +519,10 @@ public class MainActivity extends AppCompatActivity implements
     double frameDurationAvg;//milliseconds
     long frameNumber, lastTime;
     int lastFps;
-    private Executor frameExec;
+    /** Parallel encoding of the recorded frames */
+    private FrameEncoder frameEncoder;
+    /** Pool of the encoded frames */
+    private final BufferPool framePool = new BufferPool(FRAME_POOL_SIZE, FRAME_INITIAL_CAPACITY);
 
     private void fps(long t) {
         if (lastTime>0) {
@@ -534,24 +551,15 @@ public class MainActivity extends AppCompatActivity implements
      * @return the (eventually modified) frame
      */
     @Override
-    public Mat onCameraFrame(final Mat inputFrame) {
+    public Mat onCameraFrame(CameraBridgeViewBase.CvCameraViewFrame inputFrame) {
         final long t = SystemClock.elapsedRealtimeNanos();
         fps(t);//compute fps and show em on screen
         if (recording && t-timestamp >= frameDuration) {// check if enough time is passed to record the next frame (during recording)
-            frameExec.execute(new Runnable() {
-                @Override
-                public void run() {
-                    MatOfByte buf = new MatOfByte();//buffer: is the way OpenCV encodes bitmaps
-                    Mat converted = new Mat(inputFrame.size(), inputFrame.type());
-                    Imgproc.cvtColor(inputFrame, converted, Imgproc.COLOR_RGB2BGRA);//convert colors
-                    Imgcodecs.imencode(imgFormat, converted, buf);//encode the frame into the buffer buf in the format specified by imgFormat
-                    if (recording)
-                        recorder.record(buf.toArray(), t);//record the frame
-                }
-            });
+            frameEncoder.submit(inputFrame, t);//encoded in parallel, recorded in order
             timestamp = t;
         }
-        return inputFrame;
+        //show what is recorded: the gray preview needs no color conversion
+        return frameSource==FrameEncoder.SOURCE_GRAY ? inputFrame.gray() : inputFrame.rgba();
     }
 
     @Override
@@ -560,6 +568,8 @@ public class MainActivity extends AppCompatActivity implements
                 ONE_BILLION/frameDurationAvg,
                 (int) (frameDurationAvg/1000000),
                 ONE_BILLION/frameDuration));
+        frameEncoder.dispose();
+        Util.Log.d(TAG, "Frame pool: " + framePool);
     }
     //
     // ----------------------------------- ---------------------- ----------------------------------
@@ -6,14 +6,21 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
 import android.os.IBinder;
 import android.preference.PreferenceManager;
 import android.util.SparseIntArray;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Locale;
 
 public class Recorder implements ServiceConnection {
@@ -22,6 +29,11 @@ public class Recorder implements ServiceConnection {
 
     private final static int MAX_RECORDING_TIME = 3600000;//1h in ms
 
+    /** Filename of the trace of the session (see {@link Tracer}) */
+    private final static String TRACE_FILENAME = "trace.json";
+    /** Filename of the performance report of the session (see {@link SessionReport}) */
+    private final static String REPORT_FILENAME = "report.json";
+
     /** Format for timestamping files */
     private final static DateFormat dateFormat = new SimpleDateFormat("yyyy_MM_dd__HH_mm_ss", Locale.US);
 
@@ -45,7 +57,7 @@ public class Recorder implements ServiceConnection {
     /** Duration of each frame */
     private long duration;
     //flags
-    private boolean flagTime, flagTimestamp, flagNetwork, flagHeaders, stopped;
+    private boolean flagTime, flagTimestamp, flagNetwork, flagHeaders, flagSkew, flagBinary, flagGorilla, flagTrace, stopped;
     //filename structure
     private String filenameData, filenameFrame, folder, ext, formatTimestamp;
     /** Internal counter */
@@ -56,6 +68,38 @@ public class Recorder implements ServiceConnection {
     /** 3d sensors axes rotation */
     private Rotation rotation;
 
+    /** Reusable encoder of the sensor data rows */
+    private final CsvEncoder encoder;
+    /** Format of the sensor data rows */
+    private final SensorRowFormatter formatter;
+    /** Reusable lengths of the current values of each sensor */
+    private int[] lengths;
+    /** Reusable snapshot of the latest values of each sensor */
+    private float[][] snapshot;
+    /** How to align sensor readings to frames */
+    private int alignMode;
+    /** Sensor readings alignment (for the current recording) */
+    private SensorAlignment alignment;
+    /** Encoder of the binary sensor data blocks (for the current recording) */
+    private SensorLogWriter binaryWriter;
+    /** Rows in each binary sensor data block */
+    private int blockRows;
+    /** If the sensor data has been opened already */
+    private boolean sensorsOpened;
+    /** Latency of the recording of each frame (see {@link Metrics}) */
+    private final Histogram recordStats;
+    /** Maximum number of events of the trace */
+    private int traceEvents;
+    /** Encoder of the camera frames (for the report) */
+    private volatile FrameEncoder frameEncoder;
+    /** Frames captured and duplicated (filled in) in this session, for the report */
+    private int captured, duplicated;
+    /** Encoding and recording latency, and dropped frames at the start of the session, for the report */
+    private Histogram encodeStart, recordStart;
+    private long droppedStart;
+    /** Sequence of the latest reading of each sensor at the first frame, for the report */
+    private long[] sensorStart;
+
     /**
      * Create a new {@link Recorder}.
      *
@@ -69,17 +113,29 @@ public class Recorder implements ServiceConnection {
         this.sensorReader = reader;
         this.streamingServer = server;
         dataLengths = new SparseIntArray();
+        encoder = new CsvEncoder(256);
+        recordStats = Metrics.get().histogram("record_seconds",
+                "Recording of a frame: sensor data, fill-in frames and dispatch to the targets");
 
         //basic preferences
-        filenameData = prefs.getString(Util.PREF_FILENAME_DATA, "sensors.csv");
+        filenameData = Util.getDataFilename(prefs);
         filenameFrame = prefs.getString(Util.PREF_FILENAME_FRAME, "frame");
         flagTime = prefs.getBoolean(Util.PREF_LOGGING_TIME, false);
         flagTimestamp = prefs.getBoolean(Util.PREF_LOGGING_TIMESTAMP, false);
         flagHeaders = prefs.getBoolean(Util.PREF_LOGGING_HEADERS, false);
+        flagSkew = prefs.getBoolean(Util.PREF_LOGGING_SKEW, false);
+        alignMode = SensorAlignment.parseMode(prefs.getString(Util.PREF_LOGGING_ALIGN, ""));
+        formatter = new SensorRowFormatter(flagTime, flagSkew);
+        String format = prefs.getString(Util.PREF_LOGGING_FORMAT, "");
+        flagBinary = Util.FORMAT_BINARY.equals(format) || Util.FORMAT_GORILLA.equals(format);
+        flagGorilla = Util.FORMAT_GORILLA.equals(format);
+        blockRows = Util.getIntPref(prefs, Util.PREF_LOGGING_BLOCK);
         flagNetwork = Util.getIntPref(prefs, Util.PREF_FTP)>0;
         duration = Util.getLongPref(prefs, Util.PREF_LOGGING_RATE);
         ext = prefs.getString(Util.PREF_CAPTURE_IMGFORMAT,".png");
         formatTimestamp = prefs.getString(Util.PREF_LOGGING_TIMESTAMP_FORMAT, "%s%07d%s");
+        flagTrace = prefs.getBoolean(Util.PREF_LOGGING_TRACE, false);
+        traceEvents = Util.getIntPref(prefs, Util.PREF_LOGGING_TRACE_EVENTS);
 
         //read configurable sensors dimensions
         for (String k : prefs.getAll().keySet())
@@ -101,16 +157,20 @@ public class Recorder implements ServiceConnection {
     /**
      * Record image data (called from MainActivity at every desired frame)
      *
-     * @param data the image data
+     * @param data the image data (retained by the loggers as long as needed, the caller keeps its own reference)
      * @param timestamp the timestamp of the frame capture
      */
-    public void record(byte[] data, long timestamp) {
+    public synchronized void record(FrameBuffer data, long timestamp) {
 
         if (stopped || !bound)
             return;
 
-        if (counter==0)
+        long begin = System.nanoTime(), trace = Tracer.get().begin();
+        if (counter==0) {
             start = timestamp;
+            for (int s = 0; s < sensorStart.length; s++)
+                sensorStart[s] = sensorReader.getReadings(s).getHead();
+        }
 
         long max = timestamp-start+duration/2;
 //        if (max > MAX_RECORDING_TIME * 1000000L) {
@@ -118,16 +178,27 @@ public class Recorder implements ServiceConnection {
 //            return;
 //        }
 
-        //log precise frames and fill in missing frames, if any
-        for (long time = counter*duration; time<max; time+=duration) {
-            byte[] sensorsData = readSensors((int) (time/1000000L)).getBytes();
-            logSensors(sensorsData, time);//or maybe the real sensors timestamp
-            if (data != null)
-                logImage(data, time, counter);
+        //log precise frames and fill in missing frames, if any, as repetitions of the first one
+        int slots = counter;
+        for (long time = counter*duration, first = time; time<max; time+=duration) {
+            if (flagBinary)
+                writeSensors(time);
             else
+                logSensors(readSensors(time), time);//or maybe the real sensors timestamp
+            if (data == null)
                 Util.Log.w(TAG, "No image!");
+            else if (counter == slots)
+                logImage(data, time, counter);
+            else
+                service.repeat(folder, getImageFilename(counter), data, time, first);
             counter++;
         }
+        if ((slots = counter - slots) > 0) {
+            captured++;
+            duplicated += slots - 1;
+        }
+        recordStats.recordSince(begin);
+        Tracer.get().end("record", trace, counter);
 
     }
 
@@ -138,16 +209,24 @@ public class Recorder implements ServiceConnection {
      * @param timestamp the timestamp
      * @param n the internal counter (for formatting the filename as a sequence)
      */
-    private void logImage(byte[] data, long timestamp, int n) {
+    private void logImage(FrameBuffer data, long timestamp, int n) {
         service.log(
                 folder,
-                flagTimestamp
-                        ? String.format(Locale.US, formatTimestamp, filenameFrame, n, ext)
-                        : filenameFrame,
+                getImageFilename(n),
                 LogTarget.SEND,
                 data, timestamp);
     }
 
+    /**
+     * @param n the internal counter
+     * @return the filename of the image
+     */
+    private String getImageFilename(int n) {
+        return flagTimestamp
+                ? String.format(Locale.US, formatTimestamp, filenameFrame, n, ext)
+                : filenameFrame;
+    }
+
     /**
      * Pass the data read from the sensors to the (data-)loggers
      *
@@ -158,66 +237,147 @@ public class Recorder implements ServiceConnection {
         service.log(
                 folder,
                 filenameData,
-                counter==0 ? LogTarget.OPEN : LogTarget.WRITE,
+                sensorsOpened ? LogTarget.WRITE : LogTarget.OPEN,
                 data, timestamp);
+        sensorsOpened = true;
     }
 
     /**
      * Try to read a sensor data length
      *
-     * @param sensor the sensor
-     * @return the dimensionality of its data
+     * @param s the sensor index in the {@link SensorReader}
+     * @return the dimensionality of its data (as read so far)
      */
-    private int getSensorDataLength(Sensor sensor) {
+    private int getSensorDataLength(int s) {
+        Sensor sensor = sensorReader.getSensor(s);
         int ret = dataLengths.get(sensor.getType());
         if (ret==0) {
             ret = Util.getSensorMaxLength(sensor);
             dataLengths.put(sensor.getType(), ret);
         }
-        return ret;
+        int length = sensorReader.getReadings(s).getLength();
+        return Math.min(ret, length>0 ? length : snapshot[s].length);
     }
 
     /**
-     * Read the current sensor data (the latest available for each sensor)
+     * Read the current sensor data into the snapshot (aligned to the frame as set in the preferences)
      *
-     * @param timestamp the timestamp of the reading request
-     * @return a line already formatted to write in the .csv file
+     * @param time the time of the frame, since the beginning of the recording
      */
-    private String readSensors(int timestamp) {
-        StringBuilder buffer = new StringBuilder();
-        StringBuilder headers = null;
-        if (flagHeaders && counter == 0) {
-            headers = new StringBuilder();
-            if (flagTime)
-                headers.append("Frame Time,");
+    private void sampleSensors(long time) {
+        for (int s = 0; s < sensorReader.size(); s++) {//iterate through accelerometer and gyroscope (and magnetometer, etc)
+            float[] values = snapshot[s];
+            if (!alignment.align(s, sensorReader.getReadings(s), start + time, values))
+                Arrays.fill(values, 0f);//no reading yet
+            if (getSensorDataLength(s)>=3)
+                rotation.multiply(values, values);
         }
-        if (flagTime) {
-            buffer.append(String.valueOf(timestamp));
-            buffer.append(",");
-        }
-        for (SensorEvent e : sensorReader) {//iterate through accelerometer and gyroscope (and magnetometer, etc)
-            int l = Math.min(e.values.length, getSensorDataLength(e.sensor));
-            float[] values = l>=3 ? rotation.multiply(e.values) : e.values;
-            for (int i = 0; i < l; i++) {//iterate through x, y, z (and what else... if a sensor has more than 3 values)
-                if (flagHeaders && counter==0) {
-                    headers.append(Util.getSensorName(e.sensor));
-                    if (l>1)
-                        headers.append(" ").append(Util.DATA_HEADERS[i]);
-                    headers.append(",");
-                }
-                buffer.append(String.format(Locale.US, "%2.5f,", values[i]));
+    }
+
+    /**
+     * Read the current sensor data (aligned to the frame as set in the preferences)
+     *
+     * @param time the time of the frame, since the beginning of the recording
+     * @return a line already formatted to write in the .csv file
+     */
+    private byte[] readSensors(long time) {
+        encoder.reset();
+        if (flagHeaders && counter == 0)
+            readHeaders();
+        sampleSensors(time);
+        for (int s = 0; s < lengths.length; s++)
+            lengths[s] = getSensorDataLength(s);
+        formatter.append(encoder, time, snapshot, lengths, alignment);
+
+        //Util.Log.v(TAG, "Sensor reading: "+encoder);
+
+        return encoder.toByteArray();
+    }
+
+    /**
+     * Read the current sensor data into the current binary block, logging the block when full
+     *
+     * @param time the time of the frame, since the beginning of the recording
+     */
+    private void writeSensors(long time) {
+        if (counter == 0) {
+            SensorLogHeader header = new SensorLogHeader()
+                    .setEncoding(flagGorilla ? SensorLogHeader.ENCODING_GORILLA : SensorLogHeader.ENCODING_RAW)
+                    .setStartTimestamp(start)
+                    .setFrameDuration(duration)
+                    .setRotation(
+                            Util.getIntPref(prefs, Util.PREF_ROTATION_X),
+                            Util.getIntPref(prefs, Util.PREF_ROTATION_Y),
+                            Util.getIntPref(prefs, Util.PREF_ROTATION_Z));
+            for (int s = 0; s < sensorReader.size(); s++) {
+                Sensor sensor = sensorReader.getSensor(s);
+                String name = Util.getSensorName(sensor);
+                int l = getSensorDataLength(s);
+                for (int i = 0; i < l; i++)
+                    header.addColumn(sensor.getType(), i, l>1 ? name+" "+Util.DATA_HEADERS[i] : name);
+                if (flagSkew)
+                    header.addColumn(sensor.getType(), SensorLogHeader.NO_AXIS, name+" Skew");
             }
+            binaryWriter = SensorLogWriter.newInstance(header, blockRows);
         }
-        if (buffer.length() > 0)
-            buffer.deleteCharAt(buffer.length() - 1);
-        if (headers!=null && headers.length() > 0) {
-            headers.replace(headers.length() - 1, headers.length(), "\n");
-            buffer.insert(0, headers.toString());
+        sampleSensors(time);
+        binaryWriter.beginRow(time);
+        for (int s = 0; s < sensorReader.size(); s++) {
+            float[] values = snapshot[s];
+            for (int i = 0, l = getSensorDataLength(s); i < l; i++)
+                binaryWriter.put(values[i]);
+            if (flagSkew)//in microseconds
+                binaryWriter.put(alignment.getSkew(s)/1000f);
         }
+        if (binaryWriter.endRow())
+            flushSensors(time);
+    }
+
+    /**
+     * Log the current binary block of sensor data (preceded by the header, the first time)
+     *
+     * @param timestamp the timestamp
+     */
+    private void flushSensors(long timestamp) {
+        int length = binaryWriter.length();
+        if (length == 0)
+            return;
+        byte[] header = sensorsOpened ? new byte[0] : binaryWriter.getHeader().toByteArray();
+        byte[] data = new byte[header.length + length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(binaryWriter.buffer(), 0, data, header.length, length);
+        binaryWriter.reset();
+        logSensors(data, timestamp);
+    }
 
-        //Util.Log.v(TAG, "Sensor reading: "+buffer);
+    /**
+     * Append the headers line to the current sensor data (only on the first line)
+     */
+    private void readHeaders() {
+        int mark = encoder.length();
+        if (flagTime)
+            encoder.append("Frame Time,");
+        for (int s = 0; s < sensorReader.size(); s++) {
+            Sensor sensor = sensorReader.getSensor(s);
+            int l = getSensorDataLength(s);
+            for (int i = 0; i < l; i++) {
+                encoder.append(Util.getSensorName(sensor));
+                if (l>1)
+                    encoder.append(' ').append(Util.DATA_HEADERS[i]);
+                encoder.append(',');
+            }
+            if (flagSkew)
+                encoder.append(Util.getSensorName(sensor)).append(" Skew,");
+        }
+        if (encoder.length() > mark)
+            encoder.trim().append('\n');
+    }
 
-        return buffer.append('\n').toString();
+    /**
+     * @param frameEncoder the encoder of the camera frames (whose statistics go in the report)
+     */
+    void setFrameEncoder(FrameEncoder frameEncoder) {
+        this.frameEncoder = frameEncoder;
     }
 
     /**
@@ -240,7 +400,25 @@ public class Recorder implements ServiceConnection {
      */
     public void start() {
         counter = 0;
+        captured = 0;
+        duplicated = 0;
+        sensorStart = new long[sensorReader.size()];
+        FrameEncoder frames = frameEncoder;
+        encodeStart = frames != null ? frames.getEncodeStats().since(null) : null;
+        recordStart = recordStats.since(null);
+        droppedStart = frames != null ? frames.getDropped() : 0;
+        sensorsOpened = false;
+        snapshot = new float[sensorReader.size()][];
+        lengths = new int[snapshot.length];
+        int stride = 0;
+        for (int s = 0; s < snapshot.length; s++) {
+            snapshot[s] = new float[sensorReader.getReadings(s).getStride()];
+            stride = Math.max(stride, snapshot[s].length);
+        }
+        alignment = new SensorAlignment(alignMode, snapshot.length, stride);
         folder = dateFormat.format(new Date());
+        if (flagTrace)
+            Tracer.get().start(traceEvents > 0 ? traceEvents : 65536);
 
         //binding the service starts recording
         context.bindService(new Intent(context, LoggingService.class), this, Context.BIND_AUTO_CREATE);
@@ -256,16 +434,106 @@ public class Recorder implements ServiceConnection {
 
         sensorReader.stop();
 
+        if (counter>0)
+            for (int s = 0; s < sensorReader.size(); s++)
+                Util.Log.i(TAG, Util.getSensorName(sensorReader.getSensor(s))+" "+alignment.toString(s));
+
         if (bound && counter>0) {
-            service.log(folder, null, LogTarget.CLOSE, null, 0);
-            service.disconnect();
-        }
+            SessionReport report;
+            synchronized (this) {
+                if (flagBinary)
+                    flushSensors(counter*duration);
+                report = newReport();
+            }
+            service.log(folder, null, LogTarget.CLOSE, (FrameBuffer) null, 0);
+            List<LoggingService.SessionFile> files = new ArrayList<>();
+            files.add(newReportFile(report));
+            if (flagTrace)
+                files.add(newTraceFile(Tracer.get().getTrace()));
+            service.disconnect(folder, files);
+        } else
+            Tracer.get().stop();
 
         // unbinding
         if (bound && context!=null)//TODO: use a weak reference?
             context.unbindService(this);
     }
 
+    /**
+     * @return the report of the frames, encoding and sensors of the session, without the targets
+     */
+    private SessionReport newReport() {
+        SessionReport ret = new SessionReport(folder)
+                .setDuration(counter*duration, duration);
+        FrameEncoder frames = frameEncoder;
+        if (frames != null)
+            ret.addStage("encode", frames.getEncodeStats().since(encodeStart));
+        ret.addStage("record", recordStats.since(recordStart));
+        ret.setFrames(captured, counter, duplicated, frames != null ? Math.max(0, frames.getDropped() - droppedStart) : 0);
+        for (int s = 0; s < sensorStart.length; s++)
+            ret.addSensor(Util.getSensorName(sensorReader.getSensor(s)),
+                    sensorReader.getReadings(s).getHead() - sensorStart[s]);
+        return ret;
+    }
+
+    /**
+     * @param report the report of the session
+     * @return the report, completed with the targets and exported when they are done
+     */
+    private LoggingService.SessionFile newReportFile(final SessionReport report) {
+        return new LoggingService.SessionFile() {
+            @Override
+            public String getName() {
+                return REPORT_FILENAME;
+            }
+
+            @Override
+            public byte[] getData(List<LogTarget> targets) {
+                for (LogTarget t : targets)
+                    t.report(report);
+                List<String> degradations = report.getDegradations();
+                if (!degradations.isEmpty())
+                    Util.Log.w(TAG, "Degraded session " + folder + ": " + degradations);
+                try {
+                    return report.toJson().getBytes("UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    return null;
+                }
+            }
+        };
+    }
+
+    /**
+     * @param trace the trace of the session (a new recording may start its own before this is done)
+     * @return the trace of the session, exported when the targets are done (including their
+     *      pending operations)
+     */
+    private LoggingService.SessionFile newTraceFile(final Tracer.Trace trace) {
+        final String process = context.getString(R.string.app_name) + " " + folder;
+        return new LoggingService.SessionFile() {
+            @Override
+            public String getName() {
+                return TRACE_FILENAME;
+            }
+
+            @Override
+            public byte[] getData(List<LogTarget> targets) {
+                Tracer.get().stop(trace);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024 * 1024);
+                try {
+                    Writer out = new OutputStreamWriter(bytes, "UTF-8");
+                    Tracer.write(out, process, trace);
+                    out.close();
+                } catch (IOException e) {
+                    Util.Log.e(TAG, "Cannot export the trace", e);
+                    return null;
+                }
+                Util.Log.i(TAG, "Trace: " + (trace != null ? trace.getCount() : 0) + " events, " + bytes.size() + " bytes");
+                return bytes.toByteArray();
+            }
+        };
+    }
+
     @Override
     public void onServiceDisconnected(ComponentName name) {
         Util.Log.d(TAG, "Service disconnected");
@@ -0,0 +1,178 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Archive segments of a {@link LogTarget} (see {@link LogTarget#setArchive}): frames are added as
+ * entries, sensor data is kept until the segment is complete (the sensor data of all the
+ * segments, concatenated, is the whole sensor data file), and then added to the segment, or
+ * logged next to it if the archive cannot hold it. Interleaved archives take the sensor data as
+ * it comes, uncompressed. After an error the segment is abandoned, and the next operation starts
+ * a new one.
+ * <p>
+ * Each segment is written to the output of the target, on the target thread.
+ */
+class SegmentWriter {
+
+    private final LogTarget target;
+    private final LogArchive archive;
+    /** Frames in each segment (0=no limit, until the archive is full) */
+    private final int chunk;
+    /** The frames that can be referenced (only in the current segment) */
+    private final RepeatTracker repeats;
+
+    /** Number of the current segment, and frames in it */
+    private int segment, archived;
+    /** Sensor data of the current segment, and its filename */
+    private final FrameBuffer rows;
+    private String rowsFilename;
+
+    /**
+     * @param target the target writing the segments
+     * @param archive the archive format
+     * @param chunk frames in each segment (0=no limit)
+     * @param repeats the repeat bookkeeping of the target
+     */
+    SegmentWriter(LogTarget target, LogArchive archive, int chunk, RepeatTracker repeats) {
+        this.target = target;
+        this.archive = archive;
+        this.chunk = chunk;
+        this.repeats = repeats;
+        rows = new FrameBuffer(null, 4096);
+    }
+
+    /**
+     * Execute an operation in the current segment
+     *
+     * @param type one of {@link LogTarget#OPEN}, {@link LogTarget#WRITE}, {@link LogTarget#CLOSE},
+     *             {@link LogTarget#SEND}
+     * @throws IOException (the segment is abandoned)
+     */
+    void execute(int type, String folder, String filename, FrameBuffer data, long timestamp) throws IOException {
+        try {
+            operation(type, folder, filename, data, timestamp);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Add a repetition of the last frame to the current segment
+     *
+     * @throws IOException (the segment is abandoned)
+     */
+    void repeat(String folder, String filename, FrameBuffer data, long timestamp) throws IOException {
+        try {
+            archive.putRepeat(filename, repeats.getLast(), data.data(), 0, data.length(), timestamp);
+            if (++archived >= chunk && chunk > 0 || archive.isFull())
+                end(folder);
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    private void operation(int type, String folder, String filename, FrameBuffer data, long timestamp)
+            throws IOException {
+        switch (type) {
+            case LogTarget.OPEN:
+                rowsFilename = filename;
+            case LogTarget.WRITE:
+                if (archive.isInterleaved()) {
+                    begin(folder);
+                    archive.putData(rowsFilename, data.data(), 0, data.length(), timestamp);
+                } else
+                    rows.append(data.data(), 0, data.length());
+                break;
+            case LogTarget.SEND:
+                begin(folder);
+                archive.putFrame(filename, data.data(), 0, data.length(), timestamp);
+                repeats.logged(timestamp, filename);
+                if (++archived >= chunk && chunk > 0 || archive.isFull())
+                    end(folder);
+                break;
+            case LogTarget.CLOSE:
+                try {
+                    if (rows.length() > 0 && rowsFilename != null)
+                        begin(folder);
+                    if (archive.isOpen())
+                        end(folder);
+                } finally {
+                    if (archive.isOpen())
+                        abort();
+                    segment = 0;
+                    rowsFilename = null;
+                    rows.setLength(0);
+                }
+        }
+    }
+
+    /**
+     * Abandon the current segment (left as it is) and close its output
+     */
+    private void abort() {
+        if (archive.isOpen()) {
+            archive.abort();
+            segment++;
+        }
+        repeats.reset();
+        try {
+            target.close();
+        } catch (IOException e) {
+            Util.Log.w(target.getTag(), "Cannot close archive segment " + segment + ": " + e);
+        }
+    }
+
+    private void begin(String folder) throws IOException {
+        if (archive.isOpen())
+            return;
+        target.open(folder, String.format(Locale.US, "chunk%05d%s", segment, archive.getExtension()));
+        if (target.out == null)
+            throw new IOException("Cannot open archive segment " + segment);
+        archive.begin(target.out);
+        archived = 0;
+    }
+
+    private void end(String folder) throws IOException {
+        String name = null;
+        byte[] data = null;
+        int length = 0;
+        if (rows.length() > 0 && rowsFilename != null) {
+            CompressedOutputStream.Codec codec = target.newCodec();
+            if (codec == null) {
+                name = rowsFilename;
+                data = rows.data();
+                length = rows.length();
+            } else {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(rows.length() / 2);
+                CompressedOutputStream c = new CompressedOutputStream(bytes, codec, target.getCompressionBlock());
+                c.write(rows.data(), 0, rows.length());
+                c.close();
+                Util.Log.v(target.getTag(), "Segment " + segment + " sensor data: " + c);
+                name = rowsFilename + codec.getExtension();
+                data = bytes.toByteArray();
+                length = bytes.size();
+            }
+            if (archive.accepts(name)) {
+                archive.putEntry(name, data, 0, length, System.currentTimeMillis());
+                name = null;
+            }
+        }
+        archive.finish();
+        target.close();
+        if (name != null) {
+            //i.e. next to a video: chunk00000_sensors.csv
+            target.open(folder, String.format(Locale.US, "chunk%05d_%s", segment, name));
+            if (target.out != null)
+                target.out.write(data, 0, length);
+            target.close();
+        }
+        rows.setLength(0);
+        segment++;
+        repeats.reset();//the next segment cannot reference this one
+    }
+
+}
@@ -11,25 +11,37 @@ import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.SparseArray;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.TreeSet;
 
 /**
- * An utility class to manage sensor readings in a separate thread
+ * An utility class to manage sensor readings in a separate thread.
+ * <p>
+ * Every reading is copied into a {@link SensorRing}, so that it can be read safely (and without
+ * allocating) from any other thread.
  */
-public class SensorReader implements SensorEventListener, Iterable<SensorEvent> {
+public class SensorReader implements SensorEventListener, Iterable<Sensor> {
 
     private final static String TAG = SensorReader.class.getSimpleName();
 
+    /** Default number of readings kept for each sensor */
+    private final static int RING_CAPACITY = 16;
+    /** Maximum number of values kept for each reading */
+    private final static int RING_STRIDE = 16;
+
     /** The system {@link SensorManager} */
     private final SensorManager sensorManager;
 
-    /** Sensors managed by this class */
-    private final TreeSet<Sensor> sensors;
+    /** Sensors managed by this class (sorted by name) */
+    private final Sensor[] sensors;
+
+    /** Latest sensor readings for each sensor (same order of the sensors) */
+    private final SensorRing[] rings;
 
-    /** Latest sensor readings ({@link SensorEvent}) for each sensor */
-    private final SparseArray<SensorEvent> readings;
+    /** Latest sensor readings for each sensor type */
+    private final SparseArray<SensorRing> readings;
 
     /** Own thread, where to register sensor listeners */
     private HandlerThread ht;
@@ -44,7 +56,7 @@ public class SensorReader implements SensorEventListener, Iterable<SensorEvent>
     SensorReader(SensorManager sensorManager, SharedPreferences prefs) {
         this.sensorManager = sensorManager;
         readings = new SparseArray<>();
-        sensors = new TreeSet<>(new Comparator<Sensor>() {
+        TreeSet<Sensor> sensors = new TreeSet<>(new Comparator<Sensor>() {
             @Override
             public int compare(Sensor s1, Sensor s2) {
                 return Util.getSensorName(s1).compareTo(Util.getSensorName(s2));
@@ -56,7 +68,13 @@ public class SensorReader implements SensorEventListener, Iterable<SensorEvent>
                 if (s!=null)
                     sensors.add(s);
             }
-
+        this.sensors = sensors.toArray(new Sensor[0]);
+        int capacity = Util.getIntPref(prefs, Util.PREF_SENSORS_HISTORY);
+        rings = new SensorRing[this.sensors.length];
+        for (int i=0; i<rings.length; i++) {
+            rings[i] = new SensorRing(capacity>1 ? capacity : RING_CAPACITY, RING_STRIDE);
+            readings.put(this.sensors[i].getType(), rings[i]);
+        }
     }
 
     /**
@@ -87,48 +105,71 @@ public class SensorReader implements SensorEventListener, Iterable<SensorEvent>
     /**
      * Iterate through all the specified sensors
      *
-     * @return an iterator of {@link SensorEvent}s
+     * @return an iterator of {@link Sensor}s
      */
     @NonNull
     @Override
-    public Iterator<SensorEvent> iterator() {
-        return new Iterator<SensorEvent>() {
-            private Iterator<Sensor> it = sensors.iterator();
-            @Override
-            public boolean hasNext() {
-                return it.hasNext();
-            }
-            @Override
-            public SensorEvent next() {
-                return readSensor(it.next());
-            }
-        };
+    public Iterator<Sensor> iterator() {
+        return Arrays.asList(sensors).iterator();
+    }
+
+    /**
+     * @return the number of sensors
+     */
+    public int size() {
+        return sensors.length;
+    }
+
+    /**
+     * Get a sensor by index (in alphabetical order)
+     *
+     * @param i the index
+     * @return the sensor
+     */
+    public Sensor getSensor(int i) {
+        return sensors[i];
+    }
+
+    /**
+     * Get the readings of a sensor by index (in alphabetical order)
+     *
+     * @param i the index
+     * @return the readings of the i-th sensor
+     */
+    public SensorRing getReadings(int i) {
+        return rings[i];
     }
 
     /**
      * Read the latest available data for a sensor.
      *
      * @param sensor the sensor
-     * @return the last {@link SensorEvent} for that sensor
+     * @return the readings for that sensor
      */
-    public SensorEvent readSensor(Sensor sensor) {
+    public SensorRing readSensor(Sensor sensor) {
         return readings.get(sensor.getType());
     }
 
     @Override
     public void onAccuracyChanged(Sensor sensor, int accuracy) {
-        SensorEvent e = readSensor(sensor);
+        SensorRing r = readSensor(sensor);
         Log.w(TAG, "Accuracy changed for " + Util.getSensorName(sensor)+": "
-                +(e!=null ? e.accuracy : -1)+"->"+accuracy);
+                +(r!=null ? r.getAccuracy() : -1)+"->"+accuracy);
+        if (r!=null)
+            r.setAccuracy(accuracy);
     }
 
     /**
-     * Store the last {@link SensorEvent} for each sensor
+     * Copy the values of each {@link SensorEvent} in the readings of its sensor
      * @param event the event
      */
     @Override
     public void onSensorChanged(SensorEvent event) {
-        readings.put(event.sensor.getType(), event);
+        long trace = Tracer.get().begin();
+        SensorRing r = readings.get(event.sensor.getType());
+        if (r!=null)
+            r.write(event.values, event.timestamp);
+        Tracer.get().end("sensor", trace, event.sensor.getType());
     }
 
     public void dispose() {
@@ -195,6 +195,9 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.pref_logging);
             bindPreferenceSummaryToValue(findPreference(Util.PREF_LOGGING_RATE));
+            bindPreferenceSummaryToValue(findPreference(Util.PREF_LOGGING_FORMAT));
+            bindPreferenceSummaryToValue(findPreference(Util.PREF_LOGGING_ALIGN));
+            bindPreferenceSummaryToValue(findPreference(Util.PREF_LOGGING_CHUNK));
         }
     }
 
@@ -217,6 +220,8 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             bindPreferenceSummaryToValue(findPreference(Util.PREF_FTP_USER));
             bindPreferenceSummaryToValue(findPreference(Util.PREF_FTP_PW));
             bindPreferenceSummaryToValue(findPreference(Util.PREF_FTP_SKIP));
+            bindPreferenceSummaryToValue(findPreference(Util.PREF_FTP_SESSIONS));
+            bindPreferenceSummaryToValue(findPreference(Util.PREF_FTP_SPOOL_RATE));
         }
     }
 
@@ -236,6 +241,7 @@ public class SettingsActivity extends AppCompatPreferenceActivity {
             super.onCreate(savedInstanceState);
             addPreferencesFromResource(R.xml.pref_capture);
             bindPreferenceSummaryToValue(findPreference(Util.PREF_CAPTURE_IMGFORMAT));
+            bindPreferenceSummaryToValue(findPreference(Util.PREF_CAPTURE_WORKERS));
        }
     }
 
@@ -0,0 +1,175 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import android.os.Process;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Background uploader draining the local {@link Spool} to the FTP server, oldest recording first.
+ * <p>
+ * Each uploaded file is deleted from the spool. The file in progress and the offset sent so far
+ * are kept in the cursor of the spool, so that after a disconnection (or a restart of the service)
+ * the upload is resumed with a REST offset, asking the server how much it has actually received.
+ * The upload rate can be capped, and the thread runs at background priority, so that the
+ * recording is never slowed down.
+ */
+public class SpoolUploader extends Thread {
+
+    private final static String TAG = SpoolUploader.class.getSimpleName();
+
+    /** Size of the upload blocks */
+    private final static int BLOCK = 16 * 1024;
+    /** Save the cursor every these many bytes */
+    private final static long CURSOR_INTERVAL = 1024 * 1024;
+    /** How long to wait for new files when the spool is empty (ms) */
+    private final static long IDLE_WAIT = 1000;
+    /** Retry delays after a failure (ms) */
+    private final static long MIN_BACKOFF = 1000, MAX_BACKOFF = 60000;
+
+    private final Spool spool;
+    private final FtpSession session;
+    /** Maximum upload rate (bytes/s, 0=unlimited) */
+    private final long rate;
+
+    private volatile boolean running;
+    private long backoff = MIN_BACKOFF;
+
+    /**
+     * Create a new uploader (not started)
+     *
+     * @param root the spool folder (containing a folder for each recording)
+     * @param session the FTP session to upload with
+     * @param rate the maximum upload rate in bytes/s (0=unlimited)
+     */
+    public SpoolUploader(File root, FtpSession session, long rate) {
+        super(TAG);
+        spool = new Spool(root);
+        this.session = session;
+        this.rate = rate;
+        int recovered = spool.recoverPartials();
+        if (recovered > 0)
+            Util.Log.i(TAG, "Recovered " + recovered + " partial files");
+    }
+
+    /**
+     * Notify that a file has been completed in the spool
+     */
+    public synchronized void wakeup() {
+        notifyAll();
+    }
+
+    /**
+     * Stop uploading (the current file is resumed on the next start)
+     */
+    public void quit() {
+        running = false;
+        wakeup();
+        interrupt();
+    }
+
+    @Override
+    public synchronized void start() {
+        running = true;
+        super.start();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (running) {
+            File next = spool.next();
+            try {
+                if (next == null) {
+                    synchronized (this) {
+                        wait(IDLE_WAIT);
+                    }
+                    continue;
+                }
+                upload(next);
+                backoff = MIN_BACKOFF;
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                Util.Log.w(TAG, "Upload of " + next + " interrupted (" + e.getMessage()
+                        + "), retrying in " + backoff + "ms");
+                session.abort();
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                backoff = Math.min(MAX_BACKOFF, backoff * 2);
+            }
+        }
+        session.disconnect();
+        Util.Log.i(TAG, session.toString());
+    }
+
+    /**
+     * Upload a file, resuming from the server size if the cursor says it was in progress
+     */
+    private void upload(File file) throws IOException, InterruptedException {
+        String folder = file.getParentFile().getName(), name = file.getName();
+        long offset = spool.getOffset(file);
+        if (offset >= 0) {
+            offset = Spool.resume(file, offset, session.size(folder, name));
+            Util.Log.i(TAG, "Resuming " + Spool.getPath(file) + " at " + offset);
+        } else
+            offset = 0;
+        spool.saveCursor(file, offset);
+
+        long start = System.nanoTime(), sent = 0, saved = offset;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(offset);
+            OutputStream out = session.open(folder, name, offset);
+            try {
+                byte[] block = new byte[BLOCK];
+                int n;
+                while (running && (n = in.read(block)) > 0) {
+                    out.write(block, 0, n);
+                    sent += n;
+                    offset += n;
+                    throttle(sent, start);
+                    if (offset - saved >= CURSOR_INTERVAL) {
+                        spool.saveCursor(file, offset);
+                        saved = offset;
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!session.complete())
+                throw new IOException("Transfer not completed");
+        } finally {
+            in.close();
+        }
+        if (!running) {
+            spool.saveCursor(file, offset);
+            return;
+        }
+        session.count(1, sent, System.nanoTime() - start);
+        if (!file.delete())
+            Util.Log.w(TAG, "Cannot delete " + file);
+        spool.saveCursor(null, 0);
+    }
+
+    /**
+     * Sleep as long as needed to keep the upload under the rate cap
+     */
+    private void throttle(long sent, long start) throws InterruptedException {
+        if (rate <= 0)
+            return;
+        long ahead = sent * 1000L / rate - (System.nanoTime() - start) / 1000000L;
+        if (ahead > 0)
+            Thread.sleep(ahead);
+    }
+
+    /** @return the spool uploaded */
+    public Spool getSpool() {
+        return spool;
+    }
+}
@@ -1,19 +1,33 @@
 package it.francescogabbrielli.apps.sensorlogger;
 
-import android.os.SystemClock;
-
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Simple HTTP streaming server, adapted to stream both images and sensors data.
  *
- * Can handle only one client connection.
+ * Serves any number of clients from a single thread, through a {@link Selector}. Every client
+ * has its own queue: frames are shared (see {@link FrameBuffer}) and, if a client is too slow,
+ * it only gets the latest one, skipping the others, without stalling the other clients nor
+ * the capture. Sensor data rows are coalesced in a {@link SensorBatch} for each client, sent
+ * when big enough or old enough.
+ *
+ * Two protocols are available on the same port: multipart/x-mixed-replace (the default, good for
+ * browsers), or a binary one, requested with {@link #BINARY_PATH} or with {@link #BINARY_TYPE}
+ * in the Accept header. The parts are framed by a {@link PartFramer}.
+ *
+ * The {@link Metrics} of the whole pipeline are served as plain text on {@link #METRICS_PATH},
+ * to be scraped during long recordings.
  *
  * REFERENCES
  * ----------
@@ -23,14 +37,8 @@ public class StreamingServer implements Runnable {
 
     private static final String TAG = StreamingServer.class.getSimpleName();
 
-    private static final long DELAY_LIMIT = 100000000L;
-
     /** A new random boundary */
     private static final String BOUNDARY = makeBoundary(32);
-    /** Boundary line to separate parts in the stream */
-    private static final String BOUNDARY_LINE = "\r\n--" + BOUNDARY + "\r\n";
-
-    private static final int BOUNDARY_LENGTH = BOUNDARY_LINE.length();
     /** HTTP header */
     private static final String HTTP_HEADER = (
             "HTTP/1.0 200 OK\r\n" +
@@ -43,11 +51,58 @@ public class StreamingServer implements Runnable {
                     "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n" +
                     "\r\n");
 
-    private static final String PART_FORMAT =
-            "Content-type: %s\r\n"
-            + "Content-Length: %d\r\n"
-            + "X-Timestamp: %d\r\n"
-            + "\r\n";
+    /** Path requesting the binary protocol */
+    public static final String BINARY_PATH = "/binary";
+    /** Content-Type of the binary protocol (also accepted in the Accept header) */
+    public static final String BINARY_TYPE = "application/x-sensorlogger-stream";
+    /** HTTP header of the binary protocol */
+    private static final String BINARY_HTTP_HEADER = (
+            "HTTP/1.0 200 OK\r\n" +
+                    "Server: SensorLogger\r\n" +
+                    "Connection: close\r\n" +
+                    "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
+                    "Pragma: no-cache\r\n" +
+                    "Content-Type: " + BINARY_TYPE + "\r\n" +
+                    "\r\n");
+
+    /** Path of the metrics (see {@link Metrics}) */
+    public static final String METRICS_PATH = "/metrics";
+    /** HTTP header of the metrics (without the content length) */
+    private static final String METRICS_HTTP_HEADER = (
+            "HTTP/1.0 200 OK\r\n" +
+                    "Server: SensorLogger\r\n" +
+                    "Connection: close\r\n" +
+                    "Cache-Control: no-store, no-cache, must-revalidate, pre-check=0, post-check=0, max-age=0\r\n" +
+                    "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n");
+
+    /** Maximum size of a request */
+    private final static int REQUEST_SIZE = 4096;
+    /** Default size beyond which a sensor data batch is sent */
+    private final static int BATCH_BYTES = 4096;
+    /** Default maximum latency of a sensor data batch (ms) */
+    private final static long BATCH_LATENCY = 50;
+    /** Default maximum size of a sensor data batch, beyond which the oldest rows are dropped */
+    private final static int BATCH_MAX = 1024 * 1024;
+
+    /** Flush policy: write every part as soon as it is ready, with TCP_NODELAY */
+    public final static int FLUSH_LATENCY = 0;
+    /** Flush policy: write parts together, in multiples of the segment size */
+    public final static int FLUSH_THROUGHPUT = 1;
+    /** Flush policy: latency while the client keeps up, throughput when it drains slower than produced */
+    public final static int FLUSH_ADAPTIVE = 2;
+    /** Flush policy names (as in the preferences) */
+    final static String[] FLUSH_NAMES = {"latency", "throughput", "adaptive"};
+
+    /** Typical TCP maximum segment size */
+    private final static int MSS = 1448;
+    /** Segments to fill before writing, in throughput mode */
+    private final static int THROUGHPUT_SEGMENTS = 16;
+    /** Maximum time parts are held in throughput mode (ns) */
+    private final static long MAX_HOLD = 100000000L;
+    /** Smoothing of the rate estimates */
+    private final static double RATE_SMOOTHING = 0.2;
+    /** Adaptive policy: switch to throughput below this drain/produce ratio, back to latency above the other */
+    private final static double ADAPTIVE_LOW = 1.5, ADAPTIVE_HIGH = 2.5;
 
     /** Create a random boundary */
     private static String makeBoundary(int len) {
@@ -59,97 +114,424 @@ public class StreamingServer implements Runnable {
 
     private int port;
 
-    private boolean running, stopped;
+    private volatile boolean running;
+    private boolean stopped;
     private Thread thread;
 
-    /** The server socket */
-    private ServerSocket serverSocket;
-    private Socket socket;
-
-    /** The streaming buffers */
-    private Buffer[] buffers;
-    /** The streaming data buffers */
-    private Buffer[] dataBuffers;
-    /** Number of buffers */
-    private final static int N_BUFFERS = 3;
-    /** Size of each buffer */
-    private final static int BUFFER_SIZE = 1048 * 1024;
-    /** Size beyond which the outputstream is flushed */
-    private final static int CHUNK_SIZE = 32 * 1024;
-    /** Current buffer index */
-    private int currentBuffer, currentDataBuffer;
-    /** New data available */
-    private boolean newImage, newData;
-    /** Delay beyond which to logcat a delay in the streaming */
-    private long delayLimit;
-
-    private String textHeaders;
+    private Selector selector;
+    /** The connected clients */
+    private final List<Client> clients;
+    /** If clients must be dropped (restart) */
+    private boolean kick;
+
+    /** Headers of the sensor data, sent to each client before its first data part */
+    private byte[] dataHeaders;
+    /** Content-Type of the sensor data */
+    private String dataType;
+    /** Sequence number of the images */
+    private int imageSeq;
+    /** Sensor data batching (see {@link SensorBatch}) */
+    private int batchBytes, batchMax;
+    private long batchLatency;
+    /** How to flush the clients */
+    private int flushPolicy = FLUSH_ADAPTIVE;
 
     /** Recording control callback */
     private MainActivity main;
 
+    /** Latency of the writes to the clients, and counters (see {@link Metrics}) */
+    private final Histogram sendStats;
+    private final AtomicLong framesCount, bytesCount, droppedCount;
+
     /**
-     * Buffer where to write the data to be streamed
+     * A part to be streamed
      */
-    class Buffer {
-        /** Buffer data. Of fixed length BUFFER_SIZE */
-        byte[] data;
-        /** Actual length of current data */
-        int length;
-        /** Timestamp of current data */
-        long timestamp;
-        /** Content-Type of current data */
-        String contentType;
-
-        Buffer() {
-            this.data = new byte[BUFFER_SIZE];
+    static class Part {
+        /** The payload (a reference is held until the part is streamed or dropped) */
+        final FrameBuffer payload;
+        final long timestamp;
+        final String contentType;
+        final int seq;
+        /** If a repetition of the previous image (only its header is streamed) */
+        final boolean repeat;
+
+        Part(FrameBuffer payload, long timestamp, String contentType, int seq) {
+            this(payload, timestamp, contentType, seq, false);
         }
 
-        /**
-         * Write data into this buffer
-         * @param data the actual data to be streamed
-         * @param timestamp the timestamp of the data
-         * @param contentType the content type of the data
-         */
-        void setData(byte[] data, long timestamp, String contentType) {
-            length = data.length;
-            System.arraycopy(data, 0, this.data, 0, length);
+        Part(FrameBuffer payload, long timestamp, String contentType, int seq, boolean repeat) {
+            this.payload = payload;
             this.timestamp = timestamp;
             this.contentType = contentType;
+            this.seq = seq;
+            this.repeat = repeat;
         }
 
-        void appendData(byte[] data, long timestamp) {
-            int curr = length;
-            length += data.length;
-            System.arraycopy(data, 0, this.data, curr, data.length);
-            this.timestamp = timestamp;
-            contentType = "text/csv";
+        /** @return the bytes to stream */
+        int size() {
+            return repeat ? PartFramer.HEADER_SIZE : payload.length();
+        }
+    }
+
+    /**
+     * A client connection, with its own queue
+     */
+    class Client {
+        final SocketChannel channel;
+        final SelectionKey key;
+        /** The request (until it is complete), then what the client sends is discarded */
+        ByteBuffer request;
+        private final ByteBuffer drain;
+        /** Pending data rows */
+        final SensorBatch batch;
+        /** Sequence number of the data parts */
+        int dataSeq;
+        /** Latest image not streamed yet */
+        Part image;
+        /** Parts being written, and the buffers of the gathering write */
+        final List<Part> gathered;
+        ByteBuffer[] buffers;
+        /** First buffer not completely written yet */
+        int offset;
+        /** If the headers of the sensor data have been sent */
+        boolean headersSent;
+        /** Framing of the parts, in the requested protocol */
+        PartFramer framer;
+        /** If the client requested the metrics, to close once they are written */
+        boolean metrics;
+        /** Images in the current gathering write */
+        int gatheredImages;
+
+        /** If currently in latency mode (writing every part, with TCP_NODELAY) */
+        boolean latency;
+        /** Since when parts are held to be written together (throughput mode) */
+        long holdSince;
+        /** Start of the current gathering write, and its bytes */
+        long writeStart, writeBytes;
+        /** Start of the previous gathering write */
+        long lastWrite;
+        /** Estimated rates (bytes/s) at which the client drains the data and at which it is produced */
+        double drainRate, produceRate;
+        long sent, skipped, bytes;
+
+        Client(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+            request = ByteBuffer.allocate(REQUEST_SIZE);
+            drain = ByteBuffer.allocate(256);
+            batch = new SensorBatch(batchBytes, batchLatency, batchMax);
+            gathered = new ArrayList<>(3);
+        }
+
+        boolean isStreaming() {
+            return request == null && !metrics;
+        }
+
+        /** Queue a repetition of the previous image, unless an image is still pending (the same, or newer) */
+        void offerRepeat(Part part) {
+            if (image != null || !framer.isBinary())
+                return;
+            part.payload.retain();
+            image = part;
+        }
+
+        /** Queue an image, replacing (skipping) the previous one if still pending */
+        void offerImage(Part part) {
+            if (image != null) {
+                image.payload.release();
+                skipped++;
+                droppedCount.incrementAndGet();
+            }
+            part.payload.retain();
+            image = part;
+        }
+
+        /**
+         * Read the request and wait for its end
+         *
+         * @return false if the connection has been closed
+         */
+        boolean read() throws IOException {
+            if (request == null) {
+                int n;
+                while ((n = channel.read(drain)) > 0)
+                    drain.clear();
+                return n == 0;
+            }
+            if (channel.read(request) < 0)
+                return false;
+            String r = new String(request.array(), 0, request.position(), "ISO-8859-1");
+            if (r.contains("\r\n\r\n") || !request.hasRemaining()) {
+                Util.Log.d(TAG, "Request from " + channel.socket().getRemoteSocketAddress() + ": "
+                        + r.substring(0, Math.max(0, r.indexOf('\r'))));
+                request = null;
+                if (isMetricsRequest(r)) {
+                    metrics = true;
+                    byte[] body = Metrics.get().toString().getBytes("UTF-8");
+                    buffers = new ByteBuffer[] {
+                            ByteBuffer.wrap((METRICS_HTTP_HEADER + "Content-Length: " + body.length + "\r\n\r\n")
+                                    .getBytes()),
+                            ByteBuffer.wrap(body)};
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return true;
+                }
+                boolean binary = isBinaryRequest(r);
+                framer = new PartFramer(binary, BOUNDARY);
+                setLatency(flushPolicy != FLUSH_THROUGHPUT);
+                buffers = new ByteBuffer[] {ByteBuffer.wrap((binary ? BINARY_HTTP_HEADER : HTTP_HEADER).getBytes())};
+                onStreaming(this);
+            }
+            return true;
+        }
+
+        private void setLatency(boolean latency) throws IOException {
+            this.latency = latency;
+            channel.socket().setTcpNoDelay(latency);
+        }
+
+        /**
+         * @param now the current time
+         * @return the bytes ready to be written
+         */
+        int available(long now) {
+            return (image != null ? image.size() : 0) + (batch.isReady(now) ? batch.length() : 0);
+        }
+
+        /**
+         * Check if the client should be written now, according to the flush policy
+         *
+         * @param now the current time
+         * @return true to write
+         */
+        boolean shouldWrite(long now) {
+            if (buffers != null)
+                return true;
+            int available = available(now);
+            if (available == 0)
+                return false;
+            if (latency || available >= THROUGHPUT_SEGMENTS * MSS || (holdSince > 0 && now - holdSince >= MAX_HOLD))
+                return true;
+            if (holdSince == 0)
+                holdSince = now;
+            return false;
+        }
+
+        /**
+         * @return when the held parts must be written anyway (Long.MAX_VALUE if none)
+         */
+        long getHoldDeadline() {
+            return holdSince > 0 ? holdSince + MAX_HOLD : Long.MAX_VALUE;
+        }
+
+        /**
+         * Write as much as possible, gathering all the parts ready in a single write
+         */
+        void write(long now) throws IOException {
+            if (buffers == null && !gather(now))
+                return;
+            long trace = Tracer.get().begin();
+            long n = channel.write(buffers, offset, buffers.length - offset);
+            Tracer.get().end("socket write", trace, n);
+            bytes += n;
+            if (!metrics)
+                bytesCount.addAndGet(n);
+            while (offset < buffers.length && !buffers[offset].hasRemaining())
+                offset++;
+            if (offset < buffers.length)
+                return;
+            //gathering write complete
+            long end = System.nanoTime();
+            if (writeStart > 0) {
+                sendStats.record(end - writeStart);
+                drainRate = rate(drainRate, writeBytes, Math.max(end - writeStart, 1000));
+                adapt();
+            }
+            for (Part p : gathered)
+                p.payload.release();
+            sent += gathered.size();
+            framesCount.addAndGet(gatheredImages);
+            gatheredImages = 0;
+            gathered.clear();
+            buffers = null;
+            writeStart = 0;
+        }
+
+        /** Exponential moving average of a rate */
+        private double rate(double rate, long bytes, long nanos) {
+            double r = bytes * 1e9 / nanos;
+            return rate > 0 ? rate + (r - rate) * RATE_SMOOTHING : r;
+        }
+
+        /** Adaptive policy: switch mode if the client drains slower or faster than produced */
+        private void adapt() throws IOException {
+            if (flushPolicy != FLUSH_ADAPTIVE || produceRate <= 0)
+                return;
+            if (latency && drainRate < produceRate * ADAPTIVE_LOW)
+                setLatency(false);
+            else if (!latency && drainRate > produceRate * ADAPTIVE_HIGH)
+                setLatency(true);
+        }
+
+        /**
+         * Gather the parts ready to be written: the data batch and the latest image
+         *
+         * @return false if there is nothing to write
+         */
+        private boolean gather(long now) {
+            ArrayList<ByteBuffer> list = new ArrayList<>(6);
+            if (batch.isReady(now)) {
+                long timestamp = batch.getTimestamp();
+                addPart(list, new Part(batch.take(), timestamp, dataType, dataSeq++), false);
+            }
+            if (image != null) {
+                addPart(list, image, true);
+                image = null;
+                gatheredImages++;
+            }
+            if (list.isEmpty())
+                return false;
+            buffers = list.toArray(new ByteBuffer[list.size()]);
+            offset = 0;
+            holdSince = 0;
+            writeStart = now;
+            writeBytes = 0;
+            for (ByteBuffer b : buffers)
+                writeBytes += b.remaining();
+            if (lastWrite > 0)
+                produceRate = rate(produceRate, writeBytes, Math.max(now - lastWrite, 1000));
+            lastWrite = now;
+            return true;
+        }
+
+        /**
+         * Add the buffers of a part (the headers of the sensor data before the first data part)
+         */
+        private void addPart(List<ByteBuffer> list, Part part, boolean isImage) {
+            gathered.add(part);
+            if (part.repeat) {
+                framer.repeat(list, part.seq, part.timestamp);
+                return;
+            }
+            headersSent |= framer.frame(list, part.payload, part.contentType, part.seq, part.timestamp, isImage,
+                    headersSent ? null : dataHeaders);
+        }
+
+        boolean hasPending(long now) {
+            return buffers != null || available(now) > 0;
+        }
+
+        void close(boolean end) {
+            try {
+                if (end && isStreaming() && buffers == null)
+                    channel.write(framer.end());
+            } catch (IOException e) {
+                //closing anyway
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Util.Log.e(TAG, "Error closing streaming client", e);
+            }
+            for (Part p : gathered)
+                p.payload.release();
+            gathered.clear();
+            if (image != null)
+                image.payload.release();
+            image = null;
+            Util.Log.i(TAG, toString());
         }
 
         @Override
         public String toString() {
-            return String.format(Locale.US, PART_FORMAT, contentType, length, timestamp);
+            return String.format(Locale.US, "Client %s: %d parts (%d bytes) sent, %d frames skipped, %d data rows dropped, "
+                            + "drain %.0f KB/s, produced %.0f KB/s",
+                    channel.socket().getRemoteSocketAddress(), sent, bytes, skipped, batch.getDropped(),
+                    drainRate / 1024, produceRate / 1024);
         }
     }
 
+    /**
+     * Set how to flush the clients (for the next ones)
+     *
+     * @param name the name of the policy ("latency", "throughput" or "adaptive")
+     */
+    public synchronized void setFlushPolicy(String name) {
+        for (int i = 0; i < FLUSH_NAMES.length; i++)
+            if (FLUSH_NAMES[i].equalsIgnoreCase(name))
+                flushPolicy = i;
+    }
+
+    /**
+     * Check if a request asks for the binary protocol
+     *
+     * @param request the HTTP request
+     * @return true if the path is {@link #BINARY_PATH} or {@link #BINARY_TYPE} is accepted
+     */
+    static boolean isBinaryRequest(String request) {
+        int end = request.indexOf('\r');
+        String[] line = (end >= 0 ? request.substring(0, end) : request).split(" ");
+        if (line.length > 1 && (line[1].startsWith(BINARY_PATH) || line[1].contains("format=binary")))
+            return true;
+        for (String header : request.split("\r\n"))
+            if (header.regionMatches(true, 0, "Accept:", 0, 7) && header.contains(BINARY_TYPE))
+                return true;
+        return false;
+    }
+
+    /**
+     * Check if a request asks for the metrics
+     *
+     * @param request the HTTP request
+     * @return true if the path is {@link #METRICS_PATH}
+     */
+    static boolean isMetricsRequest(String request) {
+        int end = request.indexOf('\r');
+        String[] line = (end >= 0 ? request.substring(0, end) : request).split(" ");
+        return line.length > 1 && line[1].startsWith(METRICS_PATH);
+    }
+
     public StreamingServer() {
-        buffers = new Buffer[N_BUFFERS];
-        dataBuffers = new Buffer[N_BUFFERS];
-        for (int i = 0; i < N_BUFFERS; i++) {
-            buffers[i] = new Buffer();
-            dataBuffers[i] = new Buffer();
-        }
-        currentBuffer = 0;
-        currentDataBuffer = 0;
+        clients = new ArrayList<>();
+        Metrics metrics = Metrics.get();
+        sendStats = metrics.histogram("socket_send_seconds",
+                "Gathering write of the parts to a streaming client, until complete");
+        framesCount = metrics.counter("frames_total", "Frames logged", "target", TAG);
+        bytesCount = metrics.counter("bytes_total", "Bytes logged, before compression", "target", TAG);
+        droppedCount = metrics.counter("dropped_total", "Frames dropped", "target", TAG);
         stopped = true;
+        setBatching(BATCH_BYTES, BATCH_LATENCY, BATCH_MAX);
+    }
+
+    /**
+     * Configure the coalescing of sensor data rows
+     *
+     * @param flushBytes the size beyond which a batch is sent
+     * @param maxLatency the maximum latency of a batch (ms)
+     * @param maxBytes the maximum size of a batch, beyond which the oldest rows are dropped
+     */
+    public synchronized void setBatching(int flushBytes, long maxLatency, int maxBytes) {
+        batchBytes = flushBytes > 0 ? flushBytes : BATCH_BYTES;
+        batchLatency = (maxLatency > 0 ? maxLatency : BATCH_LATENCY) * 1000000L;
+        batchMax = maxBytes > 0 ? maxBytes : BATCH_MAX;
+        for (Client c : clients)
+            c.batch.configure(batchBytes, batchLatency, batchMax);
     }
 
     public void setRecordingCallback(MainActivity main) {
         this.main = main;
     }
 
-    void setTextHeaders(String headers) {
-        this.textHeaders = headers;
+    /**
+     * Set the headers of the sensor data (the CSV headers line, or the header of the binary sensor
+     * log), kept apart from the batches so that they are never dropped, and sent again to every
+     * client before its next data part
+     *
+     * @param headers the headers (null if none)
+     */
+    synchronized void setDataHeaders(byte[] headers) {
+        this.dataHeaders = headers;
+        for (Client c : clients)
+            c.headersSent = false;
     }
 
     /**
@@ -166,34 +548,87 @@ public class StreamingServer implements Runnable {
         Util.Log.i(TAG, "Start Streaming");
 
         this.port = port;
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            Util.Log.e(TAG, "Cannot open selector", e);
+            return false;
+        }
 
         running = true;
-        thread = new Thread(this);
+        stopped = false;
+        thread = new Thread(this, TAG);
         thread.setDaemon(true);
         thread.start();
         return true;
     }
 
     /**
-     * Stream data
+     * Stream a frame to all the clients, without copying it: a reference is held until it is
+     * streamed, or until it is replaced by a newer frame (if a client is too slow)
      *
-     * @param data
+     * @param frame the encoded frame
      * @param timestamp
-     * @throws IOException
+     * @param contentType
      */
-    public synchronized void streamImage(byte[] data, long timestamp, String contentType) {
-        buffers[currentBuffer].setData(data, timestamp, contentType);
-        newImage = true;
-        notify();
+    public void streamImage(FrameBuffer frame, long timestamp, String contentType) {
+        synchronized (this) {
+            Part part = new Part(frame, timestamp, contentType, imageSeq++);
+            for (Client c : clients)
+                if (c.isStreaming())
+                    c.offerImage(part);
+        }
+        wakeup();
     }
 
-    public synchronized void streamData(byte[] data, long timestamp) {
-        dataBuffers[currentDataBuffer].appendData(data, timestamp);
-        newData = true;
-        notify();
+    /**
+     * Stream a repetition of the previous frame to the clients of the binary protocol, as a header
+     * with no payload (the multipart viewers keep showing the previous frame)
+     *
+     * @param frame the frame repeated (streamed in full to no one)
+     * @param timestamp
+     * @param contentType
+     */
+    public void streamRepeat(FrameBuffer frame, long timestamp, String contentType) {
+        synchronized (this) {
+            Part part = new Part(frame, timestamp, contentType, imageSeq++, true);
+            for (Client c : clients)
+                if (c.isStreaming())
+                    c.offerRepeat(part);
+        }
+        wakeup();
     }
 
+    /**
+     * Stream sensor data to all the clients, coalescing the rows
+     *
+     * @param data the data
+     * @param offset the offset of the data
+     * @param length the length of the data
+     * @param timestamp
+     * @param contentType
+     */
+    public void streamData(byte[] data, int offset, int length, long timestamp, String contentType) {
+        boolean wakeup = false;
+        synchronized (this) {
+            dataType = contentType;
+            long now = System.nanoTime();
+            for (Client c : clients)
+                if (c.isStreaming()) {
+                    boolean empty = c.batch.length() == 0;
+                    c.batch.append(data, offset, length, timestamp, now);
+                    wakeup |= empty || c.batch.isReady(now);//new deadline, or ready to be sent
+                }
+        }
+        if (wakeup)
+            wakeup();
+    }
 
+    private void wakeup() {
+        Selector s = selector;
+        if (s != null)
+            s.wakeup();
+    }
 
     /**
      * Stop the server
@@ -202,17 +637,17 @@ public class StreamingServer implements Runnable {
         if (running) {
             running = false;
             Util.Log.i(TAG, "Stop Streaming");
-            try { serverSocket.close(); }//in case is accepting
-            catch(Exception e) {Util.Log.e(TAG, "Can't stop?", e);}
-            newData = true;
-            notify();
+            wakeup();
         }
     }
 
+    /**
+     * Drop the current clients, keeping the server listening
+     */
     public synchronized void restart() {
         Util.Log.i(TAG, "Restart Streaming");
-        if (thread!=null)
-            thread.interrupt();
+        kick = true;
+        wakeup();
     }
 
     /**
@@ -220,158 +655,132 @@ public class StreamingServer implements Runnable {
      */
     @Override
     public void run() {
-        stopped = false;
-        while (running)
-            try {
-                Util.Log.d(TAG, "Listen for incoming connections...");
-                acceptAndSStream();
-            } catch( SocketException e ) {
-                //e.printStackTrace();
-            } catch ( Exception e ) {
-                Util.Log.e(TAG, "Error while streaming", e);
-                try { Thread.sleep(1000); } catch (InterruptedException ie) { }
-            } finally {
-                if (main != null)
-                    main.runOnUiThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            main.stopRecording(R.string.toast_recording_endofstream);
-                        }
-                    });
-            }
-        stopped = true;
-    }
-
-    /**
-     * Listen for incoming connections and stream after receiving one
-     *
-     * @throws IOException
-     */
-    private void acceptAndSStream() throws IOException {
-
-        DataOutputStream stream = null;
-
+        ServerSocketChannel server = null;
         try {
-            serverSocket = new ServerSocket(port);
-            serverSocket.setSoTimeout(0);
-
-            // accept connection
-            do try {
-                socket = serverSocket.accept();
-                Util.Log.d(TAG, "Connected to " + socket);
-                delayLimit = DELAY_LIMIT;
-            } catch (final SocketTimeoutException e) {
-                if (!running)
-                    return;
-            }
-            while (socket == null);
-
-            serverSocket.close();
-            stream = new DataOutputStream(socket.getOutputStream());
-            stream.writeBytes(HTTP_HEADER);
-            Util.Log.v(TAG, HTTP_HEADER);
-            int toFlush = HTTP_HEADER.length();
-
-            // start recording automatically if set
-            if (main!=null)
-                main.runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        main.startRecording();
-                    }
-                });
-
-            // stream current data
-            out:
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+            Util.Log.d(TAG, "Listen for incoming connections...");
+            long timeout = 0;
             while (running) {
-                Buffer buffer, dataBuffer;
+                selector.select(timeout);
                 synchronized (this) {
-
-                    while (!newData && !newImage)
-                        try {
-                            //Util.Log.d(TAG, "Wait for data...");
-                            wait();
-                        } catch (final InterruptedException stopMayHaveBeenCalled) {
-                            Util.Log.d(TAG, "Stop may have been called...");
-                            break out;
+                    if (kick) {
+                        kick = false;
+                        closeAll();
+                    }
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept(server);
+                        else
+                            handle(key);
+                    }
+                    //write when the flush policy says so, or wake up at the first deadline
+                    long now = System.nanoTime(), deadline = Long.MAX_VALUE;
+                    for (Client c : clients)
+                        if (c.key.isValid() && c.isStreaming()) {
+                            boolean write = c.shouldWrite(now);
+                            c.key.interestOps(write
+                                    ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                                    : SelectionKey.OP_READ);
+                            if (!write)
+                                deadline = Math.min(deadline, Math.min(c.batch.getDeadline(), c.getHoldDeadline()));
                         }
-
-                    dataBuffer = newData ? dataBuffers[currentDataBuffer++] : null;
-                    buffer = newImage ? buffers[currentBuffer++] : null;
-                    //Util.Log.v(TAG, "SWAP!");
-                    currentBuffer %= N_BUFFERS;
-                    currentDataBuffer %= N_BUFFERS;
-                    if (newData)
-                        dataBuffers[currentDataBuffer].length = 0;
-                    newData = false;
-                    newImage = false;
+                    timeout = deadline == Long.MAX_VALUE ? 0 : Math.max(1, (deadline - now + 999999) / 1000000);
                 }
-
-                if (dataBuffer!=null) {
-                    stream.writeBytes(BOUNDARY_LINE);
-                    toFlush += BOUNDARY_LENGTH;
-                    String part = dataBuffer.toString();
-                    stream.writeBytes(part);
-                    toFlush += part.length();
-                    if (textHeaders!=null) {
-                        stream.writeBytes(textHeaders);
-                        toFlush += textHeaders.length();
-                        textHeaders = null;
-                    }
-                    stream.write(dataBuffer.data, 0, dataBuffer.length);
-                    stream.writeBytes("\r\n");
-                    toFlush += dataBuffer.length+2;
+            }
+        } catch (Exception e) {
+            Util.Log.e(TAG, "Error while streaming", e);
+        } finally {
+            Util.Log.d(TAG, "Closing down");
+            synchronized (this) {
+                closeAll();
+                try {
+                    if (server != null)
+                        server.close();
+                    selector.close();
+                } catch (IOException e) {
+                    Util.Log.e(TAG, "Error closing streaming", e);
                 }
+                selector = null;
+                stopped = true;
+            }
+        }
+    }
 
-                if (buffer!=null) {
-//                    long delay = SystemClock.elapsedRealtime() - buffer.timestamp;
-//                    if (delay > delayLimit) {
-//                        Util.Log.i(TAG, "Streaming is delayed by " + delay/1000000L + "ms");
-//                        delayLimit *= 2;
-//                    } else if (delay > DELAY_LIMIT) {
-//                        Util.Log.i(TAG, "Streaming is delayed by " + delay/1000000L + "ms");
-//                        delayLimit /= 2;
-//                    }
-                    stream.writeBytes(BOUNDARY_LINE);
-                    toFlush += BOUNDARY_LENGTH;
-                    String part = buffer.toString();
-                    stream.writeBytes(part);
-                    toFlush += part.length();
-                    stream.write(buffer.data, 0, buffer.length);
-                    stream.writeBytes("\r\n");
-                    toFlush += buffer.length+2;
-//                    if (buffer.contentType.equals("text/csv"))
-//                        Util.Log.i(TAG, "TIME: "+buffer.timestamp);
-                }
+    private void accept(ServerSocketChannel server) throws IOException {
+        SocketChannel channel = server.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Client client = new Client(channel, key);
+        key.attach(client);
+        clients.add(client);
+        Util.Log.d(TAG, "Connected to " + channel.socket().getRemoteSocketAddress());
+    }
 
-                if (toFlush>CHUNK_SIZE) {
-                    stream.flush();
-                    toFlush = 0;
-                }
+    private void handle(SelectionKey key) {
+        Client client = (Client) key.attachment();
+        try {
+            if (key.isReadable() && !client.read()) {
+                close(client, false);
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                client.write(System.nanoTime());
+                if (client.metrics && client.buffers == null)
+                    close(client, false);
             }
+        } catch (IOException e) {
+            Util.Log.d(TAG, "Client lost: " + e.getMessage());
+            close(client, false);
+        }
+    }
 
-            stream.writeBytes(BOUNDARY_LINE+"--\r\n\r\n");
-            stream.flush();
+    /**
+     * A client starts streaming. Start recording automatically if set
+     */
+    private void onStreaming(Client client) {
+        if (main!=null && countStreaming() == 1)
+            main.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    main.startRecording();
+                }
+            });
+    }
 
-        } catch (IOException e) {
-            throw e;
-        } catch(Throwable t) {
-            Util.Log.e(TAG, "Unexpected error", t);
-        } finally {
-            Util.Log.d(TAG, "Closing down");
-            if (serverSocket!=null)
-                serverSocket.close();
-            try {
-                if (stream!=null)
-                    stream.close();
-            } catch (final Exception e) {
-                Util.Log.e(TAG, "Error closing streaming", e);
-            }
-            try { if (socket!=null) socket.close(); }
-            catch (final Exception e) { Util.Log.e(TAG, "Error closing streaming client", e); }
+    private int countStreaming() {
+        int ret = 0;
+        for (Client c : clients)
+            if (c.isStreaming())
+                ret++;
+        return ret;
+    }
 
-        }
+    private void close(Client client, boolean end) {
+        boolean streaming = client.isStreaming();
+        client.close(end);
+        clients.remove(client);
+        if (main != null && streaming && countStreaming() == 0)
+            main.runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    main.stopRecording(R.string.toast_recording_endofstream);
+                }
+            });
+    }
 
+    private void closeAll() {
+        for (Client c : new ArrayList<>(clients))
+            close(c, true);
     }
 
     public void dispose() {
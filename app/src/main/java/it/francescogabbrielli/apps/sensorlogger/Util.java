@@ -28,24 +28,52 @@ public class Util {
     public final static String PREF_FILENAME_FRAME  = "pref_filename_frame";
 
     public final static String PREF_FILE            = "pref_file";
+    public final static String PREF_FILE_MMAP       = "pref_file_mmap";
+    public final static String PREF_FILE_MMAP_EXTENT = "pref_file_mmap_extent";
     public final static String PREF_FTP             = "pref_ftp";
     public final static String PREF_FTP_ADDRESS     = "pref_ftp_address";
     public final static String PREF_FTP_USER        = "pref_ftp_user";
     public final static String PREF_FTP_PW          = "pref_ftp_pw";
     public final static String PREF_FTP_SKIP        = "pref_ftp_skip";
+    public final static String PREF_FTP_SESSIONS    = "pref_ftp_sessions";
+    public final static String PREF_FTP_SPOOL       = "pref_ftp_spool";
+    public final static String PREF_FTP_SPOOL_RATE  = "pref_ftp_spool_rate";
     public final static String PREF_STREAMING           = "pref_streaming";
     public final static String PREF_STREAMING_PORT      = "pref_streaming_port";
     public final static String PREF_STREAMING_RECORD    = "pref_streaming_record";
+    public final static String PREF_STREAMING_BATCH_BYTES   = "pref_streaming_batch_bytes";
+    public final static String PREF_STREAMING_BATCH_LATENCY = "pref_streaming_batch_latency";
+    public final static String PREF_STREAMING_BATCH_MAX     = "pref_streaming_batch_max";
+    public final static String PREF_STREAMING_FLUSH         = "pref_streaming_flush";
+    /** Suffixes of the queue preferences of each target (i.e. "pref_ftp" + PREF_QUEUE_OPS) */
+    public final static String PREF_QUEUE_OPS           = "_queue_ops";
+    public final static String PREF_QUEUE_BYTES         = "_queue_bytes";
+    public final static String PREF_QUEUE_POLICY        = "_queue_policy";
+    public final static String PREF_QUEUE_EVERY         = "_queue_every";
+    /** Suffixes of the compression preferences of each target (i.e. "pref_file" + PREF_COMPRESS) */
+    public final static String PREF_COMPRESS            = "_compress";
+    public final static String PREF_COMPRESS_LEVEL      = "_compress_level";
+    public final static String PREF_COMPRESS_BLOCK      = "_compress_block";
     public final static String PREF_LOGGING_RATE        = "pref_logging_rate";
     public final static String PREF_LOGGING_HEADERS     = "pref_logging_headers";
     public final static String PREF_LOGGING_TIME        = "pref_logging_time";
     public final static String PREF_LOGGING_TIMESTAMP   = "pref_logging_timestamp";
     public final static String PREF_LOGGING_TIMESTAMP_FORMAT = "pref_logging_timestamp_format";
     public final static String PREF_LOGGING_CHUNK       = "pref_logging_chunk";
+    public final static String PREF_LOGGING_CONTAINER   = "pref_logging_container";
+    public final static String PREF_LOGGING_ALIGN       = "pref_logging_align";
+    public final static String PREF_LOGGING_SKEW        = "pref_logging_skew";
+    public final static String PREF_LOGGING_FORMAT      = "pref_logging_format";
+    public final static String PREF_LOGGING_BLOCK       = "pref_logging_block";
+    public final static String PREF_LOGGING_TRACE       = "pref_logging_trace";
+    public final static String PREF_LOGGING_TRACE_EVENTS = "pref_logging_trace_events";
 
     public final static String PREF_CAPTURE_CAMERA      = "pref_capture_camera";
     public final static String PREF_CAPTURE_IMGFORMAT   = "pref_capture_imgformat";
     public final static String PREF_CAPTURE_SOUND       = "pref_capture_sound";
+    public final static String PREF_CAPTURE_WORKERS     = "pref_capture_workers";
+    public final static String PREF_CAPTURE_YUV         = "pref_capture_yuv";
+    public final static String PREF_CAPTURE_GRAY        = "pref_capture_gray";
 
     public final static String PREF_HELP_RESET          = "pref_help_reset";
 
@@ -53,6 +81,22 @@ public class Util {
     public final static String PREF_ROTATION_Y          = "pref_rotation_y";
     public final static String PREF_ROTATION_Z          = "pref_rotation_z";
 
+    public final static String PREF_SENSORS_HISTORY     = "pref_sensors_history";
+
+    /** Text sensor data format (.csv) */
+    public final static String FORMAT_CSV = "csv";
+    /** Binary sensor data format (see {@link SensorLogHeader}) */
+    public final static String FORMAT_BINARY = "bin";
+    /** Compressed binary sensor data format (see {@link GorillaEncoder}) */
+    public final static String FORMAT_GORILLA = "gor";
+
+    /** Archive of frames and sensor data (see {@link TarArchive}) */
+    public final static String CONTAINER_TAR = "tar";
+    /** Motion-JPEG video of the frames (see {@link AviArchive}) */
+    public final static String CONTAINER_AVI = "avi";
+    /** Indexed single-file session (see {@link SessionArchive}) */
+    public final static String CONTAINER_SESSION = "session";
+
     public final static String EXTRA_TYPE       = "extra_type";
     public final static String EXTRA_DATA       = "extra_data";
     public final static String EXTRA_FILENAME   = "extra_filename";
@@ -172,6 +216,23 @@ public class Util {
         return ret;
     }
 
+    /**
+     * Get the filename of the sensor data, with the extension of the selected format
+     *
+     * @param prefs the app preferences
+     * @return the filename
+     */
+    public static String getDataFilename(SharedPreferences prefs) {
+        String filename = prefs.getString(PREF_FILENAME_DATA, "sensors.csv");
+        String format = prefs.getString(PREF_LOGGING_FORMAT, "");
+        if (FORMAT_BINARY.equals(format) || FORMAT_GORILLA.equals(format)) {
+            int dot = filename.lastIndexOf('.');
+            filename = (dot>0 ? filename.substring(0, dot) : filename)
+                    + (FORMAT_BINARY.equals(format) ? SensorLogHeader.EXTENSION : GorillaEncoder.EXTENSION);
+        }
+        return filename;
+    }
+
     public static int getIntPref(SharedPreferences prefs, String prefKey) {
         Object val = prefs.getAll().get(prefKey);
         if (val instanceof Boolean)
@@ -0,0 +1,214 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A minimal FTP server on the loopback, storing the uploads in a local folder: just the commands
+ * used by {@link FtpSession} (passive mode only)
+ */
+class FakeFtpServer implements Runnable {
+
+    private final File root;
+    private final ServerSocket server;
+    private final Thread thread;
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Socket> controls = Collections.synchronizedList(new ArrayList<Socket>());
+    /** Drop the data connection of the next upload after these many bytes (-1=never) */
+    volatile long failAfter = -1;
+
+    /**
+     * Start a new server
+     *
+     * @param root the folder of the uploads (the login directory is /home)
+     */
+    FakeFtpServer(File root) throws IOException {
+        this.root = root;
+        new File(root, "home").mkdirs();
+        server = new ServerSocket(0, 5, InetAddress.getLoopbackAddress());
+        thread = new Thread(this, "FakeFtpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getAddress() {
+        return "127.0.0.1";
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    /** @return the commands received so far (without arguments) */
+    List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+
+    /**
+     * @param path a path on the server
+     * @return the local file
+     */
+    File file(String path) {
+        return new File(root, path);
+    }
+
+    /**
+     * Close the control connections, as a server dropping idle clients
+     */
+    void dropConnections() throws IOException {
+        synchronized (controls) {
+            for (Socket s : controls)
+                s.close();
+            controls.clear();
+        }
+    }
+
+    void stop() throws IOException {
+        server.close();
+        dropConnections();
+    }
+
+    @Override
+    public void run() {
+        while (!server.isClosed())
+            try {
+                final Socket control = server.accept();
+                controls.add(control);
+                new Thread("FakeFtpSession") {
+                    @Override
+                    public void run() {
+                        try {
+                            session(control);
+                        } catch (IOException e) {
+                            //client gone
+                        }
+                    }
+                }.start();
+            } catch (IOException e) {
+                return;
+            }
+    }
+
+    private void session(Socket control) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), "UTF-8"));
+        Writer out = new OutputStreamWriter(control.getOutputStream(), "UTF-8");
+        String cwd = "/home";
+        long rest = 0;
+        ServerSocket passive = null;
+        reply(out, "220 fake");
+        try {
+            for (String line; (line = in.readLine()) != null; ) {
+                int space = line.indexOf(' ');
+                String cmd = (space > 0 ? line.substring(0, space) : line).toUpperCase();
+                String arg = space > 0 ? line.substring(space + 1) : "";
+                commands.add(cmd);
+                switch (cmd) {
+                    case "USER":
+                        reply(out, "331 password");
+                        break;
+                    case "PASS":
+                        reply(out, "230 logged in");
+                        break;
+                    case "PWD":
+                        reply(out, "257 \"" + cwd + "\"");
+                        break;
+                    case "MKD":
+                        reply(out, file(resolve(cwd, arg)).mkdir() ? "257 created" : "550 exists");
+                        break;
+                    case "CWD":
+                        String dir = resolve(cwd, arg);
+                        if (file(dir).isDirectory()) {
+                            cwd = dir;
+                            reply(out, "250 ok");
+                        } else
+                            reply(out, "550 no such folder");
+                        break;
+                    case "SIZE":
+                        File f = file(resolve(cwd, arg));
+                        reply(out, f.isFile() ? "213 " + f.length() : "550 no such file");
+                        break;
+                    case "REST":
+                        rest = Long.parseLong(arg.trim());
+                        reply(out, "350 restarting");
+                        break;
+                    case "PASV":
+                        if (passive != null)
+                            passive.close();
+                        passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = passive.getLocalPort();
+                        reply(out, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")");
+                        break;
+                    case "STOR":
+                        if (passive == null) {
+                            reply(out, "425 no data connection");
+                            break;
+                        }
+                        reply(out, "150 ok");
+                        boolean complete = store(passive, file(resolve(cwd, arg)), rest);
+                        passive.close();
+                        passive = null;
+                        rest = 0;
+                        reply(out, complete ? "226 done" : "426 aborted");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 bye");
+                        return;
+                    default:
+                        reply(out, "200 ok");
+                }
+            }
+        } finally {
+            if (passive != null)
+                passive.close();
+            control.close();
+        }
+    }
+
+    private boolean store(ServerSocket passive, File file, long rest) throws IOException {
+        Socket data = passive.accept();
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        try {
+            f.setLength(rest);
+            f.seek(rest);
+            InputStream in = data.getInputStream();
+            byte[] buffer = new byte[4096];
+            long limit = failAfter, received = 0;
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                if (limit >= 0 && received + n > limit) {
+                    f.write(buffer, 0, (int) (limit - received));
+                    failAfter = -1;
+                    return false;
+                }
+                f.write(buffer, 0, n);
+                received += n;
+            }
+            return true;
+        } finally {
+            f.close();
+            data.close();
+        }
+    }
+
+    private static String resolve(String cwd, String path) {
+        return path.startsWith("/") ? path : cwd + "/" + path;
+    }
+
+    private static void reply(Writer out, String line) throws IOException {
+        out.write(line + "\r\n");
+        out.flush();
+    }
+}
@@ -0,0 +1,118 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upload to a {@link FakeFtpServer} with a {@link FtpSession}
+ */
+public class FtpSessionTest {
+
+    private File remote;
+    private FakeFtpServer server;
+    private FtpSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        remote = File.createTempFile("ftp", "");
+        remote.delete();
+        remote.mkdirs();
+        server = new FakeFtpServer(remote);
+        session = new FtpSession("test", server.getAddress(), server.getPort(), "user", "password");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.disconnect();
+        server.stop();
+        delete(remote);
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                delete(c);
+        f.delete();
+    }
+
+    private static byte[] bytes(int from, int length) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++)
+            ret[i] = (byte) (from + i);
+        return ret;
+    }
+
+    private byte[] read(String path) throws IOException {
+        File f = server.file(path);
+        byte[] ret = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            for (int n = 0; n < ret.length; )
+                n += in.read(ret, n, ret.length - n);
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    @Test
+    public void storesInTheRecordingFolders() throws Exception {
+        session.store("2018-01", "0001.jpg", FrameBuffer.wrap(bytes(0, 100)));
+        session.store("2018-01", "0002.jpg", FrameBuffer.wrap(bytes(1, 100)));
+        session.store("2018-02", "0001.jpg", FrameBuffer.wrap(bytes(2, 50)));
+        assertArrayEquals(bytes(0, 100), read("home/2018-01/0001.jpg"));
+        assertArrayEquals(bytes(1, 100), read("home/2018-01/0002.jpg"));
+        assertArrayEquals(bytes(2, 50), read("home/2018-02/0001.jpg"));
+        assertEquals(3, session.getFiles());
+        assertTrue(session.toString().contains("250 bytes"));
+    }
+
+    @Test
+    public void reconnectsWhenTheConnectionIsDropped() throws Exception {
+        session.store("2018-01", "0001.jpg", FrameBuffer.wrap(bytes(0, 100)));
+        server.dropConnections();
+        session.store("2018-01", "0002.jpg", FrameBuffer.wrap(bytes(1, 100)));
+        assertArrayEquals(bytes(1, 100), read("home/2018-01/0002.jpg"));
+        assertEquals(2, session.getFiles());
+        assertTrue(session.toString().contains("0 failed, 1 reconnects"));
+    }
+
+    @Test
+    public void failsWhenTheServerIsGone() throws Exception {
+        session.store("2018-01", "0001.jpg", FrameBuffer.wrap(bytes(0, 100)));
+        server.stop();
+        try {
+            session.store("2018-01", "0002.jpg", FrameBuffer.wrap(bytes(1, 100)));
+            fail("stored without a server");
+        } catch (IOException e) {
+            assertFalse(session.isConnected());
+            assertTrue(session.toString().contains("1 failed"));
+        }
+    }
+
+    @Test
+    public void resumesAtTheServerSize() throws Exception {
+        OutputStream out = session.open("2018-01", "data.csv");
+        out.write(bytes(0, 60));
+        out.close();
+        assertTrue(session.complete());
+        assertEquals(60, session.size("2018-01", "data.csv"));
+        assertEquals(-1, session.size("2018-01", "none.csv"));
+        out = session.open("2018-01", "data.csv", 60);
+        out.write(bytes(60, 40));
+        out.close();
+        assertTrue(session.complete());
+        assertArrayEquals(bytes(0, 100), read("home/2018-01/data.csv"));
+    }
+
+}
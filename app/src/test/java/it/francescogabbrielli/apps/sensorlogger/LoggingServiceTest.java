@@ -0,0 +1,60 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check which targets receive each operation of {@link LoggingService}
+ */
+public class LoggingServiceTest {
+
+    @Test
+    public void closeReachesEveryTarget() throws Exception {
+        //a shared target, an image-only one (i.e. ftp) and a data-only one
+        List<String> all = Arrays.asList("file", "ftp", "data"),
+                images = Arrays.asList("file", "ftp"),
+                data = Arrays.asList("file", "data");
+        assertEquals(images, LoggingService.getTargets(LogTarget.SEND, all, images, data));
+        assertEquals(images, LoggingService.getTargets(LogTarget.REPEAT, all, images, data));
+        assertEquals(data, LoggingService.getTargets(LogTarget.OPEN, all, images, data));
+        assertEquals(data, LoggingService.getTargets(LogTarget.WRITE, all, images, data));
+        assertEquals(all, LoggingService.getTargets(LogTarget.CLOSE, all, images, data));
+    }
+
+    /** A target instance: equal to the other instances of the same destination */
+    private static class Target {
+        final String destination;
+
+        Target(String destination) {
+            this.destination = destination;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Target && destination.equals(((Target) obj).destination);
+        }
+
+        @Override
+        public int hashCode() {
+            return destination.hashCode();
+        }
+    }
+
+    @Test
+    public void attachOncePerDestination() throws Exception {
+        //a shared target, an image-only one, and one with an instance for each stream
+        Target file = new Target("file"), stream = new Target("stream"),
+                ftpImages = new Target("ftp"), ftpData = new Target("ftp");
+        List<Target> all = Arrays.asList(file, stream, ftpImages, ftpData),
+                data = Arrays.asList(file, ftpData);
+        List<Target> destinations = LoggingService.getDestinations(all, data);
+        assertEquals(3, destinations.size());
+        assertSame(file, destinations.get(0));
+        assertSame(stream, destinations.get(1));
+        assertSame(ftpData, destinations.get(2));
+    }
+}
@@ -0,0 +1,127 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Upload a spool to a {@link FakeFtpServer} with a {@link SpoolUploader}
+ */
+public class SpoolUploaderTest {
+
+    private final static long TIMEOUT = 10000;
+
+    private File local, remote;
+    private FakeFtpServer server;
+    private SpoolUploader uploader;
+
+    @Before
+    public void setUp() throws Exception {
+        local = temp("spool");
+        remote = temp("ftp");
+        server = new FakeFtpServer(remote);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (uploader != null) {
+            uploader.quit();
+            uploader.join(TIMEOUT);
+        }
+        server.stop();
+        delete(local);
+        delete(remote);
+    }
+
+    private static File temp(String prefix) throws Exception {
+        File ret = File.createTempFile(prefix, "");
+        ret.delete();
+        ret.mkdirs();
+        return ret;
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                delete(c);
+        f.delete();
+    }
+
+    /** Start uploading (the partial files left in the spool are recovered) */
+    private void start() {
+        FtpSession session = new FtpSession("test", server.getAddress(), server.getPort(), "user", "password");
+        uploader = new SpoolUploader(local, session, 0);
+        uploader.start();
+    }
+
+    private File spool(String folder, String name, int length) throws Exception {
+        File dir = new File(local, folder);
+        dir.mkdirs();
+        File ret = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(ret);
+        for (int i = 0; i < length; i++)
+            out.write(i);
+        out.close();
+        if (uploader != null)
+            uploader.wakeup();
+        return ret;
+    }
+
+    private static void awaitUpload(File file) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while (file.exists() && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertFalse(file + " not uploaded", file.exists());
+    }
+
+    @Test
+    public void uploadsAndDeletes() throws Exception {
+        File first = spool("2018-01", "0001.jpg", 100), second = spool("2018-01", "data.csv", 200);
+        start();
+        awaitUpload(first);
+        awaitUpload(second);
+        assertEquals(100, server.file("home/2018-01/0001.jpg").length());
+        assertEquals(200, server.file("home/2018-01/data.csv").length());
+        assertFalse(new File(local, ".cursor").exists());
+    }
+
+    @Test
+    public void recoversPartials() throws Exception {
+        spool("2018-01", "data.csv.part", 100);
+        start();
+        awaitUpload(new File(new File(local, "2018-01"), "data.csv"));
+        assertEquals(100, server.file("home/2018-01/data.csv").length());
+    }
+
+    @Test
+    public void resumesAfterADroppedUpload() throws Exception {
+        server.failAfter = 600;
+        File file = spool("2018-01", "data.csv", 1000);
+        start();
+        awaitUpload(file);
+        File uploaded = server.file("home/2018-01/data.csv");
+        assertEquals(1000, uploaded.length());
+        assertTrue(server.getCommands().contains("REST"));
+        assertEquals(2, Collections.frequency(server.getCommands(), "STOR"));
+    }
+
+    @Test
+    public void uploadsSessionsBackToBack() throws Exception {
+        start();
+        awaitUpload(spool("2018-01", "data.csv", 100));
+        awaitUpload(spool("2018-02", "data.csv", 200));
+        //the same session, both folders in the login directory
+        assertEquals(100, server.file("home/2018-01/data.csv").length());
+        assertEquals(200, server.file("home/2018-02/data.csv").length());
+        assertFalse(server.file("home/2018-01/2018-02").exists());
+        assertEquals(1, Collections.frequency(server.getCommands(), "PASS"));
+    }
+
+}
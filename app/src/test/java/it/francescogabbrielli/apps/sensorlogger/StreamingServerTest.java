@@ -0,0 +1,22 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the negotiation of the binary protocol of {@link StreamingServer} (the parts are
+ * framed by {@link PartFramer})
+ */
+public class StreamingServerTest {
+
+    @Test
+    public void binaryRequest() throws Exception {
+        assertTrue(StreamingServer.isBinaryRequest("GET /binary HTTP/1.1\r\nHost: phone\r\n\r\n"));
+        assertTrue(StreamingServer.isBinaryRequest("GET /?format=binary HTTP/1.1\r\n\r\n"));
+        assertTrue(StreamingServer.isBinaryRequest("GET / HTTP/1.1\r\naccept: " + StreamingServer.BINARY_TYPE + "\r\n\r\n"));
+        assertFalse(StreamingServer.isBinaryRequest("GET / HTTP/1.1\r\nAccept: */*\r\n\r\n"));
+        assertFalse(StreamingServer.isBinaryRequest("GET /"));
+    }
+
+}
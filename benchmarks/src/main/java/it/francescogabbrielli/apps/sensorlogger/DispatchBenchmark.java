@@ -0,0 +1,107 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The dispatch of a frame to the log targets, as in LoggingService.log and LogOperation: a pooled
+ * buffer shared by all the targets, retained by each task through the bounded queue of its target,
+ * and released when the task is done. The handler threads are not modelled: the tasks run on the
+ * benchmark thread, right after being queued
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    /** Number of targets: file only, file + ftp + streaming */
+    @Param({"1", "3"})
+    int targets;
+
+    /** Size of the JPEG frame: 640x480, 1920x1080 */
+    @Param({"40000", "250000"})
+    int frameSize;
+
+    private BufferPool pool;
+    private LogQueue[] queues;
+    private Task[] tasks;
+
+    /** A task of a target, as LogOperation.Task */
+    private static class Task implements LogQueue.Item {
+
+        private final LogQueue queue;
+        private FrameBuffer data;
+
+        Task(LogQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public int size() {
+            return data != null ? data.length() : 0;
+        }
+
+        @Override
+        public boolean isDroppable() {
+            return true;
+        }
+
+        @Override
+        public void discard() {
+            if (data != null)
+                data.release();
+        }
+
+        void run(Blackhole bh) {
+            if (!queue.start(this))
+                return;
+            try {
+                bh.consume(data.data()[data.length() - 1]);
+            } finally {
+                queue.done(this);
+                discard();
+            }
+        }
+    }
+
+    @Setup
+    public void setup() {
+        pool = new BufferPool(8, frameSize);
+        queues = new LogQueue[targets];
+        tasks = new Task[targets];
+        for (int t = 0; t < targets; t++)
+            queues[t] = new LogQueue(LogQueue.DROP_OLDEST, 32, 32L * frameSize, 2);
+    }
+
+    @Benchmark
+    public void dispatch(Blackhole bh) {
+        FrameBuffer data = pool.acquire(frameSize).setLength(frameSize);
+        for (int t = 0; t < targets; t++) {
+            data.retain();
+            Task task = new Task(queues[t]);
+            task.data = data;
+            tasks[t] = queues[t].offer(task) ? task : null;
+            if (tasks[t] == null)
+                data.release();
+        }
+        data.release();
+        for (int t = 0; t < targets; t++)
+            if (tasks[t] != null)
+                tasks[t].run(bh);
+    }
+}
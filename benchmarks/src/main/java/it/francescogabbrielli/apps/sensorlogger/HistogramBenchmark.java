@@ -0,0 +1,51 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of the instrumentation of each stage: a sample recorded in a shared {@link Histogram},
+ * from one thread and from the encoding workers
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistogramBenchmark {
+
+    private Histogram histogram;
+
+    @State(Scope.Thread)
+    public static class Sample {
+        long value = 1234567L;
+    }
+
+    @Setup
+    public void setup() {
+        histogram = new Histogram("benchmark");
+    }
+
+    @Benchmark
+    public void record(Sample sample) {
+        histogram.record(sample.value = sample.value * 6364136223846793005L + 1442695040888963407L >>> 40);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordShared(Sample sample) {
+        record(sample);
+    }
+}
@@ -0,0 +1,45 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The rotation of a 3d reading, in place (as in the recorder) and allocating the result
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+
+    private Rotation rotation;
+    private float[] values;
+
+    @Setup
+    public void setup() {
+        rotation = Rotation.getRotation(1, 2, 3);
+        values = new float[] {0.12f, -9.81f, 0.43f};
+    }
+
+    @Benchmark
+    public float[] inPlace() {
+        return rotation.multiply(values, values);
+    }
+
+    @Benchmark
+    public float[] allocating() {
+        return rotation.multiply(values);
+    }
+}
@@ -0,0 +1,69 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The .csv row of each frame, as in Recorder.readSensors: the axes rotation of the 3d sensors
+ * and the formatting of the values, with and without the skew columns
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowFormattingBenchmark {
+
+    /** Number of sensors: a phone IMU, a 9-axis IMU with light/pressure, everything */
+    @Param({"3", "6", "12"})
+    int sensors;
+
+    @Param({"false", "true"})
+    boolean skew;
+
+    private float[][] values;
+    private int[] lengths;
+    private long time;
+    private Rotation rotation;
+    private SensorAlignment alignment;
+    private SensorRowFormatter formatter;
+    private CsvEncoder encoder;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(42);
+        values = new float[sensors][3];
+        lengths = new int[sensors];
+        for (int s = 0; s < sensors; s++) {
+            lengths[s] = s % 4 == 3 ? 1 : 3;//a scalar sensor every 4
+            for (int i = 0; i < 3; i++)
+                values[s][i] = (float) r.nextGaussian() * 10;
+        }
+        rotation = Rotation.getRotation(1, 0, 0);
+        alignment = new SensorAlignment(SensorAlignment.HOLD, sensors, 3);
+        formatter = new SensorRowFormatter(true, skew);
+        encoder = new CsvEncoder(1024);
+    }
+
+    @Benchmark
+    public CsvEncoder row() {
+        time += 66666667L;
+        for (int s = 0; s < sensors; s++)
+            if (lengths[s] == 3)
+                rotation.multiply(values[s], values[s]);
+        return formatter.append(encoder.reset(), time, values, lengths, alignment);
+    }
+}
@@ -0,0 +1,99 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the sensor data encodings: the .csv rows of the recorder, the raw binary blocks
+ * and the Gorilla blocks, over the same series (a 9-axis IMU and the light sensor at 15fps).
+ * Scores are per row
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SensorCodecBenchmark {
+
+    private final static int ROWS = 10000, COLUMNS = 10, BLOCK = 150;
+    private final static long FRAME = 66666667L;
+
+    @Param({"csv", "raw", "gorilla"})
+    String encoding;
+
+    private final long[] timestamps = new long[ROWS];
+    private final float[][] values = new float[ROWS][COLUMNS];
+    private CsvEncoder encoder;
+    private SensorLogWriter writer;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(42);
+        for (int i = 0; i < ROWS; i++) {
+            timestamps[i] = i * FRAME + r.nextInt(100000);
+            for (int c = 0; c < COLUMNS - 1; c++)
+                values[i][c] = (float) (Math.sin(i / 30.0 + c) * (c % 3 + 1) + r.nextGaussian() / 50);
+            values[i][COLUMNS - 1] = i % 50 == 0 ? r.nextInt(500) : values[Math.max(0, i - 1)][COLUMNS - 1];
+        }
+        SensorLogHeader header = new SensorLogHeader()
+                .setStartTimestamp(System.currentTimeMillis())
+                .setFrameDuration(FRAME)
+                .setEncoding("gorilla".equals(encoding)
+                        ? SensorLogHeader.ENCODING_GORILLA : SensorLogHeader.ENCODING_RAW);
+        for (int c = 0; c < COLUMNS; c++)
+            header.addColumn(c / 3 + 1, c % 3, "Column " + c);
+        encoder = new CsvEncoder(1024);
+        writer = SensorLogWriter.newInstance(header, BLOCK);
+    }
+
+    /** As in Recorder.readSensors */
+    private long csv() {
+        long ret = 0;
+        for (int i = 0; i < ROWS; i++) {
+            encoder.reset();
+            encoder.append(timestamps[i] / 1000000L).append(',');
+            for (int c = 0; c < COLUMNS; c++)
+                encoder.append(values[i][c]).append(',');
+            encoder.trim();
+            encoder.append('\n');
+            ret += encoder.length();
+        }
+        return ret;
+    }
+
+    /** As in Recorder.writeSensors */
+    private long binary() {
+        long ret = 0;
+        for (int i = 0; i < ROWS; i++) {
+            writer.beginRow(timestamps[i]);
+            for (int c = 0; c < COLUMNS; c++)
+                writer.put(values[i][c]);
+            if (writer.endRow() || i == ROWS - 1) {
+                ret += writer.length();
+                writer.buffer();
+                writer.reset();
+            }
+        }
+        return ret;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long encode() {
+        return "csv".equals(encoding) ? csv() : binary();
+    }
+}
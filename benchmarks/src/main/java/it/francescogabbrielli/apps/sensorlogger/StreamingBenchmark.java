@@ -0,0 +1,74 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-client work of the streaming server on each frame: the sensor rows appended to the
+ * batch, the batch swap, and the framing of the data and image parts for the gathering write
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StreamingBenchmark {
+
+    /** Size of the JPEG frame: 320x240, 640x480, 1280x720, 1920x1080 */
+    @Param({"12000", "40000", "110000", "250000"})
+    int frameSize;
+
+    @Param({"false", "true"})
+    boolean binary;
+
+    /** Rows appended to the batch between two frames */
+    private final static int ROWS = 4;
+
+    private byte[] row;
+    private FrameBuffer image;
+    private SensorBatch batch;
+    private PartFramer framer;
+    private List<ByteBuffer> list;
+    private long timestamp;
+    private int seq;
+
+    @Setup
+    public void setup() {
+        Random r = new Random(42);
+        row = new CsvEncoder(128).append(1234L).append(',').append(0.12f).append(',')
+                .append(-9.81f).append(',').append(0.43f).append('\n').toByteArray();
+        byte[] jpeg = new byte[frameSize];
+        r.nextBytes(jpeg);
+        image = FrameBuffer.wrap(jpeg);
+        batch = new SensorBatch(4096, 50000000L, 65536);
+        framer = new PartFramer(binary, "--boundary");
+        list = new ArrayList<>(8);
+    }
+
+    @Benchmark
+    public List<ByteBuffer> frame() {
+        list.clear();
+        timestamp += 66666667L;
+        for (int i = 0; i < ROWS; i++)
+            batch.append(row, 0, row.length, timestamp, timestamp);
+        framer.frame(list, batch.take(), "text/csv", seq, timestamp, false, null);
+        framer.frame(list, image, "image/jpeg", seq++, timestamp, true, null);
+        return list;
+    }
+}
@@ -0,0 +1,270 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Motion-JPEG video (AVI 1.0, a single video stream with an idx1 index), made of the already
+ * encoded JPEG frames, with no transcoding.
+ * <p>
+ * The video is written sequentially, through a large buffer: the headers first, with the sizes
+ * and the number of frames patched on {@link #finish()} if the output is a local file (otherwise
+ * left to 0, as the players rely on the index and the file size), then the frames, and the index.
+ * Only JPEG entries are accepted (see {@link #accepts(String)}). Repeated frames are empty chunks.
+ */
+public class AviArchive extends LogArchive {
+
+    /** Size of the buffer of the output */
+    public final static int BUFFER = 256 * 1024;
+    /** Limit of the size of an AVI 1.0 file (the segment is full a bit earlier, to fit the index) */
+    public final static long MAX_SIZE = 1L << 30;
+
+    /** Offsets in the headers: RIFF size, main header, stream header, movi size, movi list */
+    private final static int RIFF_SIZE = 4, AVIH = 32, STRH = 108, MOVI_SIZE = 216, MOVI = 220;
+    /** Size of the headers, up to the first frame */
+    private final static int HEADER = 224;
+    /** Frame chunk id */
+    private final static int DC = fourcc("00dc");
+    /** Key frame flag, for idx1 */
+    private final static int KEYFRAME = 0x10;
+    /** The AVI has an index */
+    private final static int HASINDEX = 0x10;
+
+    /** Nanoseconds between frames */
+    private final long frameDuration;
+
+    /** The output file, to patch the headers (null if not a file) */
+    private FileChannel channel;
+    /** Position of the output file at the start */
+    private long start;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+    private final byte[] chunk = new byte[8];
+    /** The index (16 bytes per frame) */
+    private ByteBuffer index = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    /** Bytes written, frames written, largest frame */
+    private long size;
+    private int frames, maxFrame;
+
+    /**
+     * @param frameDuration the nanoseconds between frames
+     */
+    public AviArchive(long frameDuration) {
+        this.frameDuration = frameDuration > 0 ? frameDuration : 66666667L;
+    }
+
+    @Override
+    public void begin(OutputStream out) throws IOException {
+        channel = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : null;
+        start = channel != null ? channel.position() : 0;
+        super.begin(new BufferedOutputStream(out, BUFFER));
+        index.clear();
+        size = 0;
+        frames = maxFrame = 0;
+    }
+
+    /**
+     * @param name the name of an entry
+     * @return true for the JPEG frames
+     */
+    @Override
+    public boolean accepts(String name) {
+        String n = name.toLowerCase();
+        return n.endsWith(".jpg") || n.endsWith(".jpeg");
+    }
+
+    @Override
+    public void putEntry(String name, byte[] data, int offset, int length, long time) throws IOException {
+        if (length < 4 || (data[offset] & 0xff) != 0xff || (data[offset + 1] & 0xff) != 0xd8)
+            throw new IOException("Not a JPEG frame: " + name);
+        if (size == 0)
+            writeHeader(data, offset, length);
+        index(KEYFRAME, length);
+        writeChunk(DC, length);
+        out.write(data, offset, length);
+        if ((length & 1) != 0)
+            out.write(0);
+        size += 8 + length + (length & 1);
+        frames++;
+        maxFrame = Math.max(maxFrame, length);
+    }
+
+    /**
+     * Add an empty chunk, that the players take as a repetition of the previous frame (as the
+     * frames dropped by a capture)
+     */
+    @Override
+    public void putRepeat(String name, String reference, byte[] data, int offset, int length, long timestamp)
+            throws IOException {
+        if (size == 0) {
+            putEntry(name, data, offset, length, timestamp);
+            return;
+        }
+        index(0, 0);
+        writeChunk(DC, 0);
+        size += 8;
+        frames++;
+    }
+
+    /**
+     * @return true when another frame might not fit in the AVI size limit
+     */
+    @Override
+    public boolean isFull() {
+        return size + 16L * (frames + 1) + 8 + 2L * maxFrame > MAX_SIZE;
+    }
+
+    /**
+     * Write the index, and patch the headers if possible
+     */
+    @Override
+    public void finish() throws IOException {
+        if (size == 0)
+            writeHeader(null, 0, 0);
+        writeChunk(fourcc("idx1"), index.position());
+        out.write(index.array(), 0, index.position());
+        out.flush();
+        if (channel != null) {
+            fillHeader();
+            header.rewind();
+            channel.write(header, start);
+        }
+        super.finish();
+        channel = null;
+    }
+
+    @Override
+    public void abort() {
+        super.abort();
+        channel = null;
+    }
+
+    /**
+     * @return the number of frames in the video
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".avi";
+    }
+
+    /**
+     * Write the headers, with the sizes of the first frame
+     */
+    private void writeHeader(byte[] jpeg, int offset, int length) throws IOException {
+        int[] wh = jpeg != null ? getSize(jpeg, offset, length) : new int[2];
+        header.clear();
+        header.putInt(fourcc("RIFF")).putInt(0).putInt(fourcc("AVI "));
+        header.putInt(fourcc("LIST")).putInt(192).putInt(fourcc("hdrl"));
+        //main header
+        header.putInt(fourcc("avih")).putInt(56);
+        header.putInt((int) (frameDuration / 1000L))//microseconds per frame
+                .putInt(0)//max bytes per second
+                .putInt(0)//padding granularity
+                .putInt(HASINDEX)
+                .putInt(0)//total frames
+                .putInt(0)//initial frames
+                .putInt(1)//streams
+                .putInt(0)//suggested buffer size
+                .putInt(wh[0]).putInt(wh[1])
+                .putInt(0).putInt(0).putInt(0).putInt(0);
+        header.putInt(fourcc("LIST")).putInt(116).putInt(fourcc("strl"));
+        //stream header: rate/scale = frames per second
+        header.putInt(fourcc("strh")).putInt(56);
+        header.putInt(fourcc("vids")).putInt(fourcc("MJPG"))
+                .putInt(0)//flags
+                .putShort((short) 0).putShort((short) 0)//priority, language
+                .putInt(0)//initial frames
+                .putInt((int) (frameDuration / 1000L)).putInt(1000000)//scale, rate
+                .putInt(0)//start
+                .putInt(0)//length (frames)
+                .putInt(0)//suggested buffer size
+                .putInt(-1)//quality
+                .putInt(0)//sample size
+                .putShort((short) 0).putShort((short) 0).putShort((short) wh[0]).putShort((short) wh[1]);
+        //stream format (BITMAPINFOHEADER)
+        header.putInt(fourcc("strf")).putInt(40);
+        header.putInt(40).putInt(wh[0]).putInt(wh[1])
+                .putShort((short) 1).putShort((short) 24)
+                .putInt(fourcc("MJPG")).putInt(wh[0] * wh[1] * 3)
+                .putInt(0).putInt(0).putInt(0).putInt(0);
+        header.putInt(fourcc("LIST")).putInt(0).putInt(fourcc("movi"));
+        out.write(header.array(), 0, HEADER);
+        size = HEADER;
+    }
+
+    /**
+     * Add an entry to the index, for the chunk about to be written, growing the index if needed
+     */
+    private void index(int flags, int length) {
+        if (index.remaining() < 16) {
+            ByteBuffer b = ByteBuffer.allocate(index.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            index = b.put(index);
+        }
+        //offsets from the movi list id
+        index.putInt(DC).putInt(flags).putInt((int) (size - MOVI)).putInt(length);
+    }
+
+    /**
+     * Fill the sizes and the number of frames in the headers
+     */
+    private void fillHeader() {
+        header.putInt(RIFF_SIZE, (int) (size + index.position()));
+        header.putInt(AVIH + 4, (int) (maxFrame * 1000000000L / frameDuration));
+        header.putInt(AVIH + 16, frames);
+        header.putInt(AVIH + 28, maxFrame + 8);
+        header.putInt(STRH + 32, frames);
+        header.putInt(STRH + 36, maxFrame + 8);
+        header.putInt(MOVI_SIZE, (int) (size - MOVI));
+    }
+
+    private void writeChunk(int id, int length) throws IOException {
+        chunk[0] = (byte) id;
+        chunk[1] = (byte) (id >>> 8);
+        chunk[2] = (byte) (id >>> 16);
+        chunk[3] = (byte) (id >>> 24);
+        chunk[4] = (byte) length;
+        chunk[5] = (byte) (length >>> 8);
+        chunk[6] = (byte) (length >>> 16);
+        chunk[7] = (byte) (length >>> 24);
+        out.write(chunk);
+    }
+
+    private static int fourcc(String s) {
+        return s.charAt(0) | s.charAt(1) << 8 | s.charAt(2) << 16 | s.charAt(3) << 24;
+    }
+
+    /**
+     * Read the size of a JPEG image from its start of frame marker
+     *
+     * @return width and height (0 if not found)
+     */
+    static int[] getSize(byte[] jpeg, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset + 2; i + 9 < end; ) {
+            if ((jpeg[i] & 0xff) != 0xff) {
+                i++;
+                continue;
+            }
+            int marker = jpeg[i + 1] & 0xff;
+            if (marker == 0xff || marker == 0x01 || marker >= 0xd0 && marker <= 0xd8) {
+                i += marker == 0xff ? 1 : 2;
+                continue;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc)
+                return new int[] {
+                        (jpeg[i + 7] & 0xff) << 8 | jpeg[i + 8] & 0xff,
+                        (jpeg[i + 5] & 0xff) << 8 | jpeg[i + 6] & 0xff};
+            i += 2 + ((jpeg[i + 2] & 0xff) << 8 | jpeg[i + 3] & 0xff);
+        }
+        return new int[2];
+    }
+}
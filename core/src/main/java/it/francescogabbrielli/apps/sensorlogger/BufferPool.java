@@ -0,0 +1,70 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Pool of reusable {@link FrameBuffer}s, to keep allocations flat during long recordings
+ */
+public class BufferPool {
+
+    /** Free buffers */
+    private final ArrayDeque<FrameBuffer> free;
+    /** Maximum number of free buffers kept in the pool (the others are left to the gc) */
+    private final int maxPooled;
+    /** Minimum capacity of a new buffer */
+    private final int initialCapacity;
+
+    private int allocated, acquired;
+
+    /**
+     * Create a new pool
+     *
+     * @param maxPooled maximum number of free buffers to keep
+     * @param initialCapacity minimum capacity of a new buffer
+     */
+    public BufferPool(int maxPooled, int initialCapacity) {
+        this.maxPooled = maxPooled;
+        this.initialCapacity = initialCapacity;
+        free = new ArrayDeque<>(maxPooled);
+    }
+
+    /**
+     * Get a buffer with at least the given capacity, holding one reference
+     * (to {@link FrameBuffer#release()} when done)
+     *
+     * @param capacity the needed capacity
+     * @return an empty buffer
+     */
+    public FrameBuffer acquire(int capacity) {
+        FrameBuffer ret;
+        synchronized (this) {
+            ret = free.pollLast();
+            acquired++;
+            if (ret == null) {
+                ret = new FrameBuffer(this, Math.max(capacity, initialCapacity));
+                allocated++;
+            }
+        }
+        ret.ensureCapacity(capacity);
+        ret.acquired();
+        return ret;
+    }
+
+    synchronized void recycle(FrameBuffer buffer) {
+        if (free.size() < maxPooled)
+            free.addLast(buffer);
+    }
+
+    /** @return the number of buffers allocated so far */
+    public synchronized int getAllocated() {
+        return allocated;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%d buffers allocated for %d frames, %d free",
+                allocated, acquired, free.size());
+    }
+
+}
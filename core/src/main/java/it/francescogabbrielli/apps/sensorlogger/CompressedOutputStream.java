@@ -0,0 +1,178 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Output stream compressing its content in blocks of fixed size, with a pluggable codec.
+ * <p>
+ * The content is collected until a block is full, then compressed and written at once (in the
+ * thread writing the stream), so that the codec always works on whole blocks. Flushing does not
+ * cut blocks short: only closing the stream compresses the last partial block.
+ * Compression ratio and time of each block are kept for statistics: each block is compressed in
+ * memory first, so that the time does not include writing it.
+ */
+public class CompressedOutputStream extends OutputStream {
+
+    /** No compression */
+    public final static String NONE = "none";
+    /** Zlib stream (deflate), flushed at every block */
+    public final static String DEFLATE = "deflate";
+    /** Gzip, one member for each block */
+    public final static String GZIP = "gzip";
+    /** LZ4 frame, with independent blocks */
+    public final static String LZ4 = "lz4";
+
+    /**
+     * A compression format
+     */
+    public interface Codec {
+        /** @return the filename extension of the format (i.e. ".gz") */
+        String getExtension();
+        /**
+         * Write the start of the stream
+         * @return the bytes written
+         */
+        int begin(OutputStream out) throws IOException;
+        /**
+         * Compress a block
+         * @return the bytes written
+         */
+        int compress(byte[] block, int length, OutputStream out) throws IOException;
+        /**
+         * Write the end of the stream and release the resources
+         * @return the bytes written
+         */
+        int end(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Create a codec
+     *
+     * @param name one of {@link #DEFLATE}, {@link #GZIP}, {@link #LZ4}
+     * @param level the compression level (deflate and gzip, 1-9; 0=default)
+     * @param blockSize the size of the blocks
+     * @return the codec, null if no compression ({@link #NONE} or unknown)
+     */
+    public static Codec newCodec(String name, int level, int blockSize) {
+        if (DEFLATE.equalsIgnoreCase(name))
+            return new DeflateCodec(level, false);
+        if (GZIP.equalsIgnoreCase(name))
+            return new DeflateCodec(level, true);
+        if (LZ4.equalsIgnoreCase(name))
+            return new Lz4Codec(blockSize);
+        return null;
+    }
+
+    private final OutputStream out;
+    private final Codec codec;
+    private final byte[] block;
+    /** The block compressed, before writing it */
+    private final ByteArrayOutputStream compressed;
+    private int length;
+    private boolean closed;
+
+    private long blocks, bytesIn, bytesOut;
+    private final LatencyStats stats;
+
+    /**
+     * Start compressing into a stream
+     *
+     * @param out the destination (closed with this stream)
+     * @param codec the compression format
+     * @param blockSize the size of the blocks
+     * @throws IOException if the start of the stream cannot be written
+     */
+    public CompressedOutputStream(OutputStream out, Codec codec, int blockSize) throws IOException {
+        this.out = out;
+        this.codec = codec;
+        block = new byte[Math.max(1024, blockSize)];
+        compressed = new ByteArrayOutputStream(block.length + block.length / 16 + 64);
+        stats = new LatencyStats(codec.getExtension().substring(1) + " block");
+        bytesOut = codec.begin(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[length++] = (byte) b;
+        if (length == block.length)
+            compressBlock();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = Math.min(len, block.length - length);
+            System.arraycopy(b, off, block, length, n);
+            length += n;
+            off += n;
+            len -= n;
+            if (length == block.length)
+                compressBlock();
+        }
+    }
+
+    private void compressBlock() throws IOException {
+        if (length == 0)
+            return;
+        compressed.reset();
+        long start = System.nanoTime();
+        bytesOut += codec.compress(block, length, compressed);
+        stats.add(System.nanoTime() - start);
+        compressed.writeTo(out);
+        bytesIn += length;
+        blocks++;
+        length = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            compressBlock();
+            bytesOut += codec.end(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** @return the number of blocks compressed */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /** @return the uncompressed bytes (of the blocks compressed so far) */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /** @return the compressed bytes written */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /** @return the compression ratio (uncompressed/compressed) */
+    public double getRatio() {
+        return bytesOut > 0 ? (double) bytesIn / bytesOut : 0;
+    }
+
+    /** @return the time spent compressing each block (not writing it) */
+    public LatencyStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%d blocks, %d -> %d bytes (ratio %.2f)\n%s",
+                blocks, bytesIn, bytesOut, getRatio(), stats);
+    }
+}
@@ -0,0 +1,228 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Reusable ASCII encoder for the .csv rows of sensor data.
+ * <p>
+ * Values are written directly into an internal byte buffer, which only grows when needed,
+ * so once warmed up the encoding of a row does not allocate anything. Floats are formatted
+ * exactly like {@code String.format(Locale.US, "%2.5f", value)}.
+ */
+public class CsvEncoder {
+
+    /** Maximum number of bytes written by {@link #putFloat(byte[], int, float)} on the fast path */
+    public final static int MAX_FLOAT_LENGTH = 24;
+
+    /** Number of decimals (as in "%2.5f") */
+    private final static int DECIMALS = 5;
+    /** 10^DECIMALS */
+    private final static long SCALE = 100000L;
+
+    private final static byte[] NAN = {'N', 'a', 'N'};
+    private final static byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+
+    /** The encoded bytes */
+    private byte[] buffer;
+    /** Number of valid bytes in the buffer */
+    private int length;
+
+    /**
+     * Create a new encoder
+     *
+     * @param capacity the initial capacity of the buffer
+     */
+    public CsvEncoder(int capacity) {
+        buffer = new byte[Math.max(capacity, MAX_FLOAT_LENGTH)];
+    }
+
+    /**
+     * Discard the current content
+     *
+     * @return this encoder
+     */
+    public CsvEncoder reset() {
+        length = 0;
+        return this;
+    }
+
+    /**
+     * Append a float value as "%2.5f"
+     *
+     * @param value the value
+     * @return this encoder
+     */
+    public CsvEncoder append(float value) {
+        ensureCapacity(length + MAX_FLOAT_LENGTH);
+        int pos = putFloat(buffer, length, value);
+        if (pos < 0)//too big for the fast path
+            return append(String.format(Locale.US, "%2.5f", value));
+        length = pos;
+        return this;
+    }
+
+    /**
+     * Append an integer value
+     *
+     * @param value the value
+     * @return this encoder
+     */
+    public CsvEncoder append(long value) {
+        ensureCapacity(length + 20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            if (value == Long.MIN_VALUE) {//cannot be negated
+                buffer[length++] = '9';
+                value = -223372036854775808L;
+            }
+            value = -value;
+        }
+        length = putDigits(buffer, length, value, 1);
+        return this;
+    }
+
+    /**
+     * Append a single (ASCII) character
+     *
+     * @param c the character
+     * @return this encoder
+     */
+    public CsvEncoder append(char c) {
+        ensureCapacity(length + 1);
+        buffer[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Append a text (only ASCII characters are expected, such as in the headers)
+     *
+     * @param text the text
+     * @return this encoder
+     */
+    public CsvEncoder append(CharSequence text) {
+        int l = text.length();
+        ensureCapacity(length + l);
+        for (int i = 0; i < l; i++)
+            buffer[length++] = (byte) text.charAt(i);
+        return this;
+    }
+
+    /**
+     * Remove the last byte, if any (i.e. a trailing separator)
+     *
+     * @return this encoder
+     */
+    public CsvEncoder trim() {
+        if (length > 0)
+            length--;
+        return this;
+    }
+
+    /**
+     * @return the number of encoded bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Direct access to the internal buffer; only the first {@link #length()} bytes are valid
+     *
+     * @return the internal buffer
+     */
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    /**
+     * @return a copy of the encoded bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, length);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+    }
+
+    /**
+     * Write a float as "%2.5f" (Locale.US) into a byte array.
+     * <p>
+     * The value is rounded HALF_UP on its exact binary value, which is what {@link java.util.Formatter}
+     * does for a float (no float value lies close enough to a rounding tie to make a difference
+     * with the shortest decimal representation it starts from).
+     *
+     * @param dst the destination, with at least {@link #MAX_FLOAT_LENGTH} bytes available from pos
+     * @param pos the position where to start writing
+     * @param value the value to write
+     * @return the position after the last written byte, or -1 if the value is too big (&ge; 2^53)
+     */
+    public static int putFloat(byte[] dst, int pos, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int exp = (bits >>> 23) & 0xff;
+        long mantissa = bits & 0x7fffff;
+        if (exp == 0xff) {
+            if (mantissa != 0)
+                return put(dst, pos, NAN);
+            if (bits < 0)
+                dst[pos++] = '-';
+            return put(dst, pos, INFINITY);
+        }
+        if (exp == 0)//subnormal
+            exp = 1;
+        else
+            mantissa |= 0x800000;
+
+        long integer, fraction;
+        int shift = exp - 150;//value = mantissa * 2^shift
+        if (shift >= 0) {
+            if (shift > 29)
+                return -1;
+            integer = mantissa << shift;
+            fraction = 0;
+        } else if (shift > -46) {
+            int k = -shift;
+            integer = mantissa >>> k;
+            fraction = ((mantissa & ((1L << k) - 1)) * SCALE + (1L << (k - 1))) >>> k;
+            if (fraction >= SCALE) {
+                integer++;
+                fraction -= SCALE;
+            }
+        } else {//less than 2^-22: always rounds to zero
+            integer = 0;
+            fraction = 0;
+        }
+
+        if (bits < 0)
+            dst[pos++] = '-';
+        pos = putDigits(dst, pos, integer, 1);
+        dst[pos++] = '.';
+        return putDigits(dst, pos, fraction, DECIMALS);
+    }
+
+    /** Write the decimal digits of a non-negative value, left padded with zeros up to minDigits */
+    private static int putDigits(byte[] dst, int pos, long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10)
+            digits++;
+        digits = Math.max(digits, minDigits);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            dst[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        return pos + digits;
+    }
+
+    private static int put(byte[] dst, int pos, byte[] src) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+
+}
@@ -0,0 +1,92 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Deflate compression, either as a single zlib stream synchronized at every block, or as gzip
+ * with a member for each block (readable by any gzip tool, and each block independently)
+ */
+public class DeflateCodec implements CompressedOutputStream.Codec {
+
+    private final static byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final Deflater deflater;
+    private final boolean gzip;
+    private final CRC32 crc;
+    private final byte[] buffer = new byte[16 * 1024];
+    private final byte[] trailer = new byte[8];
+
+    /**
+     * @param level the compression level (1-9; 0=default)
+     * @param gzip true for gzip members, false for a zlib stream
+     */
+    public DeflateCodec(int level, boolean gzip) {
+        this.gzip = gzip;
+        deflater = new Deflater(level > 0 ? Math.min(level, 9) : Deflater.DEFAULT_COMPRESSION, gzip);
+        crc = gzip ? new CRC32() : null;
+    }
+
+    @Override
+    public String getExtension() {
+        return gzip ? ".gz" : ".deflate";
+    }
+
+    @Override
+    public int begin(OutputStream out) {
+        return 0;
+    }
+
+    @Override
+    public int compress(byte[] block, int length, OutputStream out) throws IOException {
+        deflater.setInput(block, 0, length);
+        int ret = 0;
+        if (gzip) {
+            out.write(GZIP_HEADER);
+            crc.reset();
+            crc.update(block, 0, length);
+            deflater.finish();
+            while (!deflater.finished())
+                ret += drain(out, Deflater.NO_FLUSH);
+            deflater.reset();
+            putInt((int) crc.getValue(), trailer, 0);
+            putInt(length, trailer, 4);
+            out.write(trailer);
+            ret += GZIP_HEADER.length + trailer.length;
+        } else {
+            int n;
+            do {
+                n = drain(out, Deflater.SYNC_FLUSH);
+                ret += n;
+            } while (n == buffer.length);
+        }
+        return ret;
+    }
+
+    private int drain(OutputStream out, int flush) throws IOException {
+        int n = deflater.deflate(buffer, 0, buffer.length, flush);
+        out.write(buffer, 0, n);
+        return n;
+    }
+
+    @Override
+    public int end(OutputStream out) throws IOException {
+        int ret = 0;
+        if (!gzip) {
+            deflater.finish();
+            while (!deflater.finished())
+                ret += drain(out, Deflater.NO_FLUSH);
+        }
+        deflater.end();
+        return ret;
+    }
+
+    private static void putInt(int v, byte[] b, int off) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
@@ -0,0 +1,126 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference-counted buffer holding an encoded frame (or any other data to log).
+ * <p>
+ * The same buffer is shared by all the {@link LogTarget}s: each one retains it while the
+ * operation is pending and releases it when done. When the last reference is released, the
+ * buffer goes back to its {@link BufferPool} (if any) to be reused for another frame.
+ */
+public class FrameBuffer {
+
+    /** The pool owning this buffer (null if not pooled) */
+    private final BufferPool pool;
+    /** Current references */
+    private final AtomicInteger refs;
+
+    private byte[] data;
+    /** Number of valid bytes in data */
+    private int length;
+
+    FrameBuffer(BufferPool pool, int capacity) {
+        this.pool = pool;
+        refs = new AtomicInteger();
+        data = new byte[capacity];
+    }
+
+    /**
+     * Wrap an array in a (not pooled) buffer
+     *
+     * @param data the data
+     * @return a new buffer with one reference, or null if data is null
+     */
+    public static FrameBuffer wrap(byte[] data) {
+        if (data == null)
+            return null;
+        FrameBuffer ret = new FrameBuffer(null, 0);
+        ret.data = data;
+        ret.length = data.length;
+        ret.refs.set(1);
+        return ret;
+    }
+
+    /**
+     * Direct access to the underlying array; only the first {@link #length()} bytes are valid
+     *
+     * @return the array
+     */
+    public byte[] data() {
+        return data;
+    }
+
+    /**
+     * @return the number of valid bytes
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Set the number of valid bytes (after writing into {@link #data()})
+     *
+     * @param length the length
+     * @return this buffer
+     */
+    public FrameBuffer setLength(int length) {
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * Append bytes, growing the array (and keeping the content) if needed
+     *
+     * @param b the bytes
+     * @param off the offset of the bytes
+     * @param len the number of bytes
+     */
+    public void append(byte[] b, int off, int len) {
+        if (length + len > data.length)
+            data = Arrays.copyOf(data, Math.max(length + len, data.length * 2));
+        System.arraycopy(b, off, data, length, len);
+        length += len;
+    }
+
+    /**
+     * Make room for at least the given capacity (the content is lost if the array grows)
+     *
+     * @param capacity the needed capacity
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > data.length)
+            data = new byte[capacity + capacity / 4];
+        length = 0;
+    }
+
+    /**
+     * Add a reference
+     *
+     * @return this buffer
+     */
+    public FrameBuffer retain() {
+        refs.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Remove a reference, recycling the buffer when there are no more
+     */
+    public void release() {
+        int r = refs.decrementAndGet();
+        if (r == 0 && pool != null)
+            pool.recycle(this);
+        else if (r < 0)
+            throw new IllegalStateException("Frame buffer released too many times");
+    }
+
+    /**
+     * Set the first reference (when acquired from the pool)
+     */
+    void acquired() {
+        refs.set(1);
+    }
+
+}
@@ -0,0 +1,160 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.IOException;
+
+/**
+ * Decode the rows of a block written by {@link GorillaEncoder}
+ */
+public class GorillaDecoder {
+
+    private final int columns;
+    private final long frameDuration;
+
+    private byte[] data;
+    /** Current bit position, and end of the bits */
+    private long position, end;
+    /** Rows in the block, and rows read */
+    private int rows, count;
+
+    private long first, timestamp, delta;
+    private final int[] values, leading, trailing;
+
+    /**
+     * @param header the header of the log
+     */
+    public GorillaDecoder(SensorLogHeader header) {
+        columns = header.getColumnCount();
+        frameDuration = header.getFrameDuration();
+        values = new int[columns];
+        leading = new int[columns];
+        trailing = new int[columns];
+    }
+
+    /**
+     * Read the size of a block from its header
+     *
+     * @param header the first {@link GorillaEncoder#BLOCK_HEADER} bytes of the block (or more)
+     * @param offset the start of the block
+     * @return the size of the whole block, including the header
+     */
+    public static int getBlockSize(byte[] header, int offset) {
+        return GorillaEncoder.BLOCK_HEADER + (int) (((getInt(header, offset) & 0xffffffffL) + 7) >>> 3);
+    }
+
+    /**
+     * Start decoding a block (the buffer is not copied)
+     *
+     * @param block the buffer holding the block
+     * @param offset the start of the block
+     * @throws IOException if the block header is not valid
+     */
+    public void setBlock(byte[] block, int offset) throws IOException {
+        long bits = getInt(block, offset) & 0xffffffffL;
+        rows = getInt(block, offset + 4);
+        if (rows < 0 || GorillaEncoder.BLOCK_HEADER + offset + ((bits + 7) >>> 3) > block.length)
+            throw new IOException("Corrupted block");
+        first = timestamp = (getInt(block, offset + 8) & 0xffffffffL) | (long) getInt(block, offset + 12) << 32;
+        data = block;
+        position = (offset + GorillaEncoder.BLOCK_HEADER) * 8L;
+        end = position + bits;
+        count = 0;
+    }
+
+    /** @return the first frame time of the block */
+    public long getFirstTimestamp() {
+        return first;
+    }
+
+    /** @return the number of rows in the block */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Decode the next row of the block
+     *
+     * @return false at the end of the block
+     * @throws IOException if the block is corrupted
+     */
+    public boolean next() throws IOException {
+        if (count >= rows)
+            return false;
+        if (count == 0) {
+            delta = frameDuration;
+            for (int c = 0; c < columns; c++) {
+                values[c] = (int) read(32);
+                leading[c] = -1;
+            }
+        } else {
+            long dod;
+            if (read(1) == 0)
+                dod = 0;
+            else if (read(1) == 0)
+                dod = signed(read(7), 7);
+            else if (read(1) == 0)
+                dod = signed(read(9), 9);
+            else if (read(1) == 0)
+                dod = signed(read(12), 12);
+            else if (read(1) == 0)
+                dod = signed(read(32), 32);
+            else
+                dod = read(64);
+            delta += dod;
+            timestamp += delta;
+            for (int c = 0; c < columns; c++) {
+                if (read(1) == 0)
+                    continue;
+                if (read(1) == 1) {
+                    leading[c] = (int) read(5);
+                    trailing[c] = 32 - leading[c] - ((int) read(5) + 1);
+                } else if (leading[c] < 0)
+                    throw new IOException("Corrupted block");
+                int length = 32 - leading[c] - trailing[c];
+                values[c] ^= (int) read(length) << trailing[c];
+            }
+        }
+        count++;
+        return true;
+    }
+
+    /** @return the frame time (ns, since the start) of the current row */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @param column the column
+     * @return the value of the column in the current row
+     */
+    public float getValue(int column) {
+        return Float.intBitsToFloat(values[column]);
+    }
+
+    private static long signed(long v, int bits) {
+        return v << (64 - bits) >> (64 - bits);
+    }
+
+    /**
+     * Read bits (MSB first)
+     *
+     * @param n how many (up to 64)
+     */
+    private long read(int n) throws IOException {
+        if (position + n > end)
+            throw new IOException("Truncated block");
+        long ret = 0;
+        for (int left = n; left > 0; ) {
+            int i = (int) (position >>> 3), used = (int) (position & 7);
+            int take = Math.min(8 - used, left);
+            int b = (data[i] & 0xff) >>> (8 - used - take) & ((1 << take) - 1);
+            ret = ret << take | b;
+            left -= take;
+            position += take;
+        }
+        return ret;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | b[off + 3] << 24;
+    }
+}
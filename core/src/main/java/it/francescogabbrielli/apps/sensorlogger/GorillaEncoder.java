@@ -0,0 +1,197 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+/**
+ * Encode the rows of a sensor log in compressed blocks, as in the Gorilla time-series database:
+ * timestamps as delta-of-delta, values as XOR with the previous value of the same column.
+ * <p>
+ * Every block is independent, so that a log can be read starting from any block:
+ * <pre>
+ *   block: int32 length of the bits | int32 rows | int64 first frame time (ns, since the start)
+ *          | bits (MSB first, padded to a byte)
+ *   row:   timestamp code | value code x columns
+ * </pre>
+ * Timestamp codes (delta-of-delta, the first delta being the frame duration of the header):
+ * {@code 0} same delta, {@code 10}+7 bits, {@code 110}+9 bits, {@code 1110}+12 bits,
+ * {@code 11110}+32 bits, {@code 11111}+64 bits (two's complement). The first row of a block is
+ * in the block header.
+ * <p>
+ * Value codes (the first row of a block stores the 32 bits as they are): {@code 0} same value,
+ * {@code 10} + the meaningful bits of the XOR, within the window of the previous XOR, or
+ * {@code 11} + 5 bits of leading zeros + 5 bits of length-1 + the meaningful bits.
+ */
+public class GorillaEncoder extends SensorLogWriter {
+
+    /** Default file extension */
+    public final static String EXTENSION = ".gor";
+    /** Size of the block header */
+    public final static int BLOCK_HEADER = 16;
+
+    /** Rows in a block */
+    private final int rows;
+    private final int columns;
+    private final long frameDuration;
+
+    /** Current block */
+    private final byte[] block;
+    /** Bits written in the current block (after the header) */
+    private long bits;
+    /** Pending bits, not yet in the block */
+    private long acc;
+    private int accBits;
+
+    /** Rows in the current block, values in the current row */
+    private int count, values;
+    private long first, prevTimestamp, prevDelta;
+    private final int[] prevValues, prevLeading, prevTrailing;
+
+    /**
+     * Create a new encoder
+     *
+     * @param header the header of the log
+     * @param rows the number of rows in a block
+     */
+    public GorillaEncoder(SensorLogHeader header, int rows) {
+        super(header);
+        this.rows = Math.max(1, rows);
+        columns = header.getColumnCount();
+        frameDuration = header.getFrameDuration();
+        //worst case: 69 bits of timestamp, 44 bits for each value
+        block = new byte[BLOCK_HEADER + this.rows * (9 + columns * 6) + 8];
+        prevValues = new int[columns];
+        prevLeading = new int[columns];
+        prevTrailing = new int[columns];
+    }
+
+    @Override
+    public void beginRow(long timestamp) {
+        values = 0;
+        if (count == 0) {
+            first = timestamp;
+            prevDelta = frameDuration;
+        } else {
+            long delta = timestamp - prevTimestamp;
+            long dod = delta - prevDelta;
+            prevDelta = delta;
+            if (dod == 0)
+                write(0, 1);
+            else if (fits(dod, 7))
+                write(0b10L << 7 | (dod & 0x7f), 9);
+            else if (fits(dod, 9))
+                write(0b110L << 9 | (dod & 0x1ff), 12);
+            else if (fits(dod, 12))
+                write(0b1110L << 12 | (dod & 0xfff), 16);
+            else if (fits(dod, 32))
+                write(0b11110L << 32 | (dod & 0xffffffffL), 37);
+            else {
+                write(0b11111, 5);
+                write(dod, 64);
+            }
+        }
+        prevTimestamp = timestamp;
+    }
+
+    private static boolean fits(long v, int bits) {
+        return v >= -(1L << (bits - 1)) && v < (1L << (bits - 1));
+    }
+
+    @Override
+    public void put(float value) {
+        if (values >= columns)
+            return;
+        int c = values++;
+        int v = Float.floatToRawIntBits(value);
+        if (count == 0) {
+            write(v & 0xffffffffL, 32);
+            prevLeading[c] = -1;
+        } else {
+            int xor = v ^ prevValues[c];
+            if (xor == 0)
+                write(0, 1);
+            else {
+                int leading = Math.min(Integer.numberOfLeadingZeros(xor), 31);
+                int trailing = Integer.numberOfTrailingZeros(xor);
+                if (prevLeading[c] >= 0 && leading >= prevLeading[c] && trailing >= prevTrailing[c]) {
+                    int length = 32 - prevLeading[c] - prevTrailing[c];
+                    write(0b10, 2);
+                    write((xor >>> prevTrailing[c]) & 0xffffffffL, length);
+                } else {
+                    int length = 32 - leading - trailing;
+                    write(0b11L << 10 | leading << 5 | (length - 1), 12);
+                    write((xor >>> trailing) & 0xffffffffL, length);
+                    prevLeading[c] = leading;
+                    prevTrailing[c] = trailing;
+                }
+            }
+        }
+        prevValues[c] = v;
+    }
+
+    @Override
+    public boolean endRow() {
+        while (values < columns)
+            put(Float.NaN);
+        return ++count >= rows;
+    }
+
+    /**
+     * Append bits to the block (MSB first)
+     *
+     * @param v the bits, in the lowest positions
+     * @param n how many bits (up to 64)
+     */
+    private void write(long v, int n) {
+        if (n > 32) {
+            write(v >>> 32, n - 32);
+            write(v & 0xffffffffL, 32);
+            return;
+        }
+        acc = acc << n | (v & ((1L << n) - 1));
+        accBits += n;
+        while (accBits >= 8) {
+            accBits -= 8;
+            block[BLOCK_HEADER + (int) (bits >>> 3)] = (byte) (acc >>> accBits);
+            bits += 8;
+        }
+    }
+
+    /**
+     * @return the number of encoded bytes in the current block (0 if no rows)
+     */
+    @Override
+    public int length() {
+        return count == 0 ? 0 : BLOCK_HEADER + (int) ((bits + accBits + 7) >>> 3);
+    }
+
+    /**
+     * Direct access to the current block, completed with its header; only the first
+     * {@link #length()} bytes are valid
+     *
+     * @return the block bytes
+     */
+    @Override
+    public byte[] buffer() {
+        if (accBits > 0)
+            block[BLOCK_HEADER + (int) (bits >>> 3)] = (byte) (acc << (8 - accBits));
+        putInt(block, 0, (int) (bits + accBits));
+        putInt(block, 4, count);
+        putInt(block, 8, (int) first);
+        putInt(block, 12, (int) (first >>> 32));
+        return block;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    @Override
+    public void reset() {
+        bits = 0;
+        acc = 0;
+        accBits = 0;
+        count = 0;
+        values = 0;
+    }
+}
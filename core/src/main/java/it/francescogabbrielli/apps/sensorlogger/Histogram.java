@@ -0,0 +1,172 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe latency histogram with fixed log-linear buckets (as HdrHistogram): every power of
+ * two is split in {@link #SUB_BUCKETS} linear buckets, so that any value is within about 6% of
+ * its bucket bounds, from 1us up to {@link #MAX_VALUE}. Larger values are counted in the last bucket.
+ * <p>
+ * Recording is lock-free and allocation-free, to be used on the hot paths.
+ */
+public class Histogram {
+
+    /** Linear buckets in each power of two */
+    public final static int SUB_BUCKETS = 16;
+    private final static int SUB_BITS = 4;
+    /** Resolution of the buckets: 2^10 ns (about 1us) */
+    private final static int UNIT_SHIFT = 10;
+    /** Largest power of two tracked, in units */
+    private final static int MAX_MAGNITUDE = 26;
+    /** Largest value tracked precisely (about 137s) */
+    public final static long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1 + UNIT_SHIFT)) - 1;
+
+    private final static int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String name;
+    private final AtomicLongArray counts;
+    private final AtomicLong count, sum, max;
+
+    /**
+     * Create a new histogram
+     *
+     * @param name the name of the stage
+     */
+    public Histogram(String name) {
+        this.name = name;
+        counts = new AtomicLongArray(BUCKETS);
+        count = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param nanos the latency in nanoseconds (negative values count as 0)
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        counts.incrementAndGet(index(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m;
+        while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+    }
+
+    /** Add the time elapsed since start (System.nanoTime) */
+    public void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    static int index(long nanos) {
+        long u = nanos >>> UNIT_SHIFT;
+        if (u < SUB_BUCKETS)
+            return (int) u;
+        int m = 63 - Long.numberOfLeadingZeros(u);
+        if (m > MAX_MAGNITUDE)
+            return BUCKETS - 1;
+        return SUB_BUCKETS + (m - SUB_BITS) * SUB_BUCKETS + (int) ((u >>> (m - SUB_BITS)) & (SUB_BUCKETS - 1));
+    }
+
+    /** Lowest value of a bucket (ns) */
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS)
+            return (long) index << UNIT_SHIFT;
+        int m = (index - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        long sub = (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (m - SUB_BITS) << UNIT_SHIFT;
+    }
+
+    /** Highest value of a bucket (ns) */
+    static long upperBound(int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(index + 1) - 1;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /** @return the sum of the samples in nanoseconds */
+    public long getSum() {
+        return sum.get();
+    }
+
+    /** @return the mean latency in nanoseconds */
+    public long getMean() {
+        long n = count.get();
+        return n > 0 ? sum.get() / n : 0;
+    }
+
+    /** @return the maximum latency in nanoseconds */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get a percentile, as the highest value of its bucket (not above the maximum)
+     *
+     * @param percentile the percentile (0-100)
+     * @return the latency in nanoseconds (0 if no samples)
+     */
+    public long getPercentile(double percentile) {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            n += counts.get(i);
+        if (n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            if ((seen += counts.get(i)) >= rank)
+                return Math.min(upperBound(i), max.get());
+        return max.get();
+    }
+
+    /**
+     * Get the samples recorded after a copy of this histogram (i.e. those of a session), which is
+     * not atomic with respect to concurrent recording. The maximum is the highest recorded, if it
+     * falls in the highest bucket with new samples, or the upper bound of that bucket otherwise
+     *
+     * @param earlier a previous copy (null to copy all the samples)
+     * @return a new histogram
+     */
+    public Histogram since(Histogram earlier) {
+        Histogram ret = new Histogram(name);
+        int highest = -1;
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = counts.get(i) - (earlier != null ? earlier.counts.get(i) : 0);
+            ret.counts.set(i, n);
+            if (n > 0)
+                highest = i;
+        }
+        ret.count.set(count.get() - (earlier != null ? earlier.count.get() : 0));
+        ret.sum.set(sum.get() - (earlier != null ? earlier.sum.get() : 0));
+        ret.max.set(highest < 0 ? 0 : Math.min(upperBound(highest), max.get()));
+        return ret;
+    }
+
+    /**
+     * Clear the samples (not atomically with respect to concurrent recording)
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%s: %d samples, mean %.2fms, p50 %.2fms, p99 %.2fms, max %.2fms",
+                name, getCount(), getMean() / 1e6, getPercentile(50) / 1e6, getPercentile(99) / 1e6, getMax() / 1e6);
+    }
+
+}
@@ -0,0 +1,33 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Locale;
+
+/**
+ * Minimal helpers for the JSON written by hand (the session report, the trace)
+ */
+public class Json {
+
+    private Json() {
+    }
+
+    /**
+     * Quote and escape a string
+     *
+     * @param s the string
+     * @return the JSON string literal
+     */
+    public static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(String.format(Locale.US, "\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+
+}
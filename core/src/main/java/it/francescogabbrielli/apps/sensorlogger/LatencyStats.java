@@ -0,0 +1,66 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Locale;
+
+/**
+ * Minimal thread-safe latency statistics (count, mean, min and max) of a processing stage
+ */
+public class LatencyStats {
+
+    private final String name;
+    private long count, sum, min = Long.MAX_VALUE, max;
+
+    /**
+     * Create new statistics
+     *
+     * @param name the name of the stage
+     */
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void add(long nanos) {
+        count++;
+        sum += nanos;
+        if (nanos < min)
+            min = nanos;
+        if (nanos > max)
+            max = nanos;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /** @return the mean latency in nanoseconds */
+    public synchronized long getMean() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    /** @return the minimum latency in nanoseconds */
+    public synchronized long getMin() {
+        return count > 0 ? min : 0;
+    }
+
+    /** @return the maximum latency in nanoseconds */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized void reset() {
+        count = sum = max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s: %d samples, mean %.2fms, min %.2fms, max %.2fms",
+                name, count, getMean() / 1e6, getMin() / 1e6, max / 1e6);
+    }
+
+}
@@ -0,0 +1,137 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A streaming archive of recording files, written sequentially in a single output stream
+ * (that is not closed by the archive)
+ */
+public abstract class LogArchive {
+
+    /** Where the archive is written */
+    protected OutputStream out;
+
+    /**
+     * Start a new archive
+     *
+     * @param out where to write the archive
+     * @throws IOException
+     */
+    public void begin(OutputStream out) throws IOException {
+        this.out = out;
+    }
+
+    /**
+     * Add a file to the archive
+     *
+     * @param name the name of the file
+     * @param data the buffer holding the content
+     * @param offset the start of the content in the buffer
+     * @param length the length of the content
+     * @param time the modification time (ms since the epoch)
+     * @throws IOException
+     */
+    public abstract void putEntry(String name, byte[] data, int offset, int length, long time) throws IOException;
+
+    /**
+     * Add a frame to the archive: by default an entry, with the current time
+     *
+     * @param name the filename of the frame
+     * @param data the buffer holding the image
+     * @param offset the start of the image in the buffer
+     * @param length the length of the image
+     * @param timestamp the frame time (ns, since the start of the recording)
+     * @throws IOException
+     */
+    public void putFrame(String name, byte[] data, int offset, int length, long timestamp) throws IOException {
+        putEntry(name, data, offset, length, System.currentTimeMillis());
+    }
+
+    /**
+     * Add a frame identical to the previous one (a duplicated fill-in frame): by default a copy of
+     * it. Override to reference the previous frame instead of storing it again
+     *
+     * @param name the filename of the frame
+     * @param reference the filename of the previous frame, the last one added to this archive
+     * @param data the buffer holding the image (the same as the previous frame)
+     * @param offset the start of the image in the buffer
+     * @param length the length of the image
+     * @param timestamp the frame time (ns, since the start of the recording)
+     * @throws IOException
+     */
+    public void putRepeat(String name, String reference, byte[] data, int offset, int length, long timestamp)
+            throws IOException {
+        putFrame(name, data, offset, length, timestamp);
+    }
+
+    /**
+     * @return if the archive takes the sensor data as it is logged (see {@link #putData}),
+     *         instead of a whole file at the end of the segment
+     */
+    public boolean isInterleaved() {
+        return false;
+    }
+
+    /**
+     * Add a block of sensor data, as it is logged (only if {@link #isInterleaved()})
+     *
+     * @param name the filename of the sensor data
+     * @param data the buffer holding the block
+     * @param offset the start of the block in the buffer
+     * @param length the length of the block
+     * @param timestamp the frame time of the (last) row of the block (ns, since the start)
+     * @return if the block has been added: by default nothing is done and false is returned, the
+     *         sensor data being archived as a whole file instead
+     * @throws IOException
+     */
+    public boolean putData(String name, byte[] data, int offset, int length, long timestamp) throws IOException {
+        return false;
+    }
+
+    /**
+     * @param name the name of a file
+     * @return if the archive can hold the file (otherwise it has to be logged on its own)
+     */
+    public boolean accepts(String name) {
+        return true;
+    }
+
+    /**
+     * @return if the archive cannot grow any more, and a new one must be started
+     */
+    public boolean isFull() {
+        return false;
+    }
+
+    /**
+     * Terminate the archive (the output stream is left open)
+     *
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        out.flush();
+        out = null;
+    }
+
+    /**
+     * Abandon the archive after an error, without terminating it (the output stream is left to
+     * the caller), so that a new one can be started
+     */
+    public void abort() {
+        out = null;
+    }
+
+    /**
+     * @return if an archive has been started and not finished yet
+     */
+    public boolean isOpen() {
+        return out != null;
+    }
+
+    /**
+     * @return the filename extension of the archives (i.e. ".tar")
+     */
+    public abstract String getExtension();
+
+}
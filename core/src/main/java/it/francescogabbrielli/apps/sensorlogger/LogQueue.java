@@ -0,0 +1,218 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Bounded queue of the operations pending on a {@link LogTarget}, measured both in number of
+ * operations and in bytes.
+ * <p>
+ * When the queue is full, frames are handled according to the policy: the producer can be
+ * blocked until there is room, the oldest (or the newest) frames can be dropped, or only
+ * one frame every n can be kept (in place of the oldest one). Sensor data and open/close operations are never dropped.
+ */
+public class LogQueue {
+
+    /** Block the producer until there is room */
+    public final static int BLOCK = 0;
+    /** Drop the oldest pending frames */
+    public final static int DROP_OLDEST = 1;
+    /** Drop the new frame */
+    public final static int DROP_NEWEST = 2;
+    /** Keep only one frame every n */
+    public final static int EVERY_NTH = 3;
+
+    /** Policy names (as in the preferences) */
+    final static String[] POLICY_NAMES = {"block", "drop_oldest", "drop_newest", "every_nth"};
+
+    /** How long to wait for room before checking again if the target is still alive (ms) */
+    private final static long BLOCK_WAIT = 100;
+
+    /**
+     * An operation waiting in the queue
+     */
+    public interface Item {
+        /** @return the size in bytes of the operation */
+        int size();
+        /** @return if the operation can be dropped */
+        boolean isDroppable();
+        /** Called when the operation is dropped after being accepted */
+        void discard();
+    }
+
+    private final int policy;
+    /** Maximum pending operations (0=unlimited) */
+    private final int maxOps;
+    /** Maximum pending bytes (0=unlimited) */
+    private final long maxBytes;
+    /** Keep a frame every n under pressure */
+    private final int every;
+
+    /** Operations waiting to start, in order */
+    private final ArrayDeque<Item> pending;
+
+    private int ops, highWaterOps, everyCount;
+    private long bytes, highWaterBytes, dropped, total, totalBytes;
+    private boolean closed;
+
+    /**
+     * Create a new queue
+     *
+     * @param policy one of {@link #BLOCK}, {@link #DROP_OLDEST}, {@link #DROP_NEWEST}, {@link #EVERY_NTH}
+     * @param maxOps maximum pending operations (0=unlimited)
+     * @param maxBytes maximum pending bytes (0=unlimited)
+     * @param every keep a frame every n under pressure
+     */
+    public LogQueue(int policy, int maxOps, long maxBytes, int every) {
+        this.policy = policy;
+        this.maxOps = maxOps;
+        this.maxBytes = maxBytes;
+        this.every = Math.max(1, every);
+        pending = new ArrayDeque<>();
+    }
+
+    /**
+     * Parse a queue policy
+     *
+     * @param name the name of the policy
+     * @return the policy, {@link #BLOCK} if unknown
+     */
+    public static int parsePolicy(String name) {
+        for (int i = 0; i < POLICY_NAMES.length; i++)
+            if (POLICY_NAMES[i].equalsIgnoreCase(name))
+                return i;
+        return BLOCK;
+    }
+
+    private boolean isFull(int size) {
+        return (maxOps > 0 && ops >= maxOps) || (maxBytes > 0 && ops > 0 && bytes + size > maxBytes);
+    }
+
+    /**
+     * Try to add an operation to the queue, applying the policy if full
+     *
+     * @param item the operation
+     * @return true if the operation has been accepted, false if dropped
+     */
+    public synchronized boolean offer(Item item) {
+        int size = item.size();
+        if (isFull(size)) {
+            if (item.isDroppable()) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        dropped++;
+                        return false;
+                    case EVERY_NTH:
+                        if (everyCount++ % every != 0) {
+                            dropped++;
+                            return false;
+                        }
+                        break;
+                }
+            }
+            if (policy == DROP_OLDEST || policy == EVERY_NTH)//the frame kept makes room too
+                for (Iterator<Item> it = pending.iterator(); it.hasNext() && isFull(size); ) {
+                    Item old = it.next();
+                    if (old.isDroppable()) {
+                        it.remove();
+                        ops--;
+                        bytes -= old.size();
+                        dropped++;
+                        old.discard();
+                    }
+                }
+            else if (policy == BLOCK)
+                while (isFull(size) && !closed)
+                    try {
+                        wait(BLOCK_WAIT);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+        } else {
+            everyCount = 0;
+        }
+        pending.add(item);
+        ops++;
+        bytes += size;
+        total++;
+        totalBytes += size;
+        if (ops > highWaterOps)
+            highWaterOps = ops;
+        if (bytes > highWaterBytes)
+            highWaterBytes = bytes;
+        return true;
+    }
+
+    /**
+     * Start an operation (on the target thread)
+     *
+     * @param item the operation
+     * @return false if the operation has been dropped in the meantime
+     */
+    public synchronized boolean start(Item item) {
+        return pending.remove(item);
+    }
+
+    /**
+     * Terminate an operation (on the target thread), making room for new ones
+     *
+     * @param item the operation
+     */
+    public synchronized void done(Item item) {
+        ops--;
+        bytes -= item.size();
+        notifyAll();
+    }
+
+    /**
+     * Stop blocking producers (the target is going away)
+     */
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    /** @return number of pending operations (including the running one) */
+    public synchronized int getDepth() {
+        return ops;
+    }
+
+    /** @return pending bytes (including the running operation) */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /** @return maximum number of pending operations so far */
+    public synchronized int getHighWaterMark() {
+        return highWaterOps;
+    }
+
+    /** @return maximum pending bytes so far */
+    public synchronized long getHighWaterBytes() {
+        return highWaterBytes;
+    }
+
+    /** @return number of dropped frames */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /** @return number of accepted operations */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    /** @return bytes of the accepted operations */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "%s queue: %d ops (%d bytes) pending, high-water %d ops (%d bytes), %d/%d dropped",
+                POLICY_NAMES[policy], ops, bytes, highWaterOps, highWaterBytes, dropped, total + dropped);
+    }
+
+}
@@ -0,0 +1,231 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Fast LZ compression in pure Java, written as a standard LZ4 frame (readable by the lz4 tools)
+ * with independent blocks and no checksums. Blocks that do not compress are stored as they are.
+ */
+public class Lz4Codec implements CompressedOutputStream.Codec {
+
+    private final static int MAGIC = 0x184D2204;
+    /** Frame flags: version 01, independent blocks */
+    private final static int FLG = 0x60;
+    /** Block maximum sizes, by the BD id 4-7 */
+    private final static int[] MAX_SIZES = {64 * 1024, 256 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+
+    private final static int MIN_MATCH = 4;
+    /** Matches cannot start in the last 12 bytes, and the last 5 bytes are always literals */
+    private final static int MF_LIMIT = 12, LAST_LITERALS = 5;
+    private final static int MAX_OFFSET = 65535;
+    private final static int HASH_BITS = 14;
+
+    private final int bd;
+    private final int[] table = new int[1 << HASH_BITS];
+    private byte[] compressed = new byte[0];
+    private final byte[] header = new byte[7];
+    private final byte[] size = new byte[4];
+
+    /**
+     * @param blockSize the size of the blocks (at most 4MB)
+     */
+    public Lz4Codec(int blockSize) {
+        int id = 0;
+        while (id < MAX_SIZES.length - 1 && MAX_SIZES[id] < blockSize)
+            id++;
+        if (blockSize > MAX_SIZES[id])
+            throw new IllegalArgumentException("LZ4 blocks are at most 4MB");
+        bd = (id + 4) << 4;
+    }
+
+    @Override
+    public String getExtension() {
+        return ".lz4";
+    }
+
+    @Override
+    public int begin(OutputStream out) throws IOException {
+        putInt(MAGIC, header, 0);
+        header[4] = (byte) FLG;
+        header[5] = (byte) bd;
+        header[6] = (byte) (xxh32(header, 4, 2) >>> 8);
+        out.write(header);
+        return header.length;
+    }
+
+    @Override
+    public int compress(byte[] block, int length, OutputStream out) throws IOException {
+        if (compressed.length < maxCompressedLength(length))
+            compressed = new byte[maxCompressedLength(length)];
+        int n = compress(block, 0, length, compressed, 0, table);
+        if (n >= length) {
+            putInt(0x80000000 | length, size, 0);
+            out.write(size);
+            out.write(block, 0, length);
+            return size.length + length;
+        }
+        putInt(n, size, 0);
+        out.write(size);
+        out.write(compressed, 0, n);
+        return size.length + n;
+    }
+
+    @Override
+    public int end(OutputStream out) throws IOException {
+        putInt(0, size, 0);
+        out.write(size);
+        return size.length;
+    }
+
+    /**
+     * @param length the uncompressed length
+     * @return the maximum length of the compressed block
+     */
+    public static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compress a block (LZ4 block format)
+     *
+     * @param src the source buffer
+     * @param off the start of the block
+     * @param len the length of the block
+     * @param dst the destination (at least {@link #maxCompressedLength(int)} long after dstOff)
+     * @param dstOff where to start writing
+     * @param table a hash table of 2^14 entries (overwritten)
+     * @return the compressed length
+     */
+    public static int compress(byte[] src, int off, int len, byte[] dst, int dstOff, int[] table) {
+        int end = off + len, anchor = off, ip = off, dp = dstOff;
+        int mfLimit = end - MF_LIMIT, matchLimit = end - LAST_LITERALS;
+        if (len > MF_LIMIT) {
+            Arrays.fill(table, -1);
+            int misses = 0;
+            while (ip < mfLimit) {
+                int seq = readInt(src, ip);
+                int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+                int ref = table[h];
+                table[h] = ip;
+                if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+                    ip += 1 + (misses++ >> 6);//skip faster in incompressible data
+                    continue;
+                }
+                misses = 0;
+                while (ip > anchor && ref > off && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLen = MIN_MATCH;
+                while (ip + matchLen < matchLimit && src[ip + matchLen] == src[ref + matchLen])
+                    matchLen++;
+                dp = writeSequence(src, anchor, ip - anchor, ip - ref, matchLen, dst, dp);
+                ip += matchLen;
+                anchor = ip;
+            }
+        }
+        return writeSequence(src, anchor, end - anchor, 0, 0, dst, dp);
+    }
+
+    /**
+     * Write literals followed by a match (no match if matchLen is 0: last literals)
+     */
+    private static int writeSequence(byte[] src, int lit, int litLen, int offset, int matchLen, byte[] dst, int dp) {
+        int token = dp++;
+        int ml = matchLen - MIN_MATCH;
+        dst[token] = (byte) ((Math.min(litLen, 15) << 4) | (matchLen > 0 ? Math.min(ml, 15) : 0));
+        if (litLen >= 15)
+            dp = writeLength(litLen - 15, dst, dp);
+        System.arraycopy(src, lit, dst, dp, litLen);
+        dp += litLen;
+        if (matchLen > 0) {
+            dst[dp++] = (byte) offset;
+            dst[dp++] = (byte) (offset >>> 8);
+            if (ml >= 15)
+                dp = writeLength(ml - 15, dst, dp);
+        }
+        return dp;
+    }
+
+    private static int writeLength(int l, byte[] dst, int dp) {
+        for (; l >= 255; l -= 255)
+            dst[dp++] = (byte) 255;
+        dst[dp++] = (byte) l;
+        return dp;
+    }
+
+    /**
+     * Decompress a block (LZ4 block format)
+     *
+     * @param src the source buffer
+     * @param off the start of the compressed block
+     * @param len the length of the compressed block
+     * @param dst the destination, large enough for the uncompressed block
+     * @param dstOff where to start writing
+     * @return the uncompressed length
+     * @throws IOException if the block is corrupted
+     */
+    public static int decompress(byte[] src, int off, int len, byte[] dst, int dstOff) throws IOException {
+        int sp = off, end = off + len, dp = dstOff;
+        try {
+            while (true) {
+                int token = src[sp++] & 0xff;
+                int litLen = token >>> 4;
+                if (litLen == 15)
+                    for (int b = 255; b == 255; litLen += b)
+                        b = src[sp++] & 0xff;
+                System.arraycopy(src, sp, dst, dp, litLen);
+                sp += litLen;
+                dp += litLen;
+                if (sp >= end)
+                    return dp - dstOff;
+                int offset = (src[sp] & 0xff) | (src[sp + 1] & 0xff) << 8;
+                sp += 2;
+                int matchLen = token & 15;
+                if (matchLen == 15)
+                    for (int b = 255; b == 255; matchLen += b)
+                        b = src[sp++] & 0xff;
+                matchLen += MIN_MATCH;
+                if (offset == 0 || dp - offset < dstOff)
+                    throw new IOException("Corrupted LZ4 block");
+                for (int ref = dp - offset, e = dp + matchLen; dp < e; )
+                    dst[dp++] = dst[ref++];
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted LZ4 block");
+        }
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    }
+
+    private static void putInt(int v, byte[] b, int off) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+
+    private final static int PRIME1 = 0x9E3779B1, PRIME2 = 0x85EBCA77, PRIME3 = 0xC2B2AE3D,
+            PRIME4 = 0x27D4EB2F, PRIME5 = 0x165667B1;
+
+    /**
+     * xxHash32 with seed 0, for short inputs (less than 16 bytes, as the frame descriptor)
+     */
+    static int xxh32(byte[] b, int off, int len) {
+        int h = PRIME5 + len, i = off, end = off + len;
+        for (; i + 4 <= end; i += 4)
+            h = Integer.rotateLeft(h + readInt(b, i) * PRIME3, 17) * PRIME4;
+        for (; i < end; i++)
+            h = Integer.rotateLeft(h + (b[i] & 0xff) * PRIME5, 11) * PRIME1;
+        h ^= h >>> 15;
+        h *= PRIME2;
+        h ^= h >>> 13;
+        h *= PRIME3;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -0,0 +1,89 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append to a file through a moving memory-mapped window.
+ * <p>
+ * The file is grown in large extents (mapping beyond its end extends it), so that each write is
+ * just a copy in memory, with no system call. This is not a preallocation: the extent is sparse,
+ * and the file-system allocates its blocks only as the pages are written back. On
+ * {@link #close()} the file is truncated to the length actually written.
+ */
+public class MappedFileOutputStream extends OutputStream {
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    /** Size of each mapped extent */
+    private final int extent;
+    /** Current window */
+    private MappedByteBuffer window;
+    /** Position in the file of the current window */
+    private long windowStart;
+
+    /**
+     * Open a file for writing, replacing its content
+     *
+     * @param file the file
+     * @param extent the size of each mapped extent (bytes)
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public MappedFileOutputStream(File file, int extent) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        channel = this.file.getChannel();
+        this.extent = extent;
+        window = channel.map(FileChannel.MapMode.READ_WRITE, 0, extent);
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public long position() {
+        return windowStart + window.position();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!window.hasRemaining())
+            nextWindow();
+        window.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!window.hasRemaining())
+                nextWindow();
+            int l = Math.min(len, window.remaining());
+            window.put(b, off, l);
+            off += l;
+            len -= l;
+        }
+    }
+
+    /** Map the next extent */
+    private void nextWindow() throws IOException {
+        windowStart += window.position();
+        window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, extent);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+        try {
+            long length = position();
+            window = null;
+            channel.truncate(length);
+        } finally {
+            file.close();
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the metrics of the pipeline: latency {@link Histogram}s of each stage and counters,
+ * optionally labelled (i.e. by target), exposed in the Prometheus text format.
+ * <p>
+ * Metrics are looked up (or created) once, when the component is set up: updating them is then
+ * lock-free and allocation-free. They are cumulative over the life of the process.
+ */
+public class Metrics {
+
+    /** Prefix of all the metric names */
+    public final static String PREFIX = "sensorlogger_";
+
+    /** Quantiles exposed for each histogram (1 is the maximum) */
+    private final static double[] QUANTILES = {0.5, 0.9, 0.99, 0.999, 1};
+
+    private final static Metrics DEFAULT = new Metrics();
+
+    /** A metric name, with all its labelled instances */
+    private static class Family {
+        final String help, type;
+        final Map<String, Object> metrics = new LinkedHashMap<>();
+        Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * @return the registry of the application
+     */
+    public static Metrics get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get or create a latency histogram, exposed in seconds
+     *
+     * @param name the name, without {@link #PREFIX} (i.e. "encode_seconds")
+     * @param help the description
+     * @param labels label names and values, alternated (i.e. "target", "LogFile")
+     * @return the histogram
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        String key = labels(labels);
+        synchronized (this) {
+            Family family = family(name, help, "summary");
+            Histogram ret = (Histogram) family.metrics.get(key);
+            if (ret == null) {
+                ret = new Histogram(key.isEmpty() ? name : name + "{" + key + "}");
+                family.metrics.put(key, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Get or create a counter
+     *
+     * @param name the name, without {@link #PREFIX} (i.e. "frames_total")
+     * @param help the description
+     * @param labels label names and values, alternated
+     * @return the counter
+     */
+    public AtomicLong counter(String name, String help, String... labels) {
+        String key = labels(labels);
+        synchronized (this) {
+            Family family = family(name, help, "counter");
+            AtomicLong ret = (AtomicLong) family.metrics.get(key);
+            if (ret == null) {
+                ret = new AtomicLong();
+                family.metrics.put(key, ret);
+            }
+            return ret;
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        Family ret = families.get(name);
+        if (ret == null) {
+            ret = new Family(help, type);
+            families.put(name, ret);
+        } else if (!ret.type.equals(type))
+            throw new IllegalArgumentException("Metric " + name + " is a " + ret.type + ", not a " + type);
+        return ret;
+    }
+
+    /** Format the labels: name="value",... */
+    private static String labels(String... labels) {
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("Labels must be name/value pairs");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(labels[i]).append("=\"").append(labels[i + 1]
+                    .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Expose all the metrics
+     *
+     * @param sb where to append them, in the Prometheus text format (version 0.0.4)
+     * @return the builder
+     */
+    public synchronized StringBuilder write(StringBuilder sb) {
+        for (Map.Entry<String, Family> f : families.entrySet()) {
+            String name = PREFIX + f.getKey();
+            Family family = f.getValue();
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Object> m : family.metrics.entrySet()) {
+                String labels = m.getKey();
+                if (m.getValue() instanceof Histogram) {
+                    Histogram h = (Histogram) m.getValue();
+                    String sep = labels.isEmpty() ? "" : ",";
+                    for (double q : QUANTILES)
+                        sb.append(name).append('{').append(labels).append(sep).append("quantile=\"")
+                                .append(q == 1 ? "1" : Double.toString(q)).append("\"} ")
+                                .append(seconds(q == 1 ? h.getMax() : h.getPercentile(q * 100))).append('\n');
+                    String braces = labels.isEmpty() ? "" : "{" + labels + "}";
+                    sb.append(name).append("_sum").append(braces).append(' ').append(seconds(h.getSum())).append('\n');
+                    sb.append(name).append("_count").append(braces).append(' ').append(h.getCount()).append('\n');
+                } else {
+                    sb.append(name);
+                    if (!labels.isEmpty())
+                        sb.append('{').append(labels).append('}');
+                    sb.append(' ').append(((AtomicLong) m.getValue()).get()).append('\n');
+                }
+            }
+        }
+        return sb;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.US, "%.9f", nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return write(new StringBuilder()).toString();
+    }
+
+}
@@ -0,0 +1,172 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Frame the parts of a stream (of the streaming server) as the buffers of a gathering write,
+ * with no copy of the payloads, and reusable part headers (one for data, one for images).
+ * <p>
+ * In the multipart protocol a part is the boundary line and its headers, the payload and a CRLF.
+ * In the binary protocol it is a fixed big-endian header of {@link #HEADER_SIZE} bytes: int32 type
+ * ({@link #TYPE_IMAGE_JPEG}, ...), int32 sequence number (per type, so that skipped frames can be
+ * detected), int64 timestamp and int32 length, followed by the payload. The stream ends with a
+ * {@link #TYPE_END} header. A frame identical to the previous one is a {@link #TYPE_REPEAT} header
+ * with no payload (in the multipart protocol it is not sent, the viewers keep showing the previous one).
+ * <p>
+ * The headers of the sensor data (the CSV headers line, or the header of the binary sensor log)
+ * are sent before the first data part of each client: the CSV headers as a
+ * {@link #TYPE_TEXT_HEADERS} part in the binary protocol, otherwise at the start of the payload.
+ */
+public class PartFramer {
+
+    /** Size of the part header in the binary protocol */
+    public static final int HEADER_SIZE = 20;
+    /** Part types of the binary protocol */
+    public static final int TYPE_END = 0;
+    public static final int TYPE_IMAGE_JPEG = 1;
+    public static final int TYPE_IMAGE_PNG = 2;
+    public static final int TYPE_IMAGE = 3;
+    /** Repeat the previous image, with a new sequence number and timestamp */
+    public static final int TYPE_REPEAT = 4;
+    public static final int TYPE_TEXT_HEADERS = 16;
+    public static final int TYPE_DATA_CSV = 17;
+    public static final int TYPE_DATA_BINARY = 18;
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final boolean binary;
+    /** Boundary line to separate parts, and end of the multipart stream */
+    private final String boundaryLine;
+    private final byte[] end;
+    /** Reusable part headers, of data and images */
+    private ByteBuffer dataHead, imageHead;
+    private CsvEncoder dataText, imageText;
+
+    /**
+     * @param binary true for the binary protocol, false for multipart
+     * @param boundary the multipart boundary
+     */
+    public PartFramer(boolean binary, String boundary) {
+        this.binary = binary;
+        boundaryLine = "\r\n--" + boundary + "\r\n";
+        end = ("\r\n--" + boundary + "--\r\n\r\n").getBytes();
+        if (binary) {
+            dataHead = ByteBuffer.allocate(HEADER_SIZE);
+            imageHead = ByteBuffer.allocate(HEADER_SIZE);
+        } else {
+            dataText = new CsvEncoder(256);
+            imageText = new CsvEncoder(256);
+        }
+    }
+
+    /**
+     * @return true for the binary protocol
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Add the buffers of a part: header, payload and (multipart) CRLF. The buffers are valid until
+     * the next part of the same kind (data or image)
+     *
+     * @param list the buffers of the gathering write
+     * @param payload the payload (wrapped, not copied)
+     * @param contentType the content type of the payload
+     * @param seq the sequence number of the part
+     * @param timestamp the timestamp of the part
+     * @param isImage if an image or data
+     * @param headers the headers of the data, to send before it (null if none)
+     * @return true if the headers have been sent
+     */
+    public boolean frame(List<ByteBuffer> list, FrameBuffer payload, String contentType, int seq, long timestamp,
+                         boolean isImage, byte[] headers) {
+        boolean sendHeaders = !isImage && headers != null;
+        int prefix = 0;
+        ByteBuffer body = ByteBuffer.wrap(payload.data(), 0, payload.length());
+        if (binary) {
+            int type = getBinaryType(contentType);
+            if (sendHeaders && type == TYPE_DATA_CSV) {
+                ByteBuffer textHead = putBinaryHeader(ByteBuffer.allocate(HEADER_SIZE + headers.length),
+                        TYPE_TEXT_HEADERS, 0, timestamp, headers.length);
+                textHead.limit(textHead.capacity());
+                textHead.position(HEADER_SIZE);
+                textHead.put(headers).flip();
+                list.add(textHead);
+            } else if (sendHeaders)
+                prefix = headers.length;
+            list.add(putBinaryHeader(isImage ? imageHead : dataHead, type, seq, timestamp, prefix + payload.length()));
+        } else {
+            prefix = sendHeaders ? headers.length : 0;
+            CsvEncoder head = (isImage ? imageText : dataText).reset()
+                    .append(boundaryLine)
+                    .append("Content-type: ").append(contentType)
+                    .append("\r\nContent-Length: ").append(prefix + payload.length())
+                    .append("\r\nX-Timestamp: ").append(timestamp)
+                    .append("\r\n\r\n");
+            list.add(ByteBuffer.wrap(head.buffer(), 0, head.length()));
+        }
+        if (prefix > 0)
+            list.add(ByteBuffer.wrap(headers));
+        list.add(body);
+        if (!binary)
+            list.add(ByteBuffer.wrap(CRLF));
+        return sendHeaders;
+    }
+
+    /**
+     * Add the header of a repeated image (binary protocol only). The buffer is valid until the
+     * next image part
+     *
+     * @param list the buffers of the gathering write
+     * @param seq the sequence number of the part
+     * @param timestamp the timestamp of the part
+     * @return false if the protocol has no repeats (nothing added)
+     */
+    public boolean repeat(List<ByteBuffer> list, int seq, long timestamp) {
+        if (!binary)
+            return false;
+        list.add(putBinaryHeader(imageHead, TYPE_REPEAT, seq, timestamp, 0));
+        return true;
+    }
+
+    /**
+     * @return the end of the stream, ready to be written
+     */
+    public ByteBuffer end() {
+        return binary
+                ? putBinaryHeader(dataHead, TYPE_END, 0, 0, 0)
+                : ByteBuffer.wrap(end);
+    }
+
+    /**
+     * Get the type of a part in the binary protocol
+     *
+     * @param contentType the content type
+     * @return the type code
+     */
+    static int getBinaryType(String contentType) {
+        if ("image/jpeg".equals(contentType))
+            return TYPE_IMAGE_JPEG;
+        else if ("image/png".equals(contentType))
+            return TYPE_IMAGE_PNG;
+        else if (contentType.startsWith("image"))
+            return TYPE_IMAGE;
+        else if ("text/csv".equals(contentType))
+            return TYPE_DATA_CSV;
+        return TYPE_DATA_BINARY;
+    }
+
+    /**
+     * Write a part header of the binary protocol
+     *
+     * @param head the buffer (at least {@link #HEADER_SIZE} bytes)
+     * @return the buffer, ready to be written
+     */
+    static ByteBuffer putBinaryHeader(ByteBuffer head, int type, int seq, long timestamp, int length) {
+        head.clear();
+        head.putInt(type).putInt(seq).putLong(timestamp).putInt(length).flip();
+        return head;
+    }
+}
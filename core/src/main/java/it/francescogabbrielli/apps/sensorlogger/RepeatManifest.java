@@ -0,0 +1,46 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+/**
+ * Manifest of the repeated frames of a recording (duplicated fill-ins logged as references to the
+ * previous frame), in csv: filename of the repetition, filename of the frame repeated
+ */
+public class RepeatManifest {
+
+    /** Filename of the manifest, next to the recording */
+    public final static String FILENAME = "repeats.csv";
+
+    private final static String HEADER = "filename,repeats\n";
+
+    private CsvEncoder csv;
+
+    /**
+     * Add a repetition (nothing if the filenames are the same: the file is already there)
+     *
+     * @param filename the filename of the repetition
+     * @param reference the filename of the frame repeated
+     */
+    public void add(String filename, String reference) {
+        if (filename.equals(reference))
+            return;
+        if (csv == null)
+            csv = new CsvEncoder(1024).append(HEADER);
+        csv.append(filename).append(',').append(reference).append('\n');
+    }
+
+    public boolean isEmpty() {
+        return csv == null;
+    }
+
+    /**
+     * Take the content, clearing the manifest
+     *
+     * @return the manifest (a new buffer, with one reference), or null if empty
+     */
+    public FrameBuffer take() {
+        if (csv == null)
+            return null;
+        FrameBuffer ret = FrameBuffer.wrap(csv.toByteArray());
+        csv = null;
+        return ret;
+    }
+}
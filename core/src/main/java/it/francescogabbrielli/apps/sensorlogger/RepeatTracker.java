@@ -0,0 +1,76 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+/**
+ * Repeat bookkeeping of a target: the last frame it has logged, that a repeated frame (a
+ * duplicated fill-in) can reference, and the {@link RepeatManifest} of the repetitions logged
+ * as references
+ */
+public class RepeatTracker {
+
+    /** Frame time and filename of the last frame logged (-1 if none) */
+    private long lastTime = -1;
+    private String last;
+    private final RepeatManifest manifest = new RepeatManifest();
+
+    /**
+     * A frame has been logged: the next repetitions can reference it
+     *
+     * @param timestamp the frame time
+     * @param filename the filename of the frame
+     */
+    public void logged(long timestamp, String filename) {
+        lastTime = timestamp;
+        last = filename;
+    }
+
+    /**
+     * The last frame cannot be referenced anymore (i.e. it is in a previous archive segment)
+     */
+    public void reset() {
+        logged(-1, null);
+    }
+
+    /**
+     * @param reference the frame time of the frame repeated
+     * @return if the repetition can be logged as a reference to the last frame
+     */
+    public boolean canReference(long reference) {
+        return lastTime >= 0 && reference == lastTime;
+    }
+
+    /**
+     * A repetition has been logged in full, because its frame could not be referenced: the next
+     * repetitions of the same frame can reference it
+     *
+     * @param timestamp the frame time of the repetition
+     * @param reference the frame time of the frame repeated
+     */
+    public void loggedInFull(long timestamp, long reference) {
+        if (lastTime == timestamp)
+            lastTime = reference;
+    }
+
+    /** @return the filename of the last frame logged (null if none) */
+    public String getLast() {
+        return last;
+    }
+
+    /**
+     * Add a repetition to the manifest (see {@link RepeatManifest#add})
+     *
+     * @param filename the filename of the repetition
+     * @param reference the filename of the frame repeated
+     */
+    public void addToManifest(String filename, String reference) {
+        manifest.add(filename, reference);
+    }
+
+    /**
+     * Take the manifest, clearing it
+     *
+     * @return the manifest (a new buffer, with one reference), or null if empty
+     */
+    public FrameBuffer takeManifest() {
+        return manifest.take();
+    }
+}
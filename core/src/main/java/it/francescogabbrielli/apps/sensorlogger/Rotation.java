@@ -40,10 +40,21 @@ public class Rotation {
     }
 
     public float[] multiply(float[] values) {
-        float[] result = new float[values.length];
-        result[0] = a11*values[0]+a12*values[1]+a13*values[2];
-        result[1] = a21*values[0]+a22*values[1]+a23*values[2];
-        result[2] = a31*values[0]+a32*values[1]+a33*values[2];
+        return multiply(values, new float[values.length]);
+    }
+
+    /**
+     * Rotate the first 3 values, without allocating
+     *
+     * @param values the values to rotate
+     * @param result where to write the rotated values (can be the same array as values)
+     * @return the result
+     */
+    public float[] multiply(float[] values, float[] result) {
+        float x = values[0], y = values[1], z = values[2];
+        result[0] = a11*x+a12*y+a13*z;
+        result[1] = a21*x+a22*y+a23*z;
+        result[2] = a31*x+a32*y+a33*z;
         return result;
     }
     
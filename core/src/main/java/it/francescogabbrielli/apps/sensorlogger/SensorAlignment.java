@@ -0,0 +1,175 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Align the readings of the sensors to the time of a frame, using the recent history of
+ * each sensor kept in its {@link SensorRing}.
+ * <p>
+ * For each sensor the residual skew (the signed distance in time between the frame and the
+ * reading actually used, or the nearest one when interpolating) is kept, together with some
+ * statistics over the whole recording.
+ */
+public class SensorAlignment {
+
+    /** Just take the latest reading, whenever it arrived (legacy) */
+    public final static int LATEST = 0;
+    /** Zero-order hold: take the latest reading not after the frame */
+    public final static int HOLD = 1;
+    /** Take the reading nearest to the frame */
+    public final static int NEAREST = 2;
+    /** Linearly interpolate the readings around the frame */
+    public final static int LINEAR = 3;
+
+    /** Mode names (as in the preferences) */
+    final static String[] MODE_NAMES = {"latest", "hold", "nearest", "linear"};
+
+    private final int mode;
+
+    /** Scratch values of the reading after the frame (when interpolating) */
+    private final float[] next;
+
+    /** Last skew of each sensor */
+    private final long[] skew;
+    /** Sum of the absolute skews of each sensor */
+    private final long[] skewSum;
+    /** Maximum absolute skew of each sensor */
+    private final long[] skewMax;
+    /** Number of alignments of each sensor */
+    private final int[] count;
+
+    /**
+     * Create a new alignment
+     *
+     * @param mode one of {@link #LATEST}, {@link #HOLD}, {@link #NEAREST}, {@link #LINEAR}
+     * @param sensors the number of sensors
+     * @param stride the maximum number of values of a reading
+     */
+    public SensorAlignment(int mode, int sensors, int stride) {
+        this.mode = mode;
+        next = new float[stride];
+        skew = new long[sensors];
+        skewSum = new long[sensors];
+        skewMax = new long[sensors];
+        count = new int[sensors];
+    }
+
+    /**
+     * Parse an alignment mode
+     *
+     * @param name the name of the mode
+     * @return the mode, {@link #LATEST} if unknown
+     */
+    public static int parseMode(String name) {
+        for (int i = 0; i < MODE_NAMES.length; i++)
+            if (MODE_NAMES[i].equalsIgnoreCase(name))
+                return i;
+        return LATEST;
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * Read the values of a sensor aligned to the given time
+     *
+     * @param s the sensor index
+     * @param ring the readings of the sensor
+     * @param time the time of the frame (same time base of the readings)
+     * @param dst where to write the aligned values
+     * @return false if there is no reading at all
+     */
+    public boolean align(int s, SensorRing ring, long time, float[] dst) {
+        long head = ring.getHead();
+        if (head < 0)
+            return false;
+
+        long ts = SensorRing.NONE;
+        if (mode != LATEST) {
+            // walk back to the newest reading not after the frame
+            long oldest = Math.max(0, head - ring.getCapacity() + 1);
+            long seq = head, after = SensorRing.NONE, tsAfter = SensorRing.NONE;
+            long tsBefore = ring.getTimestamp(seq);
+            while (tsBefore != SensorRing.NONE && tsBefore > time && seq > oldest) {
+                after = seq;
+                tsAfter = tsBefore;
+                tsBefore = ring.getTimestamp(--seq);
+            }
+            if (tsBefore != SensorRing.NONE && tsBefore > time) {
+                // nothing before the frame (anymore): the oldest reading after it is the best guess
+                ts = ring.read(seq, dst);
+            } else if (tsBefore == SensorRing.NONE) {
+                if (after != SensorRing.NONE)
+                    ts = ring.read(after, dst);
+            } else if (after == SensorRing.NONE || mode == HOLD) {
+                ts = ring.read(seq, dst);
+            } else if (mode == NEAREST) {
+                ts = time - tsBefore <= tsAfter - time ? ring.read(seq, dst) : ring.read(after, dst);
+            } else if (ring.read(after, next) != SensorRing.NONE && ring.read(seq, dst) != SensorRing.NONE) {
+                float w = (float) ((double) (time - tsBefore) / (tsAfter - tsBefore));
+                for (int i = 0, l = Math.min(ring.getLength(), dst.length); i < l; i++)
+                    dst[i] += (next[i] - dst[i]) * w;
+                ts = time - tsBefore <= tsAfter - time ? tsBefore : tsAfter;
+            }
+        }
+        if (ts == SensorRing.NONE)//legacy mode, or overwritten while looking for it
+            ts = ring.read(dst);
+
+        long d = ts - time;
+        skew[s] = d;
+        d = Math.abs(d);
+        skewSum[s] += d;
+        if (d > skewMax[s])
+            skewMax[s] = d;
+        count[s]++;
+        return true;
+    }
+
+    /**
+     * @param s the sensor index
+     * @return the skew of the last alignment of the sensor (in ns)
+     */
+    public long getSkew(int s) {
+        return skew[s];
+    }
+
+    /**
+     * @param s the sensor index
+     * @return the mean absolute skew of the sensor (in ns)
+     */
+    public long getMeanSkew(int s) {
+        return count[s] > 0 ? skewSum[s] / count[s] : 0;
+    }
+
+    /**
+     * @param s the sensor index
+     * @return the maximum absolute skew of the sensor (in ns)
+     */
+    public long getMaxSkew(int s) {
+        return skewMax[s];
+    }
+
+    /**
+     * Reset the statistics
+     */
+    public void reset() {
+        Arrays.fill(skew, 0);
+        Arrays.fill(skewSum, 0);
+        Arrays.fill(skewMax, 0);
+        Arrays.fill(count, 0);
+    }
+
+    /**
+     * Describe the skew of a sensor
+     *
+     * @param s the sensor index
+     * @return a summary of the skew statistics
+     */
+    public String toString(int s) {
+        return String.format(Locale.US, "%s skew: mean %.3fms, max %.3fms (%d frames)",
+                MODE_NAMES[mode], getMeanSkew(s) / 1e6, getMaxSkew(s) / 1e6, count[s]);
+    }
+
+}
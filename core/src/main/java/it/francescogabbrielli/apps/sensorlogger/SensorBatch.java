@@ -0,0 +1,153 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.Arrays;
+
+/**
+ * Coalesces sensor data rows (or blocks) into batches, to be sent as a single part.
+ * <p>
+ * A batch is ready when it reaches a size threshold, or when its first row is older than a
+ * maximum latency, whichever comes first. The batch grows up to a maximum size: beyond that,
+ * the oldest rows are dropped (and counted), so it never overflows. There are two buffers:
+ * one is filled while the other (taken) is being sent.
+ */
+public class SensorBatch {
+
+    private byte[] data, spare;
+    private int length;
+    /** End offsets of the rows in the current batch */
+    private int[] rows;
+    private int nRows;
+
+    private int flushBytes, maxBytes;
+    private long maxLatency;
+
+    /** Arrival time of the first row in the batch (System.nanoTime) */
+    private long first;
+    /** Timestamp of the last row */
+    private long timestamp;
+    private long dropped, droppedBytes;
+
+    /**
+     * Create a new batch
+     *
+     * @param flushBytes the size beyond which the batch is ready
+     * @param maxLatency the age of the first row beyond which the batch is ready (ns)
+     * @param maxBytes the maximum size of the batch
+     */
+    public SensorBatch(int flushBytes, long maxLatency, int maxBytes) {
+        configure(flushBytes, maxLatency, maxBytes);
+        data = new byte[Math.min(Math.max(flushBytes * 2, 1024), this.maxBytes)];
+        spare = new byte[0];
+        rows = new int[64];
+    }
+
+    /**
+     * Change the thresholds
+     *
+     * @param flushBytes the size beyond which the batch is ready
+     * @param maxLatency the age of the first row beyond which the batch is ready (ns)
+     * @param maxBytes the maximum size of the batch
+     */
+    public void configure(int flushBytes, long maxLatency, int maxBytes) {
+        this.flushBytes = Math.max(1, flushBytes);
+        this.maxLatency = maxLatency;
+        this.maxBytes = Math.max(maxBytes, this.flushBytes);
+    }
+
+    /**
+     * Append a row
+     *
+     * @param src the row bytes
+     * @param offset the offset of the row
+     * @param len the length of the row
+     * @param timestamp the timestamp of the row
+     * @param now the current time (System.nanoTime)
+     */
+    public void append(byte[] src, int offset, int len, long timestamp, long now) {
+        if (len > maxBytes) {//cannot fit anyway: keep the tail
+            offset += len - maxBytes;
+            len = maxBytes;
+        }
+        if (length + len > maxBytes)
+            drop(length + len - maxBytes * 3 / 4);
+        if (length + len > data.length)
+            data = Arrays.copyOf(data, Math.min(maxBytes, Math.max(length + len, data.length * 2)));
+        if (nRows == rows.length)
+            rows = Arrays.copyOf(rows, nRows * 2);
+        if (length == 0)
+            first = now;
+        System.arraycopy(src, offset, data, length, len);
+        length += len;
+        rows[nRows++] = length;
+        this.timestamp = timestamp;
+    }
+
+    /** Drop the oldest rows, to free at least the given bytes */
+    private void drop(int bytes) {
+        int r = 0;
+        while (r < nRows && rows[r] < bytes)
+            r++;
+        r = Math.min(r + 1, nRows);
+        int cut = rows[r - 1];
+        System.arraycopy(data, cut, data, 0, length - cut);
+        for (int i = r; i < nRows; i++)
+            rows[i - r] = rows[i] - cut;
+        nRows -= r;
+        length -= cut;
+        dropped += r;
+        droppedBytes += cut;
+    }
+
+    /**
+     * @param now the current time (System.nanoTime)
+     * @return if the batch should be sent
+     */
+    public boolean isReady(long now) {
+        return length >= flushBytes || (length > 0 && now - first >= maxLatency);
+    }
+
+    /**
+     * @return when the batch will be ready (System.nanoTime), Long.MAX_VALUE if empty
+     */
+    public long getDeadline() {
+        return length > 0 ? first + maxLatency : Long.MAX_VALUE;
+    }
+
+    /**
+     * Take the current batch, and start a new one in the other buffer. The array of the batch
+     * taken is valid until the next call.
+     *
+     * @return the batch (not pooled), or null if empty
+     */
+    public FrameBuffer take() {
+        if (length == 0)
+            return null;
+        FrameBuffer ret = FrameBuffer.wrap(data).setLength(length);
+        byte[] tmp = data;
+        data = spare.length > 0 ? spare : new byte[Math.min(tmp.length, Math.max(flushBytes * 2, 1024))];
+        spare = tmp;
+        length = 0;
+        nRows = 0;
+        return ret;
+    }
+
+    /** @return the timestamp of the last row */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /** @return the number of dropped rows */
+    public long getDropped() {
+        return dropped;
+    }
+
+    /** @return the number of dropped bytes */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+}
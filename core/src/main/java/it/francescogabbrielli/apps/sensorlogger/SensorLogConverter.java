@@ -0,0 +1,66 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Convert a binary sensor log into the same .csv that would have been logged as text.
+ * <p>
+ * Usage: {@code java it.francescogabbrielli.apps.sensorlogger.SensorLogConverter sensors.bin [sensors.csv]}
+ */
+public class SensorLogConverter {
+
+    /**
+     * Convert a binary sensor log
+     *
+     * @param reader the binary log
+     * @param out where to write the .csv
+     * @param headers if to write the headers row
+     * @return the number of rows converted
+     * @throws IOException if the conversion fails
+     */
+    public static int convert(SensorLogReader reader, OutputStream out, boolean headers) throws IOException {
+        SensorLogHeader header = reader.getHeader();
+        int columns = header.getColumnCount();
+        CsvEncoder encoder = new CsvEncoder(256);
+        if (headers) {
+            encoder.append("Frame Time");
+            for (int i = 0; i < columns; i++)
+                encoder.append(',').append(header.getColumnName(i));
+            out.write(encoder.append('\n').buffer(), 0, encoder.length());
+        }
+        int rows = 0;
+        while (reader.next()) {
+            encoder.reset().append(reader.getTimestamp() / 1000000L);
+            for (int i = 0; i < columns; i++) {
+                encoder.append(',');
+                if (header.getAxis(i) == SensorLogHeader.NO_AXIS)//skew, in microseconds
+                    encoder.append((long) reader.getValue(i));
+                else
+                    encoder.append(reader.getValue(i));
+            }
+            out.write(encoder.append('\n').buffer(), 0, encoder.length());
+            rows++;
+        }
+        out.flush();
+        return rows;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SensorLogConverter <sensors.bin> [<sensors.csv>]");
+            System.exit(1);
+        }
+        String output = args.length > 1 ? args[1]
+                : args[0].replaceAll("\\" + SensorLogHeader.EXTENSION + "$", "") + ".csv";
+        try (SensorLogReader reader = new SensorLogReader(new FileInputStream(args[0]));
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(output))) {
+            int rows = convert(reader, out, true);
+            System.out.println("Converted " + rows + " rows into " + output);
+        }
+    }
+
+}
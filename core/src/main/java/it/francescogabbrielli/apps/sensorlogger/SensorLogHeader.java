@@ -0,0 +1,233 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Header of the binary sensor log format.
+ * <p>
+ * A binary sensor log is made of this header followed by fixed-width rows, all little-endian:
+ * <pre>
+ *   header: "SLOG" | int16 version | int32 header length (including the previous fields)
+ *           | int64 start timestamp (ns) | int64 frame duration (ns) | int8 x3 rotation (pi/2 multiples)
+ *           | int16 columns | columns x (int32 sensor type | int8 axis | int16 name length | UTF-8 name)
+ *   row:    int64 frame time (ns, since the start) | float32 x columns
+ * </pre>
+ * Rows are appended in blocks, so that a file can be read (or mapped) at any row with no parsing.
+ * <p>
+ * Version 2 adds an int8 encoding of the rows after the rotation: {@link #ENCODING_RAW} rows as
+ * above, or {@link #ENCODING_GORILLA} compressed blocks (see {@link GorillaEncoder}). Raw logs are
+ * still written as version 1.
+ */
+public class SensorLogHeader {
+
+    /** Magic number at the beginning of a binary sensor log */
+    public final static byte[] MAGIC = {'S', 'L', 'O', 'G'};
+    /** Current version */
+    public final static int VERSION = 2;
+    /** Rows as fixed-width little-endian primitives */
+    public final static int ENCODING_RAW = 0;
+    /** Rows in delta-of-delta / XOR compressed blocks */
+    public final static int ENCODING_GORILLA = 1;
+    /** Default file extension */
+    public final static String EXTENSION = ".bin";
+    /** Axis of a column that is not a sensor value (i.e. the skew) */
+    public final static int NO_AXIS = -1;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    /** Timestamp (ns) of the first frame */
+    private long startTimestamp;
+    /** Frame duration (ns) */
+    private long frameDuration;
+    /** Rotation of the axes (as pi/2 multiples) */
+    private final int[] rotation = new int[3];
+    /** Encoding of the rows */
+    private int encoding = ENCODING_RAW;
+    /** Sensor type of each column */
+    private final List<Integer> types;
+    /** Axis of each column */
+    private final List<Integer> axes;
+    /** Name of each column */
+    private final List<String> names;
+
+    public SensorLogHeader() {
+        types = new ArrayList<>();
+        axes = new ArrayList<>();
+        names = new ArrayList<>();
+    }
+
+    /**
+     * Add a column
+     *
+     * @param sensorType the type of the sensor
+     * @param axis the axis of the value, or {@link #NO_AXIS}
+     * @param name the name of the column
+     * @return this header
+     */
+    public SensorLogHeader addColumn(int sensorType, int axis, String name) {
+        types.add(sensorType);
+        axes.add(axis);
+        names.add(name);
+        return this;
+    }
+
+    public long getStartTimestamp() {
+        return startTimestamp;
+    }
+
+    public SensorLogHeader setStartTimestamp(long startTimestamp) {
+        this.startTimestamp = startTimestamp;
+        return this;
+    }
+
+    public long getFrameDuration() {
+        return frameDuration;
+    }
+
+    public SensorLogHeader setFrameDuration(long frameDuration) {
+        this.frameDuration = frameDuration;
+        return this;
+    }
+
+    public int[] getRotation() {
+        return rotation.clone();
+    }
+
+    public SensorLogHeader setRotation(int x, int y, int z) {
+        rotation[0] = x;
+        rotation[1] = y;
+        rotation[2] = z;
+        return this;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public SensorLogHeader setEncoding(int encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    public int getColumnCount() {
+        return names.size();
+    }
+
+    public int getSensorType(int column) {
+        return types.get(column);
+    }
+
+    public int getAxis(int column) {
+        return axes.get(column);
+    }
+
+    public String getColumnName(int column) {
+        return names.get(column);
+    }
+
+    /**
+     * @return the size in bytes of each row
+     */
+    public int getRowSize() {
+        return 8 + 4 * names.size();
+    }
+
+    /**
+     * Encode this header
+     *
+     * @return the header bytes
+     */
+    public byte[] toByteArray() {
+        byte[][] encoded = new byte[names.size()][];
+        int version = encoding == ENCODING_RAW ? 1 : VERSION;
+        int length = MAGIC.length + 2 + 4 + 8 + 8 + 3 + (version > 1 ? 1 : 0) + 2;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = names.get(i).getBytes(UTF8);
+            length += 4 + 1 + 2 + encoded[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC).putShort((short) version).putInt(length)
+                .putLong(startTimestamp).putLong(frameDuration)
+                .put((byte) rotation[0]).put((byte) rotation[1]).put((byte) rotation[2]);
+        if (version > 1)
+            buffer.put((byte) encoding);
+        buffer.putShort((short) encoded.length);
+        for (int i = 0; i < encoded.length; i++)
+            buffer.putInt(types.get(i)).put((byte) (int) axes.get(i))
+                    .putShort((short) encoded[i].length).put(encoded[i]);
+        return buffer.array();
+    }
+
+    /**
+     * Find the length of the header at the start of a block (i.e. the first one logged)
+     *
+     * @param data the buffer holding the block
+     * @param offset the start of the block in the buffer
+     * @param length the length of the block
+     * @return the length of the header, 0 if the block does not start with a whole header
+     */
+    public static int length(byte[] data, int offset, int length) {
+        int prefix = MAGIC.length + 2 + 4;
+        if (length < prefix)
+            return 0;
+        for (int i = 0; i < MAGIC.length; i++)
+            if (data[offset + i] != MAGIC[i])
+                return 0;
+        int ret = ByteBuffer.wrap(data, offset + MAGIC.length + 2, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+        return ret >= prefix && ret <= length ? ret : 0;
+    }
+
+    /**
+     * Decode a header from a stream, leaving it at the beginning of the first row
+     *
+     * @param in the input stream
+     * @return the header
+     * @throws IOException if the stream cannot be read or it is not a binary sensor log
+     */
+    public static SensorLogHeader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] prefix = new byte[MAGIC.length + 2 + 4];
+        data.readFully(prefix);
+        ByteBuffer buffer = ByteBuffer.wrap(prefix).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : MAGIC)
+            if (buffer.get() != b)
+                throw new IOException("Not a binary sensor log");
+        int version = buffer.getShort();
+        if (version > VERSION)
+            throw new IOException("Unsupported binary sensor log version: " + version);
+        int length = buffer.getInt();
+        byte[] rest = new byte[length - prefix.length];
+        data.readFully(rest);
+        return read(ByteBuffer.wrap(rest), version);
+    }
+
+    /**
+     * Decode a header from a buffer, right after the magic number, version and length
+     */
+    private static SensorLogHeader read(ByteBuffer buffer, int version) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        SensorLogHeader header = new SensorLogHeader()
+                .setStartTimestamp(buffer.getLong())
+                .setFrameDuration(buffer.getLong())
+                .setRotation(buffer.get(), buffer.get(), buffer.get());
+        if (version > 1)
+            header.setEncoding(buffer.get());
+        int columns = buffer.getShort();
+        for (int i = 0; i < columns; i++) {
+            int type = buffer.getInt();
+            int axis = buffer.get();
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            header.addColumn(type, axis, new String(name, UTF8));
+        }
+        return header;
+    }
+
+}
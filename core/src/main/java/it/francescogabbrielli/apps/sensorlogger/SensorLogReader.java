@@ -0,0 +1,97 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Read a binary sensor log (see {@link SensorLogHeader}) row by row, raw or compressed.
+ * <p>
+ * It is plain Java, to be used on the host as well as on the device.
+ */
+public class SensorLogReader implements Closeable {
+
+    private final DataInputStream in;
+    private final SensorLogHeader header;
+    /** Current row (raw encoding) */
+    private final ByteBuffer row;
+    /** Decoder of the current block (compressed encoding), and the block */
+    private final GorillaDecoder decoder;
+    private byte[] block;
+
+    /**
+     * Open a binary sensor log, reading its header
+     *
+     * @param in the stream to read from
+     * @throws IOException if the header cannot be read
+     */
+    public SensorLogReader(InputStream in) throws IOException {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+        header = SensorLogHeader.read(this.in);
+        row = ByteBuffer.allocate(header.getRowSize()).order(ByteOrder.LITTLE_ENDIAN);
+        if (header.getEncoding() == SensorLogHeader.ENCODING_GORILLA) {
+            decoder = new GorillaDecoder(header);
+            block = new byte[GorillaEncoder.BLOCK_HEADER];
+        } else if (header.getEncoding() == SensorLogHeader.ENCODING_RAW)
+            decoder = null;
+        else
+            throw new IOException("Unknown sensor log encoding: " + header.getEncoding());
+    }
+
+    public SensorLogHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Read the next row
+     *
+     * @return false at the end of the log (a truncated last row is ignored)
+     * @throws IOException if the log cannot be read
+     */
+    public boolean next() throws IOException {
+        try {
+            if (decoder == null) {
+                in.readFully(row.array());
+                return true;
+            }
+            while (!decoder.next()) {
+                in.readFully(block, 0, GorillaEncoder.BLOCK_HEADER);
+                int size = GorillaDecoder.getBlockSize(block, 0);
+                if (block.length < size)
+                    block = Arrays.copyOf(block, size);
+                in.readFully(block, GorillaEncoder.BLOCK_HEADER, size - GorillaEncoder.BLOCK_HEADER);
+                decoder.setBlock(block, 0);
+            }
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the frame time (ns, since the start) of the current row
+     */
+    public long getTimestamp() {
+        return decoder != null ? decoder.getTimestamp() : row.getLong(0);
+    }
+
+    /**
+     * @param column the column
+     * @return the value of the column in the current row
+     */
+    public float getValue(int column) {
+        return decoder != null ? decoder.getValue(column) : row.getFloat(8 + 4 * column);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+}
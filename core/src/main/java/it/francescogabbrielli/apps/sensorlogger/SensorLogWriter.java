@@ -0,0 +1,115 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encode the rows of a binary sensor log (see {@link SensorLogHeader}) into a reusable block.
+ * <p>
+ * Rows are written directly as little-endian primitives, so once the block is allocated
+ * encoding does not allocate anything.
+ */
+public class SensorLogWriter {
+
+    private final SensorLogHeader header;
+    /** Current block */
+    private final ByteBuffer block;
+    /** Rows in a block */
+    private final int rows;
+    /** Values in the current row */
+    private int values;
+
+    /**
+     * Create a new writer
+     *
+     * @param header the header of the log
+     * @param rows the number of rows in a block
+     */
+    public SensorLogWriter(SensorLogHeader header, int rows) {
+        this.header = header;
+        this.rows = Math.max(1, rows);
+        block = ByteBuffer.allocate(this.rows * header.getRowSize()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Constructor for encoders with their own block
+     */
+    protected SensorLogWriter(SensorLogHeader header) {
+        this.header = header;
+        this.rows = 0;
+        block = null;
+    }
+
+    /**
+     * Create a writer for the encoding of the header
+     *
+     * @param header the header of the log
+     * @param rows the number of rows in a block
+     * @return the writer
+     * @see SensorLogHeader#getEncoding()
+     */
+    public static SensorLogWriter newInstance(SensorLogHeader header, int rows) {
+        return header.getEncoding() == SensorLogHeader.ENCODING_GORILLA
+                ? new GorillaEncoder(header, rows)
+                : new SensorLogWriter(header, rows);
+    }
+
+    public SensorLogHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * Begin a new row
+     *
+     * @param timestamp the frame time (ns, since the start)
+     */
+    public void beginRow(long timestamp) {
+        values = 0;
+        block.putLong(timestamp);
+    }
+
+    /**
+     * Write the next value of the current row
+     *
+     * @param value the value
+     */
+    public void put(float value) {
+        if (values++ < header.getColumnCount())
+            block.putFloat(value);
+    }
+
+    /**
+     * End the current row (missing values are written as NaN)
+     *
+     * @return true if the block is full
+     */
+    public boolean endRow() {
+        while (values < header.getColumnCount())
+            put(Float.NaN);
+        return block.remaining() < header.getRowSize();
+    }
+
+    /**
+     * @return the number of encoded bytes in the current block
+     */
+    public int length() {
+        return block.position();
+    }
+
+    /**
+     * Direct access to the current block; only the first {@link #length()} bytes are valid
+     *
+     * @return the block bytes
+     */
+    public byte[] buffer() {
+        return block.array();
+    }
+
+    /**
+     * Start a new block
+     */
+    public void reset() {
+        block.clear();
+    }
+
+}
@@ -0,0 +1,167 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated ring of the latest readings of a single sensor, with no reference to the
+ * framework {@code SensorEvent}s (that can be recycled).
+ * <p>
+ * There is only one writer (the sensor thread), that copies every reading in the next slot, and
+ * any number of readers, that copy a slot out without locking. Every slot is guarded by its own
+ * sequence stamp, like a seqlock: the writer invalidates the stamp, writes the values and then
+ * publishes the new stamp, while a reader retries if the stamp changed during the copy.
+ * All the accesses go through atomic arrays, so the ordering is guaranteed by the memory model.
+ */
+public class SensorRing {
+
+    /** No reading available (yet or anymore) */
+    public final static long NONE = -1;
+
+    /** Number of slots */
+    private final int capacity;
+    /** Maximum number of values of each reading */
+    private final int stride;
+
+    /** Values of all slots (float bits) */
+    private final AtomicIntegerArray values;
+    /** Timestamps of all slots */
+    private final AtomicLongArray timestamps;
+    /** Sequence number currently stored in each slot (or NONE while writing it) */
+    private final AtomicLongArray stamps;
+    /** Sequence number of the latest published reading */
+    private final AtomicLong head;
+
+    /** Number of values of the readings */
+    private volatile int length;
+    /** Latest accuracy reported for the sensor */
+    private volatile int accuracy;
+
+    /**
+     * Create a new ring
+     *
+     * @param capacity the number of readings to keep
+     * @param stride the maximum number of values of each reading
+     */
+    public SensorRing(int capacity, int stride) {
+        this.capacity = capacity;
+        this.stride = stride;
+        values = new AtomicIntegerArray(capacity * stride);
+        timestamps = new AtomicLongArray(capacity);
+        stamps = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            stamps.set(i, NONE);
+        head = new AtomicLong(NONE);
+    }
+
+    /**
+     * Copy a new reading into the ring. Must always be called from the same thread.
+     *
+     * @param src the values
+     * @param timestamp the timestamp of the reading
+     */
+    public void write(float[] src, long timestamp) {
+        long seq = head.get() + 1;
+        int slot = (int) (seq % capacity);
+        int l = Math.min(src.length, stride);
+        stamps.set(slot, NONE);
+        for (int i = 0, base = slot * stride; i < l; i++)
+            values.lazySet(base + i, Float.floatToRawIntBits(src[i]));
+        timestamps.lazySet(slot, timestamp);
+        stamps.lazySet(slot, seq);
+        if (length != l)
+            length = l;
+        head.lazySet(seq);
+    }
+
+    /**
+     * Copy the latest reading
+     *
+     * @param dst where to copy the values (at least {@link #getLength()} long)
+     * @return the timestamp of the reading, or {@link #NONE} if there is no reading yet
+     */
+    public long read(float[] dst) {
+        long ret;
+        do {
+            long seq = head.get();
+            if (seq < 0)
+                return NONE;
+            ret = read(seq, dst);
+        } while (ret == NONE);//overwritten while reading: try the newest one again
+        return ret;
+    }
+
+    /**
+     * Copy a specific reading
+     *
+     * @param seq the sequence number of the reading
+     * @param dst where to copy the values (at least {@link #getLength()} long)
+     * @return the timestamp of the reading, or {@link #NONE} if it is not in the ring
+     */
+    public long read(long seq, float[] dst) {
+        if (seq < 0)
+            return NONE;
+        int slot = (int) (seq % capacity);
+        int l = Math.min(length, dst.length);
+        if (stamps.get(slot) != seq)
+            return NONE;
+        for (int i = 0, base = slot * stride; i < l; i++)
+            dst[i] = Float.intBitsToFloat(values.get(base + i));
+        long timestamp = timestamps.get(slot);
+        return stamps.get(slot) == seq ? timestamp : NONE;
+    }
+
+    /**
+     * Get the timestamp of a specific reading
+     *
+     * @param seq the sequence number of the reading
+     * @return the timestamp of the reading, or {@link #NONE} if it is not in the ring
+     */
+    public long getTimestamp(long seq) {
+        if (seq < 0)
+            return NONE;
+        int slot = (int) (seq % capacity);
+        if (stamps.get(slot) != seq)
+            return NONE;
+        long timestamp = timestamps.get(slot);
+        return stamps.get(slot) == seq ? timestamp : NONE;
+    }
+
+    /**
+     * @return the number of readings kept in the ring
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of values of each reading (0 if no reading yet)
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return the maximum number of values of each reading
+     */
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * @return the sequence number of the latest reading ({@link #NONE} if no reading yet)
+     */
+    public long getHead() {
+        return head.get();
+    }
+
+    public int getAccuracy() {
+        return accuracy;
+    }
+
+    public void setAccuracy(int accuracy) {
+        this.accuracy = accuracy;
+    }
+
+}
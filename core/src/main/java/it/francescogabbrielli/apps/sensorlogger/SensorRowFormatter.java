@@ -0,0 +1,46 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+/**
+ * Format the rows of the .csv sensor data: the frame time (ms) if required, the values of each
+ * sensor, and their residual skew (us) if required
+ */
+public class SensorRowFormatter {
+
+    private final boolean time, skew;
+
+    /**
+     * @param time if to add the frame time as the first column
+     * @param skew if to add the skew of each sensor after its values
+     */
+    public SensorRowFormatter(boolean time, boolean skew) {
+        this.time = time;
+        this.skew = skew;
+    }
+
+    /**
+     * Append a row
+     *
+     * @param encoder where to append the row
+     * @param time the time of the frame, since the beginning of the recording (ns)
+     * @param values the values of each sensor
+     * @param lengths how many values of each sensor
+     * @param alignment the alignment of the values, for the skews (null if no skew)
+     * @return the encoder
+     */
+    public CsvEncoder append(CsvEncoder encoder, long time, float[][] values, int[] lengths,
+                             SensorAlignment alignment) {
+        int start = encoder.length();
+        if (this.time)
+            encoder.append(time/1000000L).append(',');
+        for (int s = 0; s < values.length; s++) {
+            float[] v = values[s];
+            for (int i = 0, l = lengths[s]; i < l; i++)//iterate through x, y, z (and what else... if a sensor has more than 3 values)
+                encoder.append(v[i]).append(',');
+            if (skew)//in microseconds
+                encoder.append(alignment.getSkew(s)/1000L).append(',');
+        }
+        if (encoder.length() > start)
+            encoder.trim();
+        return encoder.append('\n');
+    }
+}
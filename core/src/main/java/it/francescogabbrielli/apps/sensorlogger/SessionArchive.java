@@ -0,0 +1,212 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file session archive: the frames and the sensor data of a whole recording, appended as
+ * they are logged, followed by an index of their offsets and frame times, to be memory-mapped
+ * and read at random by {@link SessionReader}.
+ * <p>
+ * Layout (little-endian):
+ * <pre>
+ *   header:     int32 magic "SLSA" | int32 version | int64 frame duration (ns)
+ *   record:     int32 type | int32 length | int64 frame time (ns, since the start) | payload
+ *   INFO:       the filename of the sensor data (UTF-8), before its first block
+ *   FRAME:      an image, as encoded
+ *   SENSORS:    a block of sensor data, as logged (the first binary block starts with its header)
+ *   REPEAT:     int64 offset of the FRAME record repeated (a duplicated frame, not stored again)
+ *   CHECKPOINT: int32 frames | int32 sensor blocks | int32 CRC32 of the records since the
+ *               previous checkpoint | int32 0
+ *   INDEX:      int32 frames | int32 sensor blocks | int64 0 | (int64 offset | int64 frame time)
+ *               for each frame (the repeated one, for a REPEAT), then for each sensor block
+ *   footer:     int64 offset of the INDEX record | int32 version | int32 magic "SLSE"
+ * </pre>
+ * The output is flushed at every checkpoint, so that a file truncated by a crash can be
+ * recovered up to its last checkpoint.
+ */
+public class SessionArchive extends LogArchive {
+
+    public final static int MAGIC = 0x41534c53;//SLSA
+    public final static int MAGIC_END = 0x45534c53;//SLSE
+    public final static int VERSION = 2;
+
+    public final static int INFO = 0, FRAME = 1, SENSORS = 2, CHECKPOINT = 3, INDEX = 4, REPEAT = 5;
+
+    /** Sizes of the file header, of the record header, of an index entry and of the footer */
+    public final static int HEADER = 16, RECORD = 16, ENTRY = 16, FOOTER = 16;
+
+    /** Size of the buffer of the output */
+    public final static int BUFFER = 256 * 1024;
+
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long frameDuration;
+    /** Frames between checkpoints */
+    private final int checkpoint;
+
+    private final ByteBuffer header = ByteBuffer.allocate(RECORD).order(ByteOrder.LITTLE_ENDIAN);
+    /** Payload of the REPEAT records */
+    private final ByteBuffer repeat = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    /** Index of the frames and of the sensor blocks */
+    private ByteBuffer frames, sensors;
+    private final CRC32 crc = new CRC32();
+    /** Bytes written, last frame time, and offset of the last FRAME record */
+    private long position, lastFrame, lastOffset;
+    /** Filename of the sensor data (written in the INFO record) */
+    private String dataName;
+
+    /**
+     * @param frameDuration the nanoseconds between frames
+     * @param checkpoint the frames between checkpoints
+     */
+    public SessionArchive(long frameDuration, int checkpoint) {
+        this.frameDuration = frameDuration;
+        this.checkpoint = Math.max(1, checkpoint);
+    }
+
+    @Override
+    public void begin(OutputStream out) throws IOException {
+        super.begin(new BufferedOutputStream(out, BUFFER));
+        frames = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        sensors = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        dataName = null;
+        lastFrame = -frameDuration;
+        header.clear();
+        header.putInt(MAGIC).putInt(VERSION).putLong(frameDuration);
+        this.out.write(header.array());
+        position = HEADER;
+        crc.reset();
+    }
+
+    /**
+     * Interleaved: the sensor data is added as it is logged
+     */
+    @Override
+    public boolean isInterleaved() {
+        return true;
+    }
+
+    /**
+     * Add a frame with no frame time (taken as the next frame)
+     */
+    @Override
+    public void putEntry(String name, byte[] data, int offset, int length, long time) throws IOException {
+        putFrame(name, data, offset, length, lastFrame + frameDuration);
+    }
+
+    @Override
+    public void putFrame(String name, byte[] data, int offset, int length, long timestamp) throws IOException {
+        lastOffset = position;
+        frames = index(frames, position, timestamp);
+        record(FRAME, data, offset, length, timestamp);
+        nextFrame(timestamp);
+    }
+
+    /**
+     * Index the previous frame again, at the new frame time
+     */
+    @Override
+    public void putRepeat(String name, String reference, byte[] data, int offset, int length, long timestamp)
+            throws IOException {
+        if (frames.position() == 0) {
+            putFrame(name, data, offset, length, timestamp);
+            return;
+        }
+        frames = index(frames, lastOffset, timestamp);
+        repeat.clear();
+        repeat.putLong(lastOffset);
+        record(REPEAT, repeat.array(), 0, repeat.capacity(), timestamp);
+        nextFrame(timestamp);
+    }
+
+    private void nextFrame(long timestamp) throws IOException {
+        lastFrame = timestamp;
+        if ((frames.position() / ENTRY) % checkpoint == 0)
+            checkpoint();
+    }
+
+    @Override
+    public boolean putData(String name, byte[] data, int offset, int length, long timestamp) throws IOException {
+        if (!name.equals(dataName)) {
+            byte[] n = name.getBytes(UTF8);
+            record(INFO, n, 0, n.length, timestamp);
+            dataName = name;
+        }
+        sensors = index(sensors, position, timestamp);
+        record(SENSORS, data, offset, length, timestamp);
+        return true;
+    }
+
+    /**
+     * Write the last checkpoint, the index and the footer
+     */
+    @Override
+    public void finish() throws IOException {
+        checkpoint();
+        long indexOffset = position;
+        int f = frames.position(), s = sensors.position();
+        ByteBuffer counts = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        counts.putInt(f / ENTRY).putInt(s / ENTRY).putLong(0);
+        writeHeader(INDEX, counts.capacity() + f + s, 0);
+        write(counts.array(), 0, counts.capacity());
+        write(frames.array(), 0, f);
+        write(sensors.array(), 0, s);
+        header.clear();
+        header.putLong(indexOffset).putInt(VERSION).putInt(MAGIC_END);
+        write(header.array(), 0, FOOTER);
+        super.finish();
+    }
+
+    @Override
+    public String getExtension() {
+        return ".sls";
+    }
+
+    /**
+     * Write a checkpoint of the records since the previous one, and flush the output
+     */
+    private void checkpoint() throws IOException {
+        int sum = (int) crc.getValue();
+        ByteBuffer b = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(frames.position() / ENTRY).putInt(sensors.position() / ENTRY).putInt(sum).putInt(0);
+        record(CHECKPOINT, b.array(), 0, b.capacity(), lastFrame);
+        crc.reset();
+        out.flush();
+    }
+
+    private void record(int type, byte[] data, int offset, int length, long timestamp) throws IOException {
+        writeHeader(type, length, timestamp);
+        write(data, offset, length);
+    }
+
+    private void writeHeader(int type, int length, long timestamp) throws IOException {
+        header.clear();
+        header.putInt(type).putInt(length).putLong(timestamp);
+        write(header.array(), 0, RECORD);
+    }
+
+    private void write(byte[] data, int offset, int length) throws IOException {
+        out.write(data, offset, length);
+        crc.update(data, offset, length);
+        position += length;
+    }
+
+    /**
+     * Append an entry to an index, growing it if needed
+     */
+    private static ByteBuffer index(ByteBuffer index, long offset, long timestamp) {
+        if (index.remaining() < ENTRY) {
+            ByteBuffer b = ByteBuffer.allocate(index.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            index = b.put(index);
+        }
+        index.putLong(offset).putLong(timestamp);
+        return index;
+    }
+}
@@ -0,0 +1,305 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Random access to a session written by {@link SessionArchive}: the file is memory-mapped, and
+ * frames and sensor blocks are returned as read-only views of the mapping, looked up in the
+ * trailing index with no parsing.
+ * <p>
+ * If the index is missing (i.e. the recording was interrupted), the records are scanned once and
+ * the session is recovered up to its last valid checkpoint (see {@link #isRecovered()}).
+ */
+public class SessionReader implements Closeable {
+
+    /** Largest mapping (files above it are mapped record by record) */
+    private final static long MAX_MAPPING = Integer.MAX_VALUE;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long size;
+    /** The whole file, if not too large */
+    private final ByteBuffer mapping;
+
+    private final long frameDuration;
+    /** Index of the frames and of the sensor blocks: (int64 offset, int64 frame time) */
+    private ByteBuffer frames, sensors;
+    private int frameCount, sensorCount;
+    private boolean recovered;
+    private String dataName;
+
+    /**
+     * Open and map a session
+     *
+     * @param f the session file
+     * @throws IOException if the file is not a session
+     */
+    public SessionReader(File f) throws IOException {
+        file = new RandomAccessFile(f, "r");
+        try {
+            channel = file.getChannel();
+            size = channel.size();
+            mapping = size <= MAX_MAPPING
+                    ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN)
+                    : null;
+            ByteBuffer header = map(0, SessionArchive.HEADER);
+            if (size < SessionArchive.HEADER || header.getInt(0) != SessionArchive.MAGIC)
+                throw new IOException("Not a session: " + f);
+            if (header.getInt(4) > SessionArchive.VERSION)
+                throw new IOException("Unsupported session version " + header.getInt(4));
+            frameDuration = header.getLong(8);
+            if (!readIndex())
+                recover();
+            dataName = findDataName();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the index was found
+     */
+    private boolean readIndex() throws IOException {
+        if (size < SessionArchive.HEADER + SessionArchive.FOOTER)
+            return false;
+        ByteBuffer footer = map(size - SessionArchive.FOOTER, SessionArchive.FOOTER);
+        long offset = footer.getLong(0);
+        if (footer.getInt(12) != SessionArchive.MAGIC_END
+                || offset < SessionArchive.HEADER || offset + SessionArchive.RECORD + 16 > size)
+            return false;
+        ByteBuffer record = map(offset, SessionArchive.RECORD + 16);
+        if (record.getInt(0) != SessionArchive.INDEX)
+            return false;
+        frameCount = record.getInt(SessionArchive.RECORD);
+        sensorCount = record.getInt(SessionArchive.RECORD + 4);
+        long start = offset + SessionArchive.RECORD + 16;
+        long f = (long) frameCount * SessionArchive.ENTRY, s = (long) sensorCount * SessionArchive.ENTRY;
+        if (frameCount < 0 || sensorCount < 0 || start + f + s + SessionArchive.FOOTER != size)
+            return false;
+        frames = map(start, (int) f);
+        sensors = map(start + f, (int) s);
+        return true;
+    }
+
+    /**
+     * Rebuild the index scanning the records, up to the last valid checkpoint
+     */
+    private void recover() throws IOException {
+        recovered = true;
+        ByteBuffer f = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer s = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        int validFrames = 0, validSensors = 0;
+        long span = SessionArchive.HEADER, p = span;
+        CRC32 crc = new CRC32();
+        while (p + SessionArchive.RECORD <= size) {
+            ByteBuffer header = map(p, SessionArchive.RECORD);
+            int type = header.getInt(0), length = header.getInt(4);
+            long timestamp = header.getLong(8);
+            if (length < 0 || type < SessionArchive.INFO || type > SessionArchive.REPEAT
+                    || p + SessionArchive.RECORD + length > size)
+                break;
+            if (type == SessionArchive.FRAME)
+                f = index(f, p, timestamp);
+            else if (type == SessionArchive.REPEAT)
+                f = index(f, map(p + SessionArchive.RECORD, 8).getLong(0), timestamp);
+            else if (type == SessionArchive.SENSORS)
+                s = index(s, p, timestamp);
+            else if (type == SessionArchive.CHECKPOINT) {
+                crc.reset();
+                update(crc, span, p - span);
+                if ((int) crc.getValue() != map(p + SessionArchive.RECORD, 16).getInt(8))
+                    break;
+                validFrames = f.position() / SessionArchive.ENTRY;
+                validSensors = s.position() / SessionArchive.ENTRY;
+                span = p + SessionArchive.RECORD + length;
+            } else if (type == SessionArchive.INDEX)
+                break;
+            p += SessionArchive.RECORD + length;
+        }
+        frameCount = validFrames;
+        sensorCount = validSensors;
+        f.flip();
+        s.flip();
+        frames = f;
+        sensors = s;
+    }
+
+    private void update(CRC32 crc, long offset, long length) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        for (long done = 0; done < length; ) {
+            int n = (int) Math.min(buf.length, length - done);
+            map(offset + done, n).get(buf, 0, n);
+            crc.update(buf, 0, n);
+            done += n;
+        }
+    }
+
+    private static ByteBuffer index(ByteBuffer index, long offset, long timestamp) {
+        if (index.remaining() < SessionArchive.ENTRY) {
+            ByteBuffer b = ByteBuffer.allocate(index.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            index.flip();
+            index = b.put(index);
+        }
+        index.putLong(offset).putLong(timestamp);
+        return index;
+    }
+
+    /**
+     * @return the filename of the sensor data, from the INFO record before its first block
+     */
+    private String findDataName() throws IOException {
+        if (sensorCount == 0)
+            return null;
+        long p = SessionArchive.HEADER, first = sensors.getLong(0);
+        while (p < first) {
+            ByteBuffer header = map(p, SessionArchive.RECORD);
+            int length = header.getInt(4);
+            if (header.getInt(0) == SessionArchive.INFO) {
+                byte[] name = new byte[length];
+                map(p + SessionArchive.RECORD, length).get(name);
+                return new String(name, Charset.forName("UTF-8"));
+            }
+            p += SessionArchive.RECORD + length;
+        }
+        return null;
+    }
+
+    /**
+     * Map a region of the file (a view of the whole mapping, if any)
+     */
+    private ByteBuffer map(long offset, int length) throws IOException {
+        if (mapping != null) {
+            ByteBuffer ret = mapping.duplicate();
+            ret.limit((int) offset + length).position((int) offset);
+            return ret.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The payload of a record
+     *
+     * @param offset the offset of the record
+     * @return a read-only view of the payload
+     */
+    private ByteBuffer payload(long offset) throws IOException {
+        int length = map(offset, SessionArchive.RECORD).getInt(4);
+        return map(offset + SessionArchive.RECORD, length).asReadOnlyBuffer();
+    }
+
+    /** @return the nanoseconds between frames */
+    public long getFrameDuration() {
+        return frameDuration;
+    }
+
+    /** @return the number of frames */
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /** @return the number of sensor blocks */
+    public int getSensorCount() {
+        return sensorCount;
+    }
+
+    /** @return true if the session had no index, and has been recovered up to its last checkpoint */
+    public boolean isRecovered() {
+        return recovered;
+    }
+
+    /** @return the filename of the sensor data (its extension tells the format), or null if none */
+    public String getDataName() {
+        return dataName;
+    }
+
+    /**
+     * @param i the frame index
+     * @return the frame time (ns, since the start)
+     */
+    public long getFrameTimestamp(int i) {
+        return frames.getLong(i * SessionArchive.ENTRY + 8);
+    }
+
+    /**
+     * @param i the frame index
+     * @return a read-only view of the encoded image
+     * @throws IOException
+     */
+    public ByteBuffer frameAt(int i) throws IOException {
+        if (i < 0 || i >= frameCount)
+            throw new IndexOutOfBoundsException("Frame " + i + " of " + frameCount);
+        return payload(frames.getLong(i * SessionArchive.ENTRY));
+    }
+
+    /**
+     * @param timestamp a frame time (ns, since the start)
+     * @return the index of the frame nearest to the given time (-1 if no frames)
+     */
+    public int indexNearest(long timestamp) {
+        if (frameCount == 0)
+            return -1;
+        int i = search(frames, frameCount, timestamp);
+        if (i == frameCount || i > 0 && timestamp - getFrameTimestamp(i - 1) <= getFrameTimestamp(i) - timestamp)
+            i--;
+        return i;
+    }
+
+    /**
+     * @param timestamp a frame time (ns, since the start)
+     * @return a read-only view of the frame nearest to the given time (null if no frames)
+     * @throws IOException
+     */
+    public ByteBuffer frameNearest(long timestamp) throws IOException {
+        int i = indexNearest(timestamp);
+        return i >= 0 ? frameAt(i) : null;
+    }
+
+    /**
+     * Get the sensor blocks logged between two frame times (a binary block is logged at the frame
+     * time of its last row, so the following block may still hold rows before t1). Concatenated,
+     * all the blocks are the whole sensor data file.
+     *
+     * @param t0 the first frame time (ns, since the start), inclusive
+     * @param t1 the last frame time, inclusive
+     * @return read-only views of the blocks, in order
+     * @throws IOException
+     */
+    public List<ByteBuffer> sensorsBetween(long t0, long t1) throws IOException {
+        List<ByteBuffer> ret = new ArrayList<>();
+        for (int i = search(sensors, sensorCount, t0);
+             i < sensorCount && sensors.getLong(i * SessionArchive.ENTRY + 8) <= t1; i++)
+            ret.add(payload(sensors.getLong(i * SessionArchive.ENTRY)));
+        return ret;
+    }
+
+    /**
+     * @return the first entry at or after the given time
+     */
+    private static int search(ByteBuffer index, int count, long timestamp) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index.getLong(mid * SessionArchive.ENTRY + 8) < timestamp)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,202 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Summary of how well a recording session went, written as JSON next to the recording: frame
+ * rate achieved against the target, duplicated fill-in frames, latency percentiles of the
+ * stages, bytes, throughput, drops and queue depth of each target, and event rate of each sensor.
+ * <p>
+ * The session is flagged as degraded (with the reasons) if the frame rate is below
+ * {@link #MIN_RATE_RATIO} of the target, if more than {@link #MAX_DUPLICATED_RATIO} of the
+ * frames are duplicated, if any frame has been dropped, or if any target still had operations
+ * pending when the report was written (the drain at the end of the session timed out).
+ */
+public class SessionReport {
+
+    /** Version of the report format */
+    public final static int VERSION = 1;
+
+    /** Minimum ratio of the achieved frame rate to the target one */
+    public final static double MIN_RATE_RATIO = 0.9;
+    /** Maximum ratio of the duplicated frames to all the frames */
+    public final static double MAX_DUPLICATED_RATIO = 0.05;
+
+    private final String folder;
+    /** Duration of the session and of each frame (ns) */
+    private long duration, frameDuration;
+    /** Frames captured (and encoded), recorded (including the duplicated ones), duplicated, and dropped by the encoder */
+    private long captured, recorded, duplicated, encoderDropped;
+
+    private final Map<String, Histogram> stages = new LinkedHashMap<>();
+    private final Map<String, long[]> targets = new LinkedHashMap<>();
+    private final Map<String, Long> sensors = new LinkedHashMap<>();
+
+    /** Fields of each target */
+    private final static int FRAMES = 0, BYTES = 1, BUSY = 2, DROPPED = 3, MAX_DEPTH = 4, MAX_BYTES = 5, PENDING = 6;
+
+    /**
+     * @param folder the recording folder
+     */
+    public SessionReport(String folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param duration the duration of the session (ns)
+     * @param frameDuration the target duration of each frame (ns)
+     */
+    public SessionReport setDuration(long duration, long frameDuration) {
+        this.duration = duration;
+        this.frameDuration = frameDuration;
+        return this;
+    }
+
+    /**
+     * @param captured the frames captured and encoded
+     * @param recorded the frames recorded, including the duplicated ones
+     * @param duplicated the frames filled in with a copy of the previous one
+     * @param encoderDropped the frames dropped before encoding (all the workers busy)
+     */
+    public SessionReport setFrames(long captured, long recorded, long duplicated, long encoderDropped) {
+        this.captured = captured;
+        this.recorded = recorded;
+        this.duplicated = duplicated;
+        this.encoderDropped = encoderDropped;
+        return this;
+    }
+
+    /**
+     * @param name the name of the stage (i.e. "encode")
+     * @param latency the latencies of the session (see {@link Histogram#since})
+     */
+    public SessionReport addStage(String name, Histogram latency) {
+        stages.put(name, latency);
+        return this;
+    }
+
+    /**
+     * @param name the name of the target
+     * @param frames the frames logged
+     * @param bytes the bytes logged
+     * @param busy the time spent executing operations (ns)
+     * @param dropped the frames dropped by the queue
+     * @param maxDepth the maximum number of pending operations
+     * @param maxBytes the maximum pending bytes
+     * @param pending the operations still pending (not drained in time)
+     */
+    public SessionReport addTarget(String name, long frames, long bytes, long busy, long dropped,
+                                   long maxDepth, long maxBytes, long pending) {
+        targets.put(name, new long[] {frames, bytes, busy, dropped, maxDepth, maxBytes, pending});
+        return this;
+    }
+
+    /**
+     * @param name the name of the sensor
+     * @param events the events received during the session
+     */
+    public SessionReport addSensor(String name, long events) {
+        sensors.put(name, events);
+        return this;
+    }
+
+    /** @return the target frame rate (fps) */
+    public double getTargetRate() {
+        return frameDuration > 0 ? 1e9 / frameDuration : 0;
+    }
+
+    /** @return the rate of the frames actually captured (fps) */
+    public double getAchievedRate() {
+        return duration > 0 ? captured * 1e9 / duration : 0;
+    }
+
+    /**
+     * @return why the session is degraded (empty if it is not)
+     */
+    public List<String> getDegradations() {
+        List<String> ret = new ArrayList<>();
+        if (getAchievedRate() < getTargetRate() * MIN_RATE_RATIO)
+            ret.add(String.format(Locale.US, "frame rate %.2f of %.2f fps", getAchievedRate(), getTargetRate()));
+        if (recorded > 0 && duplicated > recorded * MAX_DUPLICATED_RATIO)
+            ret.add(String.format(Locale.US, "%d of %d frames duplicated", duplicated, recorded));
+        if (encoderDropped > 0)
+            ret.add(encoderDropped + " frames dropped by the encoder");
+        for (Map.Entry<String, long[]> t : targets.entrySet()) {
+            if (t.getValue()[DROPPED] > 0)
+                ret.add(t.getValue()[DROPPED] + " frames dropped by " + t.getKey());
+            if (t.getValue()[PENDING] > 0)
+                ret.add(t.getValue()[PENDING] + " operations not drained by " + t.getKey());
+        }
+        return ret;
+    }
+
+    public boolean isDegraded() {
+        return !getDegradations().isEmpty();
+    }
+
+    /**
+     * @return the report, in JSON
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        List<String> degradations = getDegradations();
+        sb.append("{\n  \"version\": ").append(VERSION)
+                .append(",\n  \"folder\": ").append(Json.quote(folder))
+                .append(",\n  \"degraded\": ").append(!degradations.isEmpty())
+                .append(",\n  \"reasons\": [");
+        for (int i = 0; i < degradations.size(); i++)
+            sb.append(i > 0 ? ", " : "").append(Json.quote(degradations.get(i)));
+        sb.append("],\n  \"duration_s\": ").append(number(duration / 1e9))
+                .append(",\n  \"frames\": {\"target_fps\": ").append(number(getTargetRate()))
+                .append(", \"achieved_fps\": ").append(number(getAchievedRate()))
+                .append(", \"captured\": ").append(captured)
+                .append(", \"recorded\": ").append(recorded)
+                .append(", \"duplicated\": ").append(duplicated)
+                .append(", \"encoder_dropped\": ").append(encoderDropped).append('}');
+        sb.append(",\n  \"latency_ms\": {");
+        String sep = "\n    ";
+        for (Map.Entry<String, Histogram> s : stages.entrySet()) {
+            Histogram h = s.getValue();
+            sb.append(sep).append(Json.quote(s.getKey())).append(": {\"count\": ").append(h.getCount())
+                    .append(", \"mean\": ").append(number(h.getMean() / 1e6))
+                    .append(", \"p50\": ").append(number(h.getPercentile(50) / 1e6))
+                    .append(", \"p90\": ").append(number(h.getPercentile(90) / 1e6))
+                    .append(", \"p99\": ").append(number(h.getPercentile(99) / 1e6))
+                    .append(", \"max\": ").append(number(h.getMax() / 1e6)).append('}');
+            sep = ",\n    ";
+        }
+        sb.append(stages.isEmpty() ? "}" : "\n  }").append(",\n  \"targets\": {");
+        sep = "\n    ";
+        for (Map.Entry<String, long[]> t : targets.entrySet()) {
+            long[] v = t.getValue();
+            sb.append(sep).append(Json.quote(t.getKey())).append(": {\"frames\": ").append(v[FRAMES])
+                    .append(", \"bytes\": ").append(v[BYTES])
+                    .append(", \"busy_s\": ").append(number(v[BUSY] / 1e9))
+                    .append(", \"throughput_kb_s\": ").append(number(v[BUSY] > 0 ? v[BYTES] * 1e9 / v[BUSY] / 1024 : 0))
+                    .append(", \"dropped\": ").append(v[DROPPED])
+                    .append(", \"max_queue_depth\": ").append(v[MAX_DEPTH])
+                    .append(", \"max_queue_bytes\": ").append(v[MAX_BYTES])
+                    .append(", \"pending\": ").append(v[PENDING]).append('}');
+            sep = ",\n    ";
+        }
+        sb.append(targets.isEmpty() ? "}" : "\n  }").append(",\n  \"sensors\": {");
+        sep = "\n    ";
+        for (Map.Entry<String, Long> s : sensors.entrySet()) {
+            sb.append(sep).append(Json.quote(s.getKey())).append(": {\"events\": ").append(s.getValue())
+                    .append(", \"rate_hz\": ").append(number(duration > 0 ? s.getValue() * 1e9 / duration : 0))
+                    .append('}');
+            sep = ",\n    ";
+        }
+        sb.append(sensors.isEmpty() ? "}" : "\n  }").append("\n}\n");
+        return sb.toString();
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.US, "%.3f", value);
+    }
+
+}
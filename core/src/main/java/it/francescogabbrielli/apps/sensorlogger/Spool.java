@@ -0,0 +1,191 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+/**
+ * Local spool of the files to upload: a folder for each recording (named so that the oldest
+ * sorts first), holding the complete files and the ones still being written, with the
+ * {@link #PARTIAL} suffix.
+ * <p>
+ * The file being uploaded and the offset sent so far are kept in a persistent cursor, saved
+ * atomically, so that the upload can be resumed after a disconnection or a restart.
+ */
+public class Spool {
+
+    /** Suffix of the files still being written */
+    public final static String PARTIAL = ".part";
+    /** Name of the cursor file in the spool root */
+    final static String CURSOR = ".cursor";
+
+    private final File root;
+    /** Folder of the latest recording written (never deleted, nor the following ones) */
+    private volatile String session;
+
+    private final static FileFilter FOLDERS = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isDirectory() && !f.getName().startsWith(".");
+        }
+    };
+
+    private final static FileFilter COMPLETE = new FileFilter() {
+        @Override
+        public boolean accept(File f) {
+            return f.isFile() && !f.getName().startsWith(".") && !f.getName().endsWith(PARTIAL);
+        }
+    };
+
+    /**
+     * Open a spool, creating its root if needed
+     *
+     * @param root the spool folder
+     */
+    public Spool(File root) {
+        this.root = root;
+        root.mkdirs();
+    }
+
+    /** @return the root of the spool */
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * Mark the recording being written, before its folder is created: neither its folder nor
+     * the ones of the following recordings are deleted when found empty
+     *
+     * @param folder the folder of the recording
+     */
+    public void setSession(String folder) {
+        String s = session;
+        if (s == null || s.compareTo(folder) < 0)
+            session = folder;
+    }
+
+    /**
+     * Files left partial by a previous run will not be completed anymore: make them available
+     *
+     * @return the number of files recovered
+     */
+    public int recoverPartials() {
+        int ret = 0;
+        File[] folders = root.listFiles(FOLDERS);
+        if (folders != null)
+            for (File folder : folders) {
+                File[] files = folder.listFiles();
+                if (files != null)
+                    for (File f : files)
+                        if (f.getName().endsWith(PARTIAL)) {
+                            String name = f.getName();
+                            if (f.renameTo(new File(folder, name.substring(0, name.length() - PARTIAL.length()))))
+                                ret++;
+                        }
+            }
+        return ret;
+    }
+
+    /**
+     * Find the next file to upload, deleting the empty folders of the recordings older than the
+     * current one on the way
+     *
+     * @return the first complete file of the oldest recording, or null if none
+     */
+    public File next() {
+        File[] folders = root.listFiles(FOLDERS);
+        if (folders == null)
+            return null;
+        String current = session;//after listing: a folder just created is never older
+        Arrays.sort(folders);
+        for (File folder : folders) {
+            File[] files = folder.listFiles(COMPLETE);
+            if (files != null && files.length > 0) {
+                Arrays.sort(files);
+                return files[0];
+            }
+            //empty and not being written (no partial files) anymore
+            String[] left = folder.list();
+            if (left != null && left.length == 0 && (current == null || folder.getName().compareTo(current) < 0))
+                folder.delete();
+        }
+        return null;
+    }
+
+    /**
+     * @param file a file of the spool
+     * @return its path relative to the root (folder/name)
+     */
+    public static String getPath(File file) {
+        return file.getParentFile().getName() + "/" + file.getName();
+    }
+
+    /**
+     * Get the offset saved for a file (an unreadable cursor is ignored)
+     *
+     * @param file the file to upload
+     * @return the offset sent so far, or -1 if the file was not in progress
+     */
+    public long getOffset(File file) {
+        Properties cursor = new Properties();
+        File f = new File(root, CURSOR);
+        try {
+            InputStream in = new FileInputStream(f);
+            try {
+                cursor.load(in);
+            } finally {
+                in.close();
+            }
+            return getPath(file).equals(cursor.getProperty("file"))
+                    ? Long.parseLong(cursor.getProperty("offset", "0")) : -1;
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Where to resume the upload of a file in progress
+     *
+     * @param file the file to upload
+     * @param saved the offset saved in the cursor
+     * @param remote the size of the file on the server (-1=unknown)
+     * @return the offset to resume from (the server knows best), 0 if not consistent with the file
+     */
+    public static long resume(File file, long saved, long remote) {
+        long ret = remote >= 0 ? remote : saved;
+        return ret >= 0 && ret <= file.length() ? ret : 0;
+    }
+
+    /**
+     * Save the cursor atomically (write a new file and rename it)
+     *
+     * @param file the file in progress (null=none)
+     * @param offset the bytes sent so far
+     * @throws IOException if the cursor cannot be saved
+     */
+    public void saveCursor(File file, long offset) throws IOException {
+        File tmp = new File(root, CURSOR + PARTIAL), f = new File(root, CURSOR);
+        if (file == null) {
+            f.delete();
+            return;
+        }
+        Properties p = new Properties();
+        p.setProperty("file", getPath(file));
+        p.setProperty("offset", String.valueOf(offset));
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            p.store(out, null);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(f))
+            throw new IOException("Cannot save the upload cursor");
+    }
+
+}
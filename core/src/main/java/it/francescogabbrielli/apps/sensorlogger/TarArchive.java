@@ -0,0 +1,108 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Uncompressed POSIX (ustar) tar archive. Repeated frames are hard links to the previous one
+ */
+public class TarArchive extends LogArchive {
+
+    /** Size of the tar blocks (headers and padding) */
+    public final static int BLOCK = 512;
+    /** Maximum length of the entry names (no prefix field used) */
+    public final static int MAX_NAME = 100;
+
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+    private final static byte[] ZEROS = new byte[BLOCK];
+
+    /** Reusable header block */
+    private final byte[] header = new byte[BLOCK];
+
+    @Override
+    public void putEntry(String name, byte[] data, int offset, int length, long time) throws IOException {
+        writeHeader(name, length, time / 1000L, null);
+        out.write(data, offset, length);
+        pad(length);
+    }
+
+    /**
+     * Add a hard link to the previous frame (nothing if it has the same name)
+     */
+    @Override
+    public void putRepeat(String name, String reference, byte[] data, int offset, int length, long timestamp)
+            throws IOException {
+        if (!name.equals(reference))
+            writeHeader(name, 0, System.currentTimeMillis() / 1000L, reference);
+    }
+
+    /**
+     * Write the header block of a regular file, or of a hard link
+     *
+     * @param name the entry name
+     * @param size the size of the content
+     * @param mtime the modification time (s since the epoch)
+     * @param link the name of the linked entry (null for a regular file)
+     */
+    private void writeHeader(String name, long size, long mtime, String link) throws IOException {
+        byte[] n = name.getBytes(ASCII), l = link != null ? link.getBytes(ASCII) : null;
+        if (n.length > MAX_NAME || l != null && l.length > MAX_NAME)
+            throw new IOException("Name too long for tar: " + (n.length > MAX_NAME ? name : link));
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(n, 0, header, 0, n.length);
+        octal(0644, header, 100, 8);
+        octal(0, header, 108, 8);
+        octal(0, header, 116, 8);
+        octal(size, header, 124, 12);
+        octal(mtime, header, 136, 12);
+        header[156] = (byte) (l != null ? '1' : '0');
+        if (l != null)
+            System.arraycopy(l, 0, header, 157, l.length);
+        System.arraycopy("ustar\0".getBytes(ASCII), 0, header, 257, 6);
+        header[263] = '0';
+        header[264] = '0';
+        //checksum computed with its own field filled with spaces
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long sum = 0;
+        for (byte b : header)
+            sum += b & 0xff;
+        octal(sum, header, 148, 7);
+        header[155] = ' ';
+        out.write(header);
+    }
+
+    /**
+     * Write a zero-padded octal number, terminated by NUL
+     */
+    private static void octal(long value, byte[] buf, int offset, int length) {
+        int i = offset + length - 1;
+        buf[i--] = 0;
+        for (; i >= offset; i--) {
+            buf[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+
+    /** Pad the content to the end of its last block */
+    private void pad(long length) throws IOException {
+        int r = (int) (length % BLOCK);
+        if (r > 0)
+            out.write(ZEROS, 0, BLOCK - r);
+    }
+
+    /**
+     * Terminate the archive with two empty blocks
+     */
+    @Override
+    public void finish() throws IOException {
+        out.write(ZEROS);
+        out.write(ZEROS);
+        super.finish();
+    }
+
+    @Override
+    public String getExtension() {
+        return ".tar";
+    }
+}
@@ -0,0 +1,231 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Opt-in tracing of the stages of the pipeline, as complete events (name, thread, start and
+ * duration, and an optional numeric argument) in a preallocated ring: when full, the oldest
+ * events are overwritten. Recording is lock-free and allocation-free, and almost free when
+ * tracing is off.
+ * <p>
+ * The events are exported in the Chrome trace format (the JSON object format), readable by
+ * chrome://tracing and Perfetto, with the names of the threads.
+ * <pre>
+ *     long t = Tracer.get().begin();
+ *     ...
+ *     Tracer.get().end("encode", t, seq);
+ * </pre>
+ * Each recording keeps hold of its own {@link Trace}, so that a new one can start while the
+ * previous trace is still waiting to be exported.
+ */
+public class Tracer {
+
+    /** No argument */
+    public final static long NO_ARG = Long.MIN_VALUE;
+
+    private final static Tracer DEFAULT = new Tracer();
+
+    private volatile boolean enabled;
+    /** The events of the current (or last) trace */
+    private volatile Trace current;
+
+    /**
+     * The events of a trace: the sequence number + 1 of the event in each slot (0=empty or
+     * being written), and its fields
+     */
+    public static class Trace {
+        final int mask;
+        /** Origin of the timestamps (System.nanoTime) */
+        final long origin;
+        final AtomicLong next;
+        final AtomicLongArray committed;
+        final String[] names, threadNames;
+        final long[] starts, durations, args, threadIds;
+
+        Trace(int size) {
+            mask = size - 1;
+            origin = System.nanoTime();
+            next = new AtomicLong();
+            committed = new AtomicLongArray(size);
+            names = new String[size];
+            threadNames = new String[size];
+            starts = new long[size];
+            durations = new long[size];
+            args = new long[size];
+            threadIds = new long[size];
+        }
+
+        /**
+         * @return the number of events recorded (including the overwritten ones)
+         */
+        public long getCount() {
+            return next.get();
+        }
+    }
+
+    /**
+     * @return the tracer of the application
+     */
+    public static Tracer get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Start tracing, dropping the previous events
+     *
+     * @param capacity the maximum number of events kept (rounded up to a power of two)
+     */
+    public synchronized void start(int capacity) {
+        enabled = false;
+        current = new Trace(Integer.highestOneBit(Math.max(2, capacity) - 1) << 1);
+        enabled = true;
+    }
+
+    /**
+     * Stop tracing, keeping the events (to be exported)
+     */
+    public void stop() {
+        enabled = false;
+    }
+
+    /**
+     * Stop tracing, unless another trace has been started in the meantime
+     *
+     * @param trace the trace to stop
+     */
+    public synchronized void stop(Trace trace) {
+        if (current == trace)
+            enabled = false;
+    }
+
+    /**
+     * @return the current (or last) trace, null if never started
+     */
+    public Trace getTrace() {
+        return current;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Begin an event
+     *
+     * @return the start of the event, to pass to {@link #end}
+     */
+    public long begin() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * End an event on the current thread
+     *
+     * @param name the name of the stage (a constant: it is kept by reference)
+     * @param begin the value returned by {@link #begin()}
+     */
+    public void end(String name, long begin) {
+        end(name, begin, NO_ARG);
+    }
+
+    /**
+     * End an event on the current thread
+     *
+     * @param name the name of the stage (a constant: it is kept by reference)
+     * @param begin the value returned by {@link #begin()}
+     * @param arg a numeric argument (i.e. the frame number or the bytes), or {@link #NO_ARG}
+     */
+    public void end(String name, long begin, long arg) {
+        Trace r = current;
+        if (!enabled || r == null || begin == 0)
+            return;
+        long end = System.nanoTime();
+        Thread thread = Thread.currentThread();
+        long seq = r.next.getAndIncrement();
+        int i = (int) seq & r.mask;
+        r.committed.set(i, 0);//invalidate the slot first, so that a torn event is never exported
+        r.names[i] = name;
+        r.starts[i] = begin;
+        r.durations[i] = end - begin;
+        r.args[i] = arg;
+        r.threadIds[i] = thread.getId();
+        r.threadNames[i] = thread.getName();
+        r.committed.set(i, seq + 1);
+    }
+
+    /**
+     * @return the number of events recorded since the start (including the overwritten ones)
+     */
+    public long getCount() {
+        Trace r = current;
+        return r != null ? r.getCount() : 0;
+    }
+
+    /**
+     * Export the events of the current (or last) trace
+     *
+     * @param out where to write the JSON
+     * @param process the name of the process
+     * @throws IOException if the writer fails
+     * @see #write(Writer, String, Trace)
+     */
+    public void write(Writer out, String process) throws IOException {
+        write(out, process, current);
+    }
+
+    /**
+     * Export the events in the Chrome trace format, oldest first (better after stopping:
+     * events being recorded meanwhile may be skipped)
+     *
+     * @param out where to write the JSON
+     * @param process the name of the process
+     * @param r the trace to export (null for no events)
+     * @throws IOException if the writer fails
+     */
+    public static void write(Writer out, String process, Trace r) throws IOException {
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+        out.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"tid\":0,\"args\":{\"name\":");
+        out.write(Json.quote(process));
+        out.write("}}");
+        if (r != null) {
+            Map<Long, String> threads = new LinkedHashMap<>();
+            StringBuilder sb = new StringBuilder(256);
+            long last = r.next.get();
+            for (long seq = Math.max(0, last - r.names.length); seq < last; seq++) {
+                int i = (int) seq & r.mask;
+                if (r.committed.get(i) != seq + 1)
+                    continue;
+                String name = r.names[i], thread = r.threadNames[i];
+                long start = r.starts[i], duration = r.durations[i], arg = r.args[i], tid = r.threadIds[i];
+                if (r.committed.get(i) != seq + 1)
+                    continue;//overwritten meanwhile
+                if (!threads.containsKey(tid))
+                    threads.put(tid, thread);
+                sb.setLength(0);
+                sb.append(",\n{\"name\":").append(Json.quote(name))
+                        .append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(tid)
+                        .append(",\"ts\":").append(micros(start - r.origin))
+                        .append(",\"dur\":").append(micros(duration));
+                if (arg != NO_ARG)
+                    sb.append(",\"args\":{\"n\":").append(arg).append('}');
+                sb.append('}');
+                out.append(sb);
+            }
+            for (Map.Entry<Long, String> t : threads.entrySet())
+                out.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + t.getKey()
+                        + ",\"args\":{\"name\":" + Json.quote(t.getValue()) + "}}");
+        }
+        out.write("\n]}\n");
+    }
+
+    private static String micros(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e3);
+    }
+
+}
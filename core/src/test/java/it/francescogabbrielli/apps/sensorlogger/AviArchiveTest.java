@@ -0,0 +1,161 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the RIFF layout and the index written by {@link AviArchive}
+ */
+public class AviArchiveTest {
+
+    /** A (fake) JPEG: SOI, SOF0 with the size, padding, EOI */
+    private static byte[] jpeg(int width, int height, int length) {
+        byte[] ret = new byte[length];
+        byte[] head = {(byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xe0, 0, 4, 0, 0,
+                (byte) 0xff, (byte) 0xc0, 0, 11, 8, (byte) (height >> 8), (byte) height,
+                (byte) (width >> 8), (byte) width, 1, 1, 0x11, 0};
+        System.arraycopy(head, 0, ret, 0, head.length);
+        ret[length - 2] = (byte) 0xff;
+        ret[length - 1] = (byte) 0xd9;
+        return ret;
+    }
+
+    private static String fourcc(ByteBuffer b, int offset) {
+        return new String(new byte[] {b.get(offset), b.get(offset + 1), b.get(offset + 2), b.get(offset + 3)});
+    }
+
+    private static void write(AviArchive avi, OutputStream out, byte[][] frames) throws IOException {
+        avi.begin(out);
+        for (int i = 0; i < frames.length; i++)
+            avi.putEntry("frame" + i + ".jpg", frames[i], 0, frames[i].length, 0);
+        avi.finish();
+    }
+
+    /** Check the chunks and the index (relative to the movi list id) */
+    private static void checkFrames(ByteBuffer b, byte[][] frames) {
+        assertEquals("RIFF", fourcc(b, 0));
+        assertEquals("AVI ", fourcc(b, 8));
+        assertEquals("hdrl", fourcc(b, 20));
+        assertEquals("avih", fourcc(b, 24));
+        assertEquals(66666, b.getInt(32));
+        assertEquals(640, b.getInt(64));
+        assertEquals(480, b.getInt(68));
+        assertEquals("vids", fourcc(b, 108));
+        assertEquals("MJPG", fourcc(b, 112));
+        assertEquals("strf", fourcc(b, 164));
+        assertEquals("movi", fourcc(b, 220));
+        int p = 224;
+        for (byte[] frame : frames) {
+            assertEquals("00dc", fourcc(b, p));
+            assertEquals(frame.length, b.getInt(p + 4));
+            p += 8 + frame.length + (frame.length & 1);
+        }
+        assertEquals("idx1", fourcc(b, p));
+        assertEquals(16 * frames.length, b.getInt(p + 4));
+        assertEquals(b.limit(), p + 8 + 16 * frames.length);
+        for (int i = 0; i < frames.length; i++) {
+            int entry = p + 8 + 16 * i;
+            assertEquals("00dc", fourcc(b, entry));
+            assertEquals(0x10, b.getInt(entry + 4));
+            int chunk = 220 + b.getInt(entry + 8);
+            assertEquals("00dc", fourcc(b, chunk));
+            assertEquals(frames[i].length, b.getInt(entry + 12));
+            for (int j = 0; j < frames[i].length; j++)
+                assertEquals(frames[i][j], b.get(chunk + 8 + j));
+        }
+    }
+
+    @Test
+    public void writesFramesAndIndex() throws Exception {
+        byte[][] frames = {jpeg(640, 480, 1001), jpeg(640, 480, 2000), jpeg(640, 480, 777)};
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AviArchive avi = new AviArchive(66666667L);
+        write(avi, out, frames);
+        assertFalse(avi.isOpen());
+        assertEquals(3, avi.getFrames());
+        ByteBuffer b = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        checkFrames(b, frames);
+        //not seekable: sizes left to 0
+        assertEquals(0, b.getInt(4));
+        assertEquals(0, b.getInt(48));
+    }
+
+    @Test
+    public void patchesHeadersOfFiles() throws Exception {
+        byte[][] frames = {jpeg(640, 480, 1001), jpeg(640, 480, 2000)};
+        File file = File.createTempFile("avi", ".avi");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            AviArchive avi = new AviArchive(66666667L);
+            write(avi, out, frames);
+            out.close();
+            byte[] data = new byte[(int) file.length()];
+            RandomAccessFile f = new RandomAccessFile(file, "r");
+            f.readFully(data);
+            f.close();
+            ByteBuffer b = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+            checkFrames(b, frames);
+            assertEquals(data.length - 8, b.getInt(4));
+            assertEquals(2, b.getInt(48));//total frames
+            assertEquals(2, b.getInt(108 + 32));//stream length
+            assertEquals(224 + 8 + 1001 + 1 + 8 + 2000 - 220, b.getInt(216));
+            assertEquals(2008, b.getInt(60));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void acceptsOnlyJpegs() throws Exception {
+        AviArchive avi = new AviArchive(66666667L);
+        assertTrue(avi.accepts("frame0000001.jpg"));
+        assertFalse(avi.accepts("sensors.csv"));
+        assertEquals(".avi", avi.getExtension());
+        avi.begin(new ByteArrayOutputStream());
+        try {
+            avi.putEntry("frame.jpg", new byte[] {(byte) 0x89, 'P', 'N', 'G'}, 0, 4, 0);
+            fail("PNG in the video");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void readsJpegSize() {
+        int[] wh = AviArchive.getSize(jpeg(1920, 1080, 100), 0, 100);
+        assertEquals(1920, wh[0]);
+        assertEquals(1080, wh[1]);
+    }
+
+    @Test
+    public void writesEmptyChunksForRepeats() throws Exception {
+        byte[] frame = jpeg(640, 480, 1001);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AviArchive avi = new AviArchive(66666667L);
+        avi.begin(out);
+        avi.putFrame("frame0.jpg", frame, 0, frame.length, 0);
+        avi.putRepeat("frame1.jpg", "frame0.jpg", frame, 0, frame.length, 66666667L);
+        avi.finish();
+        assertEquals(2, avi.getFrames());
+        ByteBuffer b = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        int repeat = 224 + 8 + frame.length + 1;
+        assertEquals("00dc", fourcc(b, repeat));
+        assertEquals(0, b.getInt(repeat + 4));
+        int index = repeat + 8;
+        assertEquals("idx1", fourcc(b, index));
+        assertEquals(32, b.getInt(index + 4));
+        assertEquals(0, b.getInt(index + 8 + 16 + 4));
+        assertEquals(repeat - 220, b.getInt(index + 8 + 16 + 8));
+        assertEquals(0, b.getInt(index + 8 + 16 + 12));
+    }
+}
@@ -0,0 +1,85 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the reference counting of {@link FrameBuffer} and the recycling of {@link BufferPool}
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void recycledAfterTheLastRelease() {
+        BufferPool pool = new BufferPool(4, 16);
+        FrameBuffer b = pool.acquire(10);
+        assertTrue(b.data().length >= 16);
+        assertEquals(0, b.length());
+        b.retain().retain();//three targets
+        b.release();
+        b.release();
+        assertNotSame(b, pool.acquire(10));//still referenced
+        b.release();
+        assertSame(b, pool.acquire(10));
+        assertEquals(2, pool.getAllocated());
+    }
+
+    @Test
+    public void reusedEmptyAndGrown() {
+        BufferPool pool = new BufferPool(4, 16);
+        FrameBuffer b = pool.acquire(10);
+        b.append(new byte[] {1, 2, 3}, 0, 3);
+        b.release();
+        assertSame(b, pool.acquire(100));
+        assertEquals(0, b.length());
+        assertTrue(b.data().length >= 100);
+    }
+
+    @Test
+    public void doubleRelease() {
+        BufferPool pool = new BufferPool(4, 16);
+        FrameBuffer b = pool.acquire(10);
+        b.release();
+        try {
+            b.release();
+            fail("released twice");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        //recycled only once: never handed out twice
+        assertNotSame(pool.acquire(10), pool.acquire(10));
+    }
+
+    @Test
+    public void doubleReleaseOfAWrappedBuffer() {
+        FrameBuffer b = FrameBuffer.wrap(new byte[] {1, 2, 3});
+        assertEquals(3, b.length());
+        b.release();
+        try {
+            b.release();
+            fail("released twice");
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        assertNull(FrameBuffer.wrap(null));
+    }
+
+    @Test
+    public void exhaustion() {
+        BufferPool pool = new BufferPool(2, 16);
+        List<FrameBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            buffers.add(pool.acquire(10));
+        assertEquals(5, pool.getAllocated());//an empty pool allocates, it never blocks
+        for (FrameBuffer b : buffers)
+            b.release();
+        //only two buffers kept
+        for (int i = 0; i < 5; i++)
+            pool.acquire(10);
+        assertEquals(8, pool.getAllocated());
+    }
+
+}
@@ -0,0 +1,169 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of the codecs of {@link CompressedOutputStream}
+ */
+public class CompressedOutputStreamTest {
+
+    /** Sensor data as written by the recorder */
+    private static byte[] csv(int rows) {
+        StringBuilder sb = new StringBuilder("Frame Time,Accelerometer X,Accelerometer Y,Accelerometer Z\n");
+        for (int i = 0; i < rows; i++)
+            sb.append(String.format(Locale.US, "%d,%.5f,%.5f,%.5f\n",
+                    i * 66, Math.sin(i / 10.0), Math.cos(i / 10.0), 9.81 + Math.sin(i / 3.0) / 100));
+        return sb.toString().getBytes();
+    }
+
+    private static byte[] random(int length) {
+        byte[] ret = new byte[length];
+        new Random(42).nextBytes(ret);
+        return ret;
+    }
+
+    private static CompressedOutputStream compress(String codec, byte[] data, int blockSize, ByteArrayOutputStream out)
+            throws IOException {
+        CompressedOutputStream c = new CompressedOutputStream(out,
+                CompressedOutputStream.newCodec(codec, 6, blockSize), blockSize);
+        //uneven writes, across the block boundaries
+        for (int off = 0, n = 1; off < data.length; off += n, n = n * 3 % 5000 + 1)
+            c.write(data, off, Math.min(n, data.length - off));
+        c.close();
+        return c;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0)
+            ret.write(buf, 0, n);
+        return ret.toByteArray();
+    }
+
+    /** Read a whole LZ4 frame */
+    private static byte[] readLz4(byte[] frame) throws IOException {
+        assertEquals(0x04, frame[0]);
+        assertEquals(0x22, frame[1]);
+        assertEquals(0x4D, frame[2]);
+        assertEquals(0x18, frame[3]);
+        assertEquals((byte) (Lz4Codec.xxh32(frame, 4, 2) >>> 8), frame[6]);
+        ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        byte[] block = new byte[4 * 1024 * 1024];
+        int p = 7;
+        while (true) {
+            int size = (frame[p] & 0xff) | (frame[p + 1] & 0xff) << 8 | (frame[p + 2] & 0xff) << 16 | frame[p + 3] << 24;
+            p += 4;
+            if (size == 0)
+                break;
+            if (size < 0) {
+                size &= 0x7fffffff;
+                ret.write(frame, p, size);
+            } else
+                ret.write(block, 0, Lz4Codec.decompress(frame, p, size, block, 0));
+            p += size;
+        }
+        assertEquals(frame.length, p);
+        return ret.toByteArray();
+    }
+
+    @Test
+    public void deflateRoundTrip() throws Exception {
+        byte[] data = csv(5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedOutputStream c = compress(CompressedOutputStream.DEFLATE, data, 16 * 1024, out);
+        assertArrayEquals(data, readAll(new InflaterInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        assertEquals((data.length + 16 * 1024 - 1) / (16 * 1024), c.getBlocks());
+        assertEquals(data.length, c.getBytesIn());
+        assertEquals(out.size(), c.getBytesOut());
+        assertTrue(c.getRatio() > 2);
+        assertEquals(c.getBlocks(), c.getStats().getCount());
+    }
+
+    @Test
+    public void gzipRoundTrip() throws Exception {
+        byte[] data = csv(5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedOutputStream c = compress(CompressedOutputStream.GZIP, data, 16 * 1024, out);
+        assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        assertEquals(out.size(), c.getBytesOut());
+        assertTrue(c.getRatio() > 2);
+    }
+
+    @Test
+    public void lz4RoundTrip() throws Exception {
+        byte[] data = csv(5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CompressedOutputStream c = compress(CompressedOutputStream.LZ4, data, 64 * 1024, out);
+        assertArrayEquals(data, readLz4(out.toByteArray()));
+        assertEquals(out.size(), c.getBytesOut());
+        assertTrue(c.getRatio() > 1.2);
+    }
+
+    @Test
+    public void lz4StoresIncompressibleBlocks() throws Exception {
+        byte[] data = random(100000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compress(CompressedOutputStream.LZ4, data, 64 * 1024, out);
+        assertArrayEquals(data, readLz4(out.toByteArray()));
+        assertEquals(data.length + 7 + 3 * 4, out.size());
+    }
+
+    @Test
+    public void lz4LongRunsAndShortInputs() throws Exception {
+        for (byte[] data : new byte[][] {new byte[0], "abc".getBytes(), new byte[13], new byte[100000],
+                "abcabcabcabcabcabcabcabcabcabcabcabcabcabcabcabc".getBytes()}) {
+            byte[] dst = new byte[Lz4Codec.maxCompressedLength(data.length)];
+            int n = Lz4Codec.compress(data, 0, data.length, dst, 0, new int[1 << 14]);
+            byte[] back = new byte[data.length];
+            assertEquals(data.length, Lz4Codec.decompress(dst, 0, n, back, 0));
+            assertArrayEquals(data, back);
+        }
+    }
+
+    @Test
+    public void lz4DescriptorChecksum() {
+        //xxHash32 reference values
+        assertEquals(0x02CC5D05, Lz4Codec.xxh32(new byte[0], 0, 0));
+        assertEquals(0x550D7456, Lz4Codec.xxh32("a".getBytes(), 0, 1));
+        assertEquals(0x32D153FF, Lz4Codec.xxh32("abc".getBytes(), 0, 3));
+    }
+
+    @Test
+    public void timesOnlyTheCompression() throws Exception {
+        final long delay = 20000000;//a slow destination (ns per write)
+        ByteArrayOutputStream slow = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                long end = System.nanoTime() + delay;
+                while (System.nanoTime() < end)
+                    Thread.yield();
+                super.write(b, off, len);
+            }
+        };
+        byte[] data = csv(2000);
+        CompressedOutputStream c = compress(CompressedOutputStream.GZIP, data, 8 * 1024, slow);
+        assertTrue(c.getBlocks() > 1);
+        assertTrue(c.getStats().getMax() < delay);
+        assertArrayEquals(data, readAll(new GZIPInputStream(new ByteArrayInputStream(slow.toByteArray()))));
+    }
+
+    @Test
+    public void unknownCodecIsNone() {
+        assertNull(CompressedOutputStream.newCodec(CompressedOutputStream.NONE, 6, 1024));
+        assertNull(CompressedOutputStream.newCodec("", 6, 1024));
+        assertEquals(".gz", CompressedOutputStream.newCodec(CompressedOutputStream.GZIP, 6, 1024).getExtension());
+    }
+}
@@ -0,0 +1,85 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check that {@link CsvEncoder} writes exactly what {@code String.format} would write
+ */
+public class CsvEncoderTest {
+
+    private static String format(float value) {
+        return String.format(Locale.US, "%2.5f", value);
+    }
+
+    private static String encode(float value) {
+        return new CsvEncoder(8).append(value).toString();
+    }
+
+    @Test
+    public void specialValues_matchFormat() throws Exception {
+        float[] values = {
+                0f, -0f, 1f, -1f, 0.5f, -0.5f, 1/64f, -1/64f, 3/128f,
+                0.000005f, -0.000005f, 0.0000049f, 1e-7f, -1e-7f,
+                9.999995f, -9.999995f, 99999.99f, 123.456789f, 9.80665f,
+                Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL,
+                (float) (1L << 52), -(float) (1L << 52), 1e16f, 1e30f, Float.MAX_VALUE, -Float.MAX_VALUE,
+                Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY
+        };
+        for (float v : values)
+            assertEquals("Value " + v, format(v), encode(v));
+    }
+
+    @Test
+    public void dyadicValues_matchFormat() throws Exception {
+        //exact binary fractions are the only ones that can hit a rounding tie
+        for (int k = 1; k <= 30; k++)
+            for (int n = -1000; n <= 1000; n++) {
+                float v = (float) (n / Math.pow(2, k));
+                assertEquals("Value " + v, format(v), encode(v));
+            }
+    }
+
+    @Test
+    public void randomSensorValues_matchFormat() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            float v = (float) (random.nextGaussian() * Math.pow(10, random.nextInt(9) - 4));
+            assertEquals("Value " + v, format(v), encode(v));
+        }
+    }
+
+    @Test
+    public void randomBits_matchFormat() throws Exception {
+        Random random = new Random(7);
+        for (int i = 0; i < 200000; i++) {
+            float v = Float.intBitsToFloat(random.nextInt());
+            assertEquals("Value " + v, format(v), encode(v));
+        }
+    }
+
+    @Test
+    public void longs_matchToString() throws Exception {
+        long[] values = {0, 1, -1, 9, 10, 99, 100, 123456789, -987654321, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long v : values)
+            assertEquals(String.valueOf(v), new CsvEncoder(1).append(v).toString());
+    }
+
+    @Test
+    public void row_isEncodedInPlace() throws Exception {
+        CsvEncoder encoder = new CsvEncoder(4);
+        for (int n = 0; n < 3; n++) {
+            encoder.reset().append(33).append(',');
+            for (float v : new float[]{0.1f, -9.81f, 1234.5678f})
+                encoder.append(v).append(',');
+            encoder.trim().append('\n');
+            assertEquals("33,0.10000,-9.81000,1234.56775\n", encoder.toString());
+            assertEquals(encoder.length(), encoder.toByteArray().length);
+        }
+    }
+
+}
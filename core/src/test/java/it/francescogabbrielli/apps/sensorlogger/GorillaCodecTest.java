@@ -0,0 +1,179 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of {@link GorillaEncoder} / {@link GorillaDecoder} over many random series
+ * (property: whatever is written is read back bit by bit, timestamps and values)
+ */
+public class GorillaCodecTest {
+
+    private final static long FRAME = 66666667L;
+    private final static int COLUMNS = 4;
+
+    private static SensorLogHeader newHeader() {
+        return new SensorLogHeader()
+                .setEncoding(SensorLogHeader.ENCODING_GORILLA)
+                .setStartTimestamp(123456789L)
+                .setFrameDuration(FRAME)
+                .addColumn(1, 0, "Accelerometer X")
+                .addColumn(1, 1, "Accelerometer Y")
+                .addColumn(1, 2, "Accelerometer Z")
+                .addColumn(5, 0, "Light");
+    }
+
+    /**
+     * A random series: regular, jittery or irregular timestamps, and smooth, constant, noisy or
+     * special values, mixed differently for every seed
+     */
+    private static class Series {
+        final long[] timestamps;
+        final float[][] values;
+
+        Series(long seed, int rows) {
+            Random r = new Random(seed);
+            timestamps = new long[rows];
+            values = new float[rows][COLUMNS];
+            int timing = r.nextInt(4);
+            long t = r.nextInt(3) == 0 ? -r.nextInt(1000000) : r.nextInt(1000000);
+            for (int i = 0; i < rows; i++) {
+                timestamps[i] = t;
+                switch (timing) {
+                    case 0: t += FRAME; break;
+                    case 1: t += FRAME + r.nextInt(2001) - 1000; break;
+                    case 2: t += r.nextInt(5) == 0 ? FRAME * (1 + r.nextInt(5)) : FRAME; break;
+                    default: t += r.nextBoolean() ? (r.nextLong() >> r.nextInt(64)) : r.nextInt(100);
+                }
+            }
+            for (int c = 0; c < COLUMNS; c++) {
+                int kind = r.nextInt(5);
+                double phase = r.nextDouble() * 10, noise = r.nextDouble() / 100;
+                for (int i = 0; i < rows; i++)
+                    switch (kind) {
+                        case 0: values[i][c] = (float) (Math.sin(phase + i / 20.0) + r.nextGaussian() * noise); break;
+                        case 1: values[i][c] = 9.81f; break;
+                        case 2: values[i][c] = Float.intBitsToFloat(r.nextInt()); break;
+                        case 3: values[i][c] = SPECIAL[r.nextInt(SPECIAL.length)]; break;
+                        default: values[i][c] = r.nextInt(3) == 0 ? values[Math.max(0, i - 1)][c] : r.nextFloat() * 1000;
+                    }
+            }
+        }
+    }
+
+    private final static float[] SPECIAL = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY,
+            Float.NEGATIVE_INFINITY, Float.MIN_VALUE, Float.MAX_VALUE, -1f, 1f};
+
+    private static byte[] write(SensorLogHeader header, Series s, int blockRows) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.toByteArray());
+        SensorLogWriter writer = SensorLogWriter.newInstance(header, blockRows);
+        assertTrue(writer instanceof GorillaEncoder);
+        for (int i = 0; i < s.timestamps.length; i++) {
+            writer.beginRow(s.timestamps[i]);
+            for (int c = 0; c < COLUMNS; c++)
+                writer.put(s.values[i][c]);
+            if (writer.endRow() || i == s.timestamps.length - 1) {
+                out.write(writer.buffer(), 0, writer.length());
+                writer.reset();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void randomSeries_roundTrip() throws Exception {
+        SensorLogHeader header = newHeader();
+        for (long seed = 0; seed < 300; seed++) {
+            Random r = new Random(seed);
+            Series s = new Series(seed, 1 + r.nextInt(500));
+            byte[] log = write(header, s, 1 + r.nextInt(64));
+            SensorLogReader reader = new SensorLogReader(new ByteArrayInputStream(log));
+            assertEquals(SensorLogHeader.ENCODING_GORILLA, reader.getHeader().getEncoding());
+            for (int i = 0; i < s.timestamps.length; i++) {
+                assertTrue("seed " + seed + " row " + i, reader.next());
+                assertEquals("seed " + seed + " row " + i, s.timestamps[i], reader.getTimestamp());
+                for (int c = 0; c < COLUMNS; c++)
+                    assertEquals("seed " + seed + " row " + i + " column " + c,
+                            Float.floatToRawIntBits(s.values[i][c]), Float.floatToRawIntBits(reader.getValue(c)));
+            }
+            assertFalse(reader.next());
+            reader.close();
+        }
+    }
+
+    @Test
+    public void blocks_areIndependent() throws Exception {
+        SensorLogHeader header = newHeader();
+        Series s = new Series(7, 100);
+        byte[] log = write(header, s, 16);
+        //skip the header and the first two blocks, then decode the third on its own
+        int offset = header.toByteArray().length;
+        for (int b = 0; b < 2; b++)
+            offset += GorillaDecoder.getBlockSize(log, offset);
+        GorillaDecoder decoder = new GorillaDecoder(header);
+        decoder.setBlock(log, offset);
+        assertEquals(16, decoder.getRows());
+        assertEquals(s.timestamps[32], decoder.getFirstTimestamp());
+        for (int i = 32; i < 48; i++) {
+            assertTrue(decoder.next());
+            assertEquals(s.timestamps[i], decoder.getTimestamp());
+            assertEquals(Float.floatToRawIntBits(s.values[i][3]), Float.floatToRawIntBits(decoder.getValue(3)));
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void missingValues_areNaN() throws Exception {
+        SensorLogHeader header = newHeader();
+        GorillaEncoder encoder = new GorillaEncoder(header, 4);
+        encoder.beginRow(0);
+        encoder.put(1f);
+        encoder.endRow();
+        GorillaDecoder decoder = new GorillaDecoder(header);
+        decoder.setBlock(encoder.buffer(), 0);
+        assertTrue(decoder.next());
+        assertEquals(1f, decoder.getValue(0), 0f);
+        assertTrue(Float.isNaN(decoder.getValue(3)));
+    }
+
+    @Test
+    public void regularSmoothData_isSmall() throws Exception {
+        SensorLogHeader header = newHeader();
+        GorillaEncoder encoder = new GorillaEncoder(header, 256);
+        for (int i = 0; i < 256; i++) {
+            encoder.beginRow(i * FRAME);
+            for (int c = 0; c < COLUMNS; c++)
+                encoder.put(c == 3 ? 120f : (float) Math.sin(i / 50.0 + c));
+            encoder.endRow();
+        }
+        //1 bit for each timestamp and each constant value, much less than 32 for the others
+        assertTrue(encoder.length() < 256 * header.getRowSize() / 2);
+    }
+
+    @Test
+    public void corruptedBlock_isRejected() throws Exception {
+        SensorLogHeader header = newHeader();
+        GorillaEncoder encoder = new GorillaEncoder(header, 4);
+        for (int i = 0; i < 4; i++) {
+            encoder.beginRow(i * FRAME);
+            encoder.put(i);
+            encoder.endRow();
+        }
+        byte[] block = encoder.buffer().clone();
+        block[0] -= 8;//one byte of bits less
+        GorillaDecoder decoder = new GorillaDecoder(header);
+        decoder.setBlock(block, 0);
+        try {
+            while (decoder.next());
+            fail("Truncated block decoded");
+        } catch (java.io.IOException e) {
+            //expected
+        }
+    }
+}
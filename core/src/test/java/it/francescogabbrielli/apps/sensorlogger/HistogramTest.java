@@ -0,0 +1,88 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the buckets and the percentiles of {@link Histogram}
+ */
+public class HistogramTest {
+
+    @Test
+    public void bucketsAreContiguous() throws Exception {
+        long previous = -1;
+        for (int i = 0; Histogram.upperBound(i) != Long.MAX_VALUE; i++) {
+            long lower = Histogram.lowerBound(i), upper = Histogram.upperBound(i);
+            assertEquals(previous + 1, lower);
+            assertEquals(i, Histogram.index(lower));
+            assertEquals(i, Histogram.index(upper));
+            previous = upper;
+        }
+        assertEquals(previous + 1, Histogram.lowerBound(Histogram.index(Histogram.MAX_VALUE)));
+        assertEquals(Histogram.index(Histogram.MAX_VALUE + 1), Histogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesWithinPrecision() throws Exception {
+        Random r = new Random(7);
+        Histogram h = new Histogram("test");
+        long[] samples = new long[100000];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (long) (Math.exp(r.nextGaussian() + 15));//lognormal around 3ms
+            h.record(samples[i]);
+        }
+        Arrays.sort(samples);
+        for (double p : new double[] {50, 90, 99, 99.9}) {
+            long exact = samples[(int) Math.ceil(p / 100 * samples.length) - 1];
+            long value = h.getPercentile(p);
+            assertTrue(p + ": " + value + " vs " + exact, value >= exact && value <= exact * 1.07 + 1024);
+        }
+        assertEquals(samples[samples.length - 1], h.getMax());
+        assertEquals(samples[samples.length - 1], h.getPercentile(100));
+        assertEquals(samples.length, h.getCount());
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getPercentile(99));
+    }
+
+    @Test
+    public void concurrentRecording() throws Exception {
+        final Histogram h = new Histogram("test");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        h.record(i * 1000L);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(400000, h.getCount());
+        assertEquals(4L * 1000L * (99999L * 100000L / 2), h.getSum());
+        assertEquals(99999000L, h.getMax());
+    }
+
+    @Test
+    public void samplesSinceCopy() throws Exception {
+        Histogram h = new Histogram("test");
+        h.record(50000000L);
+        Histogram copy = h.since(null);
+        for (int i = 1; i <= 100; i++)
+            h.record(i * 10000L);
+        Histogram session = h.since(copy);
+        assertEquals(100, session.getCount());
+        assertEquals(5050 * 10000L, session.getSum());
+        long max = session.getMax();
+        assertTrue(max + " vs " + 1000000L, max >= 1000000L && max <= 1000000L * 1.07);
+        assertEquals(max, session.getPercentile(100));
+        assertEquals(0, h.since(h.since(null)).getCount());
+    }
+}
@@ -0,0 +1,117 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the policies of {@link LogQueue}
+ */
+public class LogQueueTest {
+
+    private static class Op implements LogQueue.Item {
+        final int size;
+        final boolean frame;
+        Op(int size, boolean frame) {
+            this.size = size;
+            this.frame = frame;
+        }
+        @Override
+        public int size() {
+            return size;
+        }
+        @Override
+        public boolean isDroppable() {
+            return frame;
+        }
+        @Override
+        public void discard() {
+        }
+    }
+
+    @Test
+    public void dropNewest_rejectsFramesWhenFull() throws Exception {
+        LogQueue queue = new LogQueue(LogQueue.DROP_NEWEST, 2, 0, 1);
+        assertTrue(queue.offer(new Op(10, true)));
+        assertTrue(queue.offer(new Op(10, true)));
+        assertFalse(queue.offer(new Op(10, true)));
+        assertTrue(queue.offer(new Op(10, false)));//data is never dropped
+        assertEquals(3, queue.getDepth());
+        assertEquals(1, queue.getDropped());
+        assertEquals(3, queue.getHighWaterMark());
+    }
+
+    @Test
+    public void dropOldest_makesRoomInBytes() throws Exception {
+        LogQueue queue = new LogQueue(LogQueue.DROP_OLDEST, 0, 100, 1);
+        Op first = new Op(60, true), data = new Op(10, false), second = new Op(60, true);
+        assertTrue(queue.offer(first));
+        assertTrue(queue.offer(data));
+        assertTrue(queue.offer(second));
+        assertEquals(1, queue.getDropped());
+        assertEquals(70, queue.getBytes());
+        assertFalse(queue.start(first));
+        assertTrue(queue.start(data));
+        queue.done(data);
+        assertTrue(queue.start(second));
+        queue.done(second);
+        assertEquals(0, queue.getDepth());
+        assertEquals(0, queue.getBytes());
+        assertEquals(70, queue.getHighWaterBytes());
+    }
+
+    @Test
+    public void everyNth_keepsOneFrameEveryNWhenFull() throws Exception {
+        LogQueue queue = new LogQueue(LogQueue.EVERY_NTH, 1, 0, 3);
+        queue.offer(new Op(1, true));
+        int accepted = 0;
+        for (int i = 0; i < 9; i++)
+            if (queue.offer(new Op(1, true)))
+                accepted++;
+        assertEquals(3, accepted);
+        assertEquals(9, queue.getDropped());//6 rejected, 3 evicted by the frames kept
+        assertEquals(1, queue.getDepth());
+    }
+
+    @Test
+    public void everyNth_staysBounded() throws Exception {
+        LogQueue queue = new LogQueue(LogQueue.EVERY_NTH, 4, 0, 2);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new Op(1, true));
+            assertTrue(queue.getDepth() <= 4);
+        }
+        assertEquals(4, queue.getHighWaterMark());
+        assertEquals(4, queue.getDepth());
+    }
+
+    @Test
+    public void block_waitsForRoom() throws Exception {
+        final LogQueue queue = new LogQueue(LogQueue.BLOCK, 1, 0, 1);
+        final Op first = new Op(1, true);
+        queue.offer(first);
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {Thread.sleep(50);}
+                catch (InterruptedException e) {}
+                queue.start(first);
+                queue.done(first);
+            }
+        });
+        consumer.start();
+        long t = System.nanoTime();
+        assertTrue(queue.offer(new Op(1, true)));
+        assertTrue(System.nanoTime() - t >= 40000000L);
+        assertEquals(1, queue.getDepth());
+        assertEquals(0, queue.getDropped());
+        consumer.join();
+    }
+
+    @Test
+    public void parsePolicy_defaultsToBlock() throws Exception {
+        assertEquals(LogQueue.DROP_OLDEST, LogQueue.parsePolicy("drop_oldest"));
+        assertEquals(LogQueue.EVERY_NTH, LogQueue.parsePolicy("every_nth"));
+        assertEquals(LogQueue.BLOCK, LogQueue.parsePolicy(null));
+    }
+
+}
@@ -0,0 +1,100 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips of a {@link MappedFileOutputStream}, across the extents
+ */
+public class MappedFileOutputStreamTest {
+
+    private final static int EXTENT = 4096;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("mapped", ".csv");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] data(int length) {
+        byte[] ret = new byte[length];
+        for (int i = 0; i < length; i++)
+            ret[i] = (byte) (i * 31 + i / 7);
+        return ret;
+    }
+
+    private byte[] read() throws IOException {
+        byte[] ret = new byte[(int) file.length()];
+        InputStream in = new FileInputStream(file);
+        try {
+            for (int n = 0; n < ret.length; )
+                n += in.read(ret, n, ret.length - n);
+        } finally {
+            in.close();
+        }
+        return ret;
+    }
+
+    private void write(byte[] data) throws IOException {
+        MappedFileOutputStream out = new MappedFileOutputStream(file, EXTENT);
+        //uneven writes, across the extents, and single bytes
+        for (int off = 0, n = 1; off < data.length; off += n, n = n * 7 % 3000 + 1) {
+            n = Math.min(n, data.length - off);
+            if (n == 1)
+                out.write(data[off]);
+            else
+                out.write(data, off, n);
+            assertEquals(off + n, out.position());
+        }
+        assertTrue(file.length() >= data.length);
+        out.close();
+        out.close();
+    }
+
+    @Test
+    public void acrossExtents() throws Exception {
+        byte[] data = data(2 * EXTENT + 1234);
+        write(data);
+        assertEquals(data.length, file.length());
+        assertArrayEquals(data, read());
+    }
+
+    @Test
+    public void fullExtents() throws Exception {
+        byte[] data = data(3 * EXTENT);
+        write(data);
+        assertArrayEquals(data, read());
+    }
+
+    @Test
+    public void empty() throws Exception {
+        write(new byte[0]);
+        assertEquals(0, file.length());
+    }
+
+    @Test
+    public void replacesTheContent() throws Exception {
+        FileOutputStream old = new FileOutputStream(file);
+        old.write(data(5 * EXTENT));
+        old.close();
+        byte[] data = data(EXTENT / 2);
+        write(data);
+        assertArrayEquals(data, read());
+    }
+
+}
@@ -0,0 +1,47 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the registration and the text exposition of {@link Metrics}
+ */
+public class MetricsTest {
+
+    @Test
+    public void sameInstancePerLabels() throws Exception {
+        Metrics metrics = new Metrics();
+        Histogram a = metrics.histogram("send_seconds", "Send", "target", "LogFile");
+        assertSame(a, metrics.histogram("send_seconds", "Send", "target", "LogFile"));
+        assertNotSame(a, metrics.histogram("send_seconds", "Send", "target", "LogFtp"));
+        AtomicLong c = metrics.counter("frames_total", "Frames", "target", "LogFile");
+        assertSame(c, metrics.counter("frames_total", "Frames", "target", "LogFile"));
+        try {
+            metrics.counter("send_seconds", "Send");
+            fail("Type mismatch");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void exposition() throws Exception {
+        Metrics metrics = new Metrics();
+        Histogram h = metrics.histogram("encode_seconds", "Encoding of a frame");
+        h.record(2000000L);
+        h.record(4000000L);
+        metrics.counter("dropped_total", "Dropped frames", "target", "Log\"Ftp\"").addAndGet(3);
+        String text = metrics.toString();
+        assertTrue(text, text.startsWith("# HELP sensorlogger_encode_seconds Encoding of a frame\n"
+                + "# TYPE sensorlogger_encode_seconds summary\n"
+                + "sensorlogger_encode_seconds{quantile=\"0.5\"} 0.002"));
+        assertTrue(text, text.contains("sensorlogger_encode_seconds{quantile=\"1\"} 0.004000000\n"
+                + "sensorlogger_encode_seconds_sum 0.006000000\n"
+                + "sensorlogger_encode_seconds_count 2\n"));
+        assertTrue(text, text.endsWith("# TYPE sensorlogger_dropped_total counter\n"
+                + "sensorlogger_dropped_total{target=\"Log\\\"Ftp\\\"\"} 3\n"));
+    }
+}
@@ -0,0 +1,97 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the parts framed by {@link PartFramer}, in both protocols
+ */
+public class PartFramerTest {
+
+    private static String join(List<ByteBuffer> list) {
+        StringBuilder sb = new StringBuilder();
+        for (ByteBuffer b : list)
+            sb.append(new String(b.array(), b.arrayOffset() + b.position(), b.remaining()));
+        return sb.toString();
+    }
+
+    @Test
+    public void multipart() throws Exception {
+        PartFramer framer = new PartFramer(false, "frame");
+        List<ByteBuffer> list = new ArrayList<>();
+        byte[] headers = "a,b\n".getBytes();
+        assertTrue(framer.frame(list, FrameBuffer.wrap("1,2\n".getBytes()), "text/csv", 0, 42, false, headers));
+        assertEquals("\r\n--frame\r\nContent-type: text/csv\r\nContent-Length: 8\r\nX-Timestamp: 42\r\n\r\n"
+                + "a,b\n1,2\n\r\n", join(list));
+        list.clear();
+        assertFalse(framer.frame(list, FrameBuffer.wrap("JPEG".getBytes()), "image/jpeg", 0, 43, true, headers));
+        assertEquals("\r\n--frame\r\nContent-type: image/jpeg\r\nContent-Length: 4\r\nX-Timestamp: 43\r\n\r\n"
+                + "JPEG\r\n", join(list));
+        assertEquals("\r\n--frame--\r\n\r\n", join(Collections.singletonList(framer.end())));
+    }
+
+    @Test
+    public void binary() throws Exception {
+        PartFramer framer = new PartFramer(true, "frame");
+        List<ByteBuffer> list = new ArrayList<>();
+        byte[] headers = "a,b\n".getBytes();
+        assertTrue(framer.frame(list, FrameBuffer.wrap("1,2\n".getBytes()), "text/csv", 5, 42, false, headers));
+        assertEquals(3, list.size());
+        ByteBuffer text = list.get(0);
+        assertEquals(PartFramer.TYPE_TEXT_HEADERS, text.getInt(0));
+        assertEquals(4, text.getInt(16));
+        assertEquals(PartFramer.HEADER_SIZE + 4, text.remaining());
+        ByteBuffer head = list.get(1);
+        assertEquals(PartFramer.HEADER_SIZE, head.remaining());
+        assertEquals(PartFramer.TYPE_DATA_CSV, head.getInt(0));
+        assertEquals(5, head.getInt(4));
+        assertEquals(42, head.getLong(8));
+        assertEquals(4, head.getInt(16));
+        assertEquals("1,2\n", join(list.subList(2, 3)));
+
+        list.clear();
+        assertFalse(framer.frame(list, FrameBuffer.wrap(new byte[100]), "image/png", 6, 43, true, headers));
+        assertEquals(2, list.size());
+        assertEquals(PartFramer.TYPE_IMAGE_PNG, list.get(0).getInt(0));
+        assertEquals(100, list.get(0).getInt(16));
+        assertEquals(PartFramer.TYPE_END, framer.end().getInt(0));
+    }
+
+    @Test
+    public void binarySensorLogHeader() throws Exception {
+        PartFramer framer = new PartFramer(true, "frame");
+        List<ByteBuffer> list = new ArrayList<>();
+        assertTrue(framer.frame(list, FrameBuffer.wrap("BLOCK".getBytes()), "application/octet-stream", 3, 42,
+                false, "SLOG".getBytes()));
+        assertEquals(3, list.size());
+        assertEquals(PartFramer.TYPE_DATA_BINARY, list.get(0).getInt(0));
+        assertEquals(9, list.get(0).getInt(16));
+        assertEquals("SLOGBLOCK", join(list.subList(1, 3)));
+        list.clear();
+        assertFalse(framer.frame(list, FrameBuffer.wrap("BLOCK".getBytes()), "application/octet-stream", 4, 43,
+                false, null));
+        assertEquals(5, list.get(0).getInt(16));
+        assertEquals("BLOCK", join(list.subList(1, 2)));
+    }
+
+    @Test
+    public void repeats() throws Exception {
+        List<ByteBuffer> list = new ArrayList<>();
+        assertFalse(new PartFramer(false, "frame").repeat(list, 7, 44));
+        assertTrue(list.isEmpty());
+        assertTrue(new PartFramer(true, "frame").repeat(list, 7, 44));
+        assertEquals(1, list.size());
+        ByteBuffer head = list.get(0);
+        assertEquals(PartFramer.HEADER_SIZE, head.remaining());
+        assertEquals(PartFramer.TYPE_REPEAT, head.getInt(0));
+        assertEquals(7, head.getInt(4));
+        assertEquals(44, head.getLong(8));
+        assertEquals(0, head.getInt(16));
+    }
+}
@@ -0,0 +1,27 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the content of {@link RepeatManifest}
+ */
+public class RepeatManifestTest {
+
+    @Test
+    public void listsRepetitions() throws Exception {
+        RepeatManifest manifest = new RepeatManifest();
+        assertNull(manifest.take());
+        manifest.add("frame.jpg", "frame.jpg");
+        assertTrue(manifest.isEmpty());
+        manifest.add("frame0000002.jpg", "frame0000001.jpg");
+        manifest.add("frame0000003.jpg", "frame0000001.jpg");
+        FrameBuffer b = manifest.take();
+        assertEquals("filename,repeats\nframe0000002.jpg,frame0000001.jpg\nframe0000003.jpg,frame0000001.jpg\n",
+                new String(b.data(), 0, b.length()));
+        b.release();
+        assertTrue(manifest.isEmpty());
+        assertNull(manifest.take());
+    }
+}
@@ -0,0 +1,51 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check which frames a {@link RepeatTracker} can reference
+ */
+public class RepeatTrackerTest {
+
+    @Test
+    public void referencesTheLastFrame() {
+        RepeatTracker tracker = new RepeatTracker();
+        assertFalse(tracker.canReference(100));
+        tracker.logged(100, "frame0000001.jpg");
+        assertTrue(tracker.canReference(100));
+        assertFalse(tracker.canReference(200));
+        assertEquals("frame0000001.jpg", tracker.getLast());
+        tracker.reset();
+        assertFalse(tracker.canReference(100));
+        assertNull(tracker.getLast());
+    }
+
+    @Test
+    public void repetitionLoggedInFull() {
+        RepeatTracker tracker = new RepeatTracker();
+        tracker.logged(100, "frame0000001.jpg");
+        //frame 200 dropped: its repetition at 300 is logged in full
+        assertFalse(tracker.canReference(200));
+        tracker.logged(300, "frame0000003.jpg");
+        tracker.loggedInFull(300, 200);
+        assertTrue(tracker.canReference(200));
+        assertEquals("frame0000003.jpg", tracker.getLast());
+        //skipped: still the previous frame
+        tracker.loggedInFull(400, 200);
+        assertTrue(tracker.canReference(200));
+    }
+
+    @Test
+    public void manifest() {
+        RepeatTracker tracker = new RepeatTracker();
+        assertNull(tracker.takeManifest());
+        tracker.logged(100, "frame0000001.jpg");
+        tracker.addToManifest("frame0000002.jpg", tracker.getLast());
+        FrameBuffer b = tracker.takeManifest();
+        assertEquals("filename,repeats\nframe0000002.jpg,frame0000001.jpg\n", new String(b.data(), 0, b.length()));
+        b.release();
+        assertNull(tracker.takeManifest());
+    }
+}
@@ -0,0 +1,104 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the readings picked by {@link SensorAlignment} and the resulting skew
+ */
+public class SensorAlignmentTest {
+
+    private SensorRing ring;
+
+    private float[] dst;
+
+    @Before
+    public void setUp() throws Exception {
+        ring = new SensorRing(4, 3);
+        dst = new float[3];
+        for (int i = 1; i <= 3; i++)
+            ring.write(new float[] {i, 10 * i, 100 * i}, 100 * i);
+    }
+
+    @Test
+    public void noReading() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.HOLD, 1, 3);
+        assertFalse(alignment.align(0, new SensorRing(4, 3), 100, dst));
+        assertEquals(0, alignment.getMeanSkew(0));
+    }
+
+    @Test
+    public void latest() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.LATEST, 1, 3);
+        assertTrue(alignment.align(0, ring, 150, dst));
+        assertArrayEquals(new float[] {3, 30, 300}, dst, 0);
+        assertEquals(150, alignment.getSkew(0));
+    }
+
+    @Test
+    public void hold() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.HOLD, 1, 3);
+        alignment.align(0, ring, 290, dst);
+        assertArrayEquals(new float[] {2, 20, 200}, dst, 0);
+        assertEquals(-90, alignment.getSkew(0));
+        alignment.align(0, ring, 300, dst);
+        assertArrayEquals(new float[] {3, 30, 300}, dst, 0);
+        assertEquals(0, alignment.getSkew(0));
+        alignment.align(0, ring, 1000, dst);
+        assertArrayEquals(new float[] {3, 30, 300}, dst, 0);
+        assertEquals(-700, alignment.getSkew(0));
+    }
+
+    @Test
+    public void beforeAllReadings() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.HOLD, 1, 3);
+        alignment.align(0, ring, 50, dst);
+        assertArrayEquals(new float[] {1, 10, 100}, dst, 0);
+        assertEquals(50, alignment.getSkew(0));
+    }
+
+    @Test
+    public void nearest() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.NEAREST, 1, 3);
+        alignment.align(0, ring, 240, dst);
+        assertArrayEquals(new float[] {2, 20, 200}, dst, 0);
+        assertEquals(-40, alignment.getSkew(0));
+        alignment.align(0, ring, 260, dst);
+        assertArrayEquals(new float[] {3, 30, 300}, dst, 0);
+        assertEquals(40, alignment.getSkew(0));
+    }
+
+    @Test
+    public void linear() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.LINEAR, 1, 3);
+        alignment.align(0, ring, 125, dst);
+        assertArrayEquals(new float[] {1.25f, 12.5f, 125}, dst, 1e-4f);
+        assertEquals(-25, alignment.getSkew(0));
+        alignment.align(0, ring, 275, dst);
+        assertArrayEquals(new float[] {2.75f, 27.5f, 275}, dst, 1e-4f);
+        assertEquals(25, alignment.getSkew(0));
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        SensorAlignment alignment = new SensorAlignment(SensorAlignment.HOLD, 2, 3);
+        alignment.align(1, ring, 210, dst);
+        alignment.align(1, ring, 230, dst);
+        assertEquals(20, alignment.getMeanSkew(1));
+        assertEquals(30, alignment.getMaxSkew(1));
+        assertEquals(0, alignment.getMeanSkew(0));
+        alignment.reset();
+        assertEquals(0, alignment.getMaxSkew(1));
+    }
+
+    @Test
+    public void parseMode() throws Exception {
+        assertEquals(SensorAlignment.LINEAR, SensorAlignment.parseMode("Linear"));
+        assertEquals(SensorAlignment.NEAREST, SensorAlignment.parseMode("nearest"));
+        assertEquals(SensorAlignment.LATEST, SensorAlignment.parseMode("unknown"));
+        assertEquals(SensorAlignment.LATEST, SensorAlignment.parseMode(null));
+    }
+
+}
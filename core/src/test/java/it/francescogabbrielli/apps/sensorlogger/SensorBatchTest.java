@@ -0,0 +1,68 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the flush conditions and the overflow of {@link SensorBatch}
+ */
+public class SensorBatchTest {
+
+    private static byte[] row(int i) {
+        return String.format("%04d,1.00000\n", i).getBytes();//13 bytes
+    }
+
+    @Test
+    public void flushesOnSize() throws Exception {
+        SensorBatch batch = new SensorBatch(26, 1000000000L, 1024);
+        batch.append(row(0), 0, 13, 0, 0);
+        assertFalse(batch.isReady(0));
+        batch.append(row(1), 0, 13, 1, 0);
+        assertTrue(batch.isReady(0));
+        FrameBuffer taken = batch.take();
+        assertEquals("0000,1.00000\n0001,1.00000\n", new String(taken.data(), 0, taken.length()));
+        assertEquals(0, batch.length());
+        assertFalse(batch.isReady(0));
+        assertNull(batch.take());
+    }
+
+    @Test
+    public void flushesOnDeadline() throws Exception {
+        SensorBatch batch = new SensorBatch(4096, 50, 8192);
+        assertEquals(Long.MAX_VALUE, batch.getDeadline());
+        batch.append(row(0), 0, 13, 7, 100);
+        batch.append(row(1), 0, 13, 8, 120);
+        assertEquals(150, batch.getDeadline());
+        assertFalse(batch.isReady(149));
+        assertTrue(batch.isReady(150));
+        assertEquals(8, batch.getTimestamp());
+    }
+
+    @Test
+    public void dropsOldestRowsWhenFull() throws Exception {
+        SensorBatch batch = new SensorBatch(100, 1000000000L, 130);
+        for (int i = 0; i < 11; i++)
+            batch.append(row(i), 0, 13, i, 0);
+        assertTrue(batch.length() <= 130);
+        assertTrue(batch.getDropped() > 0);
+        assertEquals(batch.getDropped() * 13, batch.getDroppedBytes());
+        FrameBuffer taken = batch.take();
+        String s = new String(taken.data(), 0, taken.length());
+        assertTrue(s.startsWith(new String(row((int) batch.getDropped()))));
+        assertTrue(s.endsWith(new String(row(10))));
+        assertEquals((11 - batch.getDropped()) * 13, taken.length());
+    }
+
+    @Test
+    public void takeSwapsBuffers() throws Exception {
+        SensorBatch batch = new SensorBatch(13, 1000, 1024);
+        batch.append(row(0), 0, 13, 0, 0);
+        FrameBuffer first = batch.take();
+        batch.append(row(1), 0, 13, 0, 0);
+        assertEquals("0000,1.00000\n", new String(first.data(), 0, first.length()));
+        FrameBuffer second = batch.take();
+        assertEquals("0001,1.00000\n", new String(second.data(), 0, second.length()));
+    }
+
+}
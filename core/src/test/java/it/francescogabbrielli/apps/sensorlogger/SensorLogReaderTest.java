@@ -0,0 +1,104 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write a binary sensor log and read it back
+ */
+public class SensorLogReaderTest {
+
+    private static SensorLogHeader newHeader() {
+        return new SensorLogHeader()
+                .setStartTimestamp(123456789L)
+                .setFrameDuration(66666667L)
+                .setRotation(1, 0, 3)
+                .addColumn(1, 0, "Accelerometer X")
+                .addColumn(1, 1, "Accelerometer Y")
+                .addColumn(1, 2, "Accelerometer Z")
+                .addColumn(5, 0, "Light")
+                .addColumn(5, SensorLogHeader.NO_AXIS, "Light Skew");
+    }
+
+    private static byte[] write(SensorLogHeader header, int rows, int blockRows) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(header.toByteArray());
+        SensorLogWriter writer = new SensorLogWriter(header, blockRows);
+        for (int r = 0; r < rows; r++) {
+            writer.beginRow(r * 66666667L);
+            for (int c = 0; c < header.getColumnCount() - 1; c++)//last value missing on purpose
+                writer.put(r + c / 10f);
+            if (writer.endRow() || r == rows - 1) {
+                out.write(writer.buffer(), 0, writer.length());
+                writer.reset();
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void header_roundTrip() throws Exception {
+        SensorLogHeader header = newHeader();
+        SensorLogHeader read = SensorLogHeader.read(new ByteArrayInputStream(header.toByteArray()));
+        assertEquals(123456789L, read.getStartTimestamp());
+        assertEquals(66666667L, read.getFrameDuration());
+        assertArrayEquals(new int[]{1, 0, 3}, read.getRotation());
+        assertEquals(header.getColumnCount(), read.getColumnCount());
+        assertEquals(header.getRowSize(), read.getRowSize());
+        for (int c = 0; c < header.getColumnCount(); c++) {
+            assertEquals(header.getColumnName(c), read.getColumnName(c));
+            assertEquals(header.getSensorType(c), read.getSensorType(c));
+            assertEquals(header.getAxis(c), read.getAxis(c));
+        }
+    }
+
+    @Test
+    public void header_lengthInBlock() throws Exception {
+        SensorLogHeader header = newHeader();
+        byte[] log = write(header, 3, 8);
+        int length = header.toByteArray().length;
+        assertEquals(length, SensorLogHeader.length(log, 0, log.length));
+        assertEquals(0, SensorLogHeader.length(log, 0, length - 1));
+        assertEquals(0, SensorLogHeader.length(log, length, log.length - length));
+        assertEquals(0, SensorLogHeader.length("Frame Time,Accelerometer X\n".getBytes(), 0, 27));
+    }
+
+    @Test
+    public void rows_roundTrip() throws Exception {
+        SensorLogHeader header = newHeader();
+        byte[] log = write(header, 37, 8);
+        assertEquals(header.toByteArray().length + 37 * header.getRowSize(), log.length);
+        SensorLogReader reader = new SensorLogReader(new ByteArrayInputStream(log));
+        int r = 0;
+        while (reader.next()) {
+            assertEquals(r * 66666667L, reader.getTimestamp());
+            for (int c = 0; c < header.getColumnCount() - 1; c++)
+                assertEquals(r + c / 10f, reader.getValue(c), 0f);
+            assertTrue(Float.isNaN(reader.getValue(header.getColumnCount() - 1)));
+            r++;
+        }
+        assertEquals(37, r);
+        reader.close();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void wrongMagic_isRejected() throws Exception {
+        new SensorLogReader(new ByteArrayInputStream("Frame Time,Accelerometer X\n".getBytes()));
+    }
+
+    @Test
+    public void converter_writesCsv() throws Exception {
+        SensorLogHeader header = newHeader();
+        SensorLogReader reader = new SensorLogReader(new ByteArrayInputStream(write(header, 2, 16)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(2, SensorLogConverter.convert(reader, out, true));
+        assertEquals("Frame Time,Accelerometer X,Accelerometer Y,Accelerometer Z,Light,Light Skew\n"
+                + "0,0.00000,0.10000,0.20000,0.30000,0\n"
+                + "66,1.00000,1.10000,1.20000,1.30000,0\n", out.toString());
+    }
+
+}
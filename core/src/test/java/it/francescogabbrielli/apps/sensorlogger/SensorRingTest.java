@@ -0,0 +1,115 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the wraparound of a {@link SensorRing}, and that readers never see a reading being
+ * overwritten
+ */
+public class SensorRingTest {
+
+    private static float[] row(long k) {
+        return new float[] {k, k + 0.5f, -k};
+    }
+
+    @Test
+    public void empty() {
+        SensorRing ring = new SensorRing(4, 3);
+        float[] dst = new float[3];
+        assertEquals(SensorRing.NONE, ring.getHead());
+        assertEquals(SensorRing.NONE, ring.read(dst));
+        assertEquals(SensorRing.NONE, ring.read(0, dst));
+        assertEquals(0, ring.getLength());
+    }
+
+    @Test
+    public void wraparound() {
+        SensorRing ring = new SensorRing(4, 3);
+        float[] dst = new float[3];
+        for (int k = 0; k < 10; k++)
+            ring.write(row(k), 100 * k);
+        assertEquals(9, ring.getHead());
+        assertEquals(900, ring.read(dst));
+        assertArrayEquals(row(9), dst, 0);
+        //only the latest 4 readings are kept
+        for (int k = 0; k < 6; k++) {
+            assertEquals(SensorRing.NONE, ring.read(k, dst));
+            assertEquals(SensorRing.NONE, ring.getTimestamp(k));
+        }
+        for (int k = 6; k < 10; k++) {
+            assertEquals(100 * k, ring.read(k, dst));
+            assertArrayEquals(row(k), dst, 0);
+            assertEquals(100 * k, ring.getTimestamp(k));
+        }
+        assertEquals(SensorRing.NONE, ring.read(10, dst));
+    }
+
+    @Test
+    public void shortReadings() {
+        SensorRing ring = new SensorRing(4, 3);
+        float[] dst = new float[3];
+        ring.write(new float[] {1, 2, 3, 4, 5}, 10);//truncated to the stride
+        assertEquals(3, ring.getLength());
+        ring.write(new float[] {7}, 20);
+        assertEquals(1, ring.getLength());
+        assertEquals(20, ring.read(dst));
+        assertEquals(7, dst[0], 0);
+    }
+
+    @Test
+    public void writerLappingReaders() throws Exception {
+        final SensorRing ring = new SensorRing(4, 3);
+        final long writes = 2000000;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> torn = new AtomicReference<>();
+        Thread[] readers = new Thread[2];
+        final long[] seen = new long[readers.length];
+        for (int r = 0; r < readers.length; r++) {
+            final int id = r;
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    float[] dst = new float[3];
+                    while (!done.get() && torn.get() == null) {
+                        long head = ring.getHead();
+                        //the latest one, and one being overwritten right now
+                        check(ring.read(dst), dst);
+                        check(ring.read(head - ring.getCapacity() + 1, dst), dst);
+                        seen[id]++;
+                    }
+                }
+
+                private void check(long timestamp, float[] dst) {
+                    if (timestamp == SensorRing.NONE)
+                        return;
+                    float[] expected = row(timestamp);
+                    for (int i = 0; i < expected.length; i++)
+                        if (Float.compare(expected[i], dst[i]) != 0)
+                            torn.compareAndSet(null, "reading " + timestamp + ": value " + i + " = " + dst[i]);
+                }
+            });
+            readers[r].start();
+        }
+        //stay within the exact range of the floats
+        float[] src = new float[3];
+        for (long k = 0; k < writes && torn.get() == null; k++) {
+            long v = k % (1 << 20);
+            src[0] = v;
+            src[1] = v + 0.5f;
+            src[2] = -v;
+            ring.write(src, v);
+        }
+        done.set(true);
+        for (Thread t : readers)
+            t.join();
+        assertNull(torn.get());
+        for (long s : seen)
+            assertTrue(s > 0);
+    }
+
+}
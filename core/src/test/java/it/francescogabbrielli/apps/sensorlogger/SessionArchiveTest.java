@@ -0,0 +1,180 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Write sessions with {@link SessionArchive} and read them back with {@link SessionReader}
+ */
+public class SessionArchiveTest {
+
+    private final static long FRAME = 66666667L;
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("session", ".sls");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private static byte[] frame(int i) {
+        byte[] ret = new byte[100 + i * 7 % 50];
+        ret[0] = (byte) i;
+        ret[ret.length - 1] = (byte) (i >> 8);
+        return ret;
+    }
+
+    private static byte[] row(int i) {
+        return (i * 66 + ",0.1,0.2,0.3\n").getBytes();
+    }
+
+    /** As logged by the recorder: a sensor row, then the frame */
+    private void write(int frames, int checkpoint, boolean finish) throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        SessionArchive archive = new SessionArchive(FRAME, checkpoint);
+        archive.begin(out);
+        for (int i = 0; i < frames; i++) {
+            byte[] row = row(i), frame = frame(i);
+            archive.putData("sensors.csv", row, 0, row.length, i * FRAME);
+            archive.putFrame("frame" + i + ".jpg", frame, 0, frame.length, i * FRAME);
+        }
+        //or a crash: what is buffered since the last checkpoint is lost, and there is no index
+        if (finish)
+            archive.finish();
+        out.close();
+    }
+
+    private static byte[] bytes(ByteBuffer b) {
+        byte[] ret = new byte[b.remaining()];
+        b.get(ret);
+        return ret;
+    }
+
+    @Test
+    public void readsFramesAndSensors() throws Exception {
+        write(1000, 150, true);
+        SessionReader reader = new SessionReader(file);
+        assertFalse(reader.isRecovered());
+        assertEquals(1000, reader.getFrameCount());
+        assertEquals(1000, reader.getSensorCount());
+        assertEquals(FRAME, reader.getFrameDuration());
+        assertEquals("sensors.csv", reader.getDataName());
+        for (int i : new int[] {0, 1, 499, 999})
+            assertArrayEquals(frame(i), bytes(reader.frameAt(i)));
+        assertEquals(123 * FRAME, reader.getFrameTimestamp(123));
+
+        assertArrayEquals(frame(10), bytes(reader.frameNearest(10 * FRAME + FRAME / 3)));
+        assertArrayEquals(frame(11), bytes(reader.frameNearest(10 * FRAME + FRAME * 2 / 3)));
+        assertArrayEquals(frame(0), bytes(reader.frameNearest(-FRAME)));
+        assertArrayEquals(frame(999), bytes(reader.frameNearest(5000 * FRAME)));
+
+        List<ByteBuffer> rows = reader.sensorsBetween(20 * FRAME, 29 * FRAME);
+        assertEquals(10, rows.size());
+        for (int i = 0; i < 10; i++)
+            assertArrayEquals(row(20 + i), bytes(rows.get(i)));
+        assertTrue(reader.sensorsBetween(2000 * FRAME, 3000 * FRAME).isEmpty());
+        reader.close();
+    }
+
+    @Test
+    public void recoversTruncatedFiles() throws Exception {
+        write(1000, 150, false);
+        SessionReader reader = new SessionReader(file);
+        assertTrue(reader.isRecovered());
+        //up to the last checkpoint
+        assertEquals(900, reader.getFrameCount());
+        assertEquals(900, reader.getSensorCount());
+        assertArrayEquals(frame(899), bytes(reader.frameAt(899)));
+        assertArrayEquals(row(899), bytes(reader.sensorsBetween(899 * FRAME, 899 * FRAME).get(0)));
+        assertEquals("sensors.csv", reader.getDataName());
+        reader.close();
+
+        //the last checkpoint was not complete either
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.setLength(f.length() - 10);
+        f.close();
+        reader = new SessionReader(file);
+        assertEquals(750, reader.getFrameCount());
+        reader.close();
+    }
+
+    @Test
+    public void stopsAtCorruptedCheckpoints() throws Exception {
+        write(400, 100, true);
+        //corrupt a byte in the middle, and drop the index
+        long offset = file.length() / 2;
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.setLength(f.length() - SessionArchive.FOOTER);
+        f.seek(offset);
+        int b = f.read();
+        f.seek(offset);
+        f.write(b ^ 0xff);
+        f.close();
+        SessionReader reader = new SessionReader(file);
+        assertTrue(reader.isRecovered());
+        assertEquals(0, reader.getFrameCount() % 100);
+        assertTrue(reader.getFrameCount() < 400);
+        reader.close();
+    }
+
+    @Test
+    public void indexesRepeatedFrames() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        SessionArchive archive = new SessionArchive(FRAME, 4);
+        archive.begin(out);
+        for (int i = 0; i < 10; i++) {
+            byte[] frame = frame(i - i % 3);
+            if (i % 3 == 0)
+                archive.putFrame("frame" + i + ".jpg", frame, 0, frame.length, i * FRAME);
+            else
+                archive.putRepeat("frame" + i + ".jpg", "frame" + (i - i % 3) + ".jpg", frame, 0, frame.length, i * FRAME);
+        }
+        out.flush();
+        long truncated = file.length();
+        archive.finish();
+        out.close();
+        long size = file.length();
+
+        SessionReader reader = new SessionReader(file);
+        assertEquals(10, reader.getFrameCount());
+        for (int i = 0; i < 10; i++) {
+            assertArrayEquals(frame(i - i % 3), bytes(reader.frameAt(i)));
+            assertEquals(i * FRAME, reader.getFrameTimestamp(i));
+        }
+        reader.close();
+        //the repetitions are not stored again
+        assertTrue(size < 4 * (SessionArchive.RECORD + 150) + 6 * (SessionArchive.RECORD + 8) + 1024);
+
+        //recovered as well, up to the last checkpoint
+        RandomAccessFile f = new RandomAccessFile(file, "rw");
+        f.setLength(truncated);
+        f.close();
+        reader = new SessionReader(file);
+        assertTrue(reader.isRecovered());
+        assertEquals(8, reader.getFrameCount());
+        assertArrayEquals(frame(6), bytes(reader.frameAt(7)));
+        reader.close();
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void rejectsOtherFiles() throws Exception {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("Frame Time,Accelerometer X\n".getBytes());
+        out.close();
+        new SessionReader(file);
+    }
+}
@@ -0,0 +1,62 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the degradations and the JSON of {@link SessionReport}
+ */
+public class SessionReportTest {
+
+    private static SessionReport newReport(long captured, long duplicated, long dropped) {
+        Histogram encode = new Histogram("encode");
+        encode.record(5000000L);
+        return new SessionReport("2018_01_01__00_00_00")
+                .setDuration(100 * 66666667L, 66666667L)
+                .setFrames(captured, 100, duplicated, 0)
+                .addStage("encode", encode)
+                .addTarget("LogFile", 100, 2048000, 1000000000L, dropped, 12, 40960, 0)
+                .addSensor("Accelerometer \"LSM6DSL\"", 2000);
+    }
+
+    @Test
+    public void healthySession() throws Exception {
+        SessionReport report = newReport(98, 2, 0);
+        assertEquals(15, report.getTargetRate(), 0.001);
+        assertEquals(14.7, report.getAchievedRate(), 0.001);
+        assertFalse(report.isDegraded());
+        String json = report.toJson();
+        assertTrue(json, json.contains("\"degraded\": false"));
+        assertTrue(json, json.contains("\"reasons\": []"));
+        assertTrue(json, json.contains("\"encode\": {\"count\": 1, \"mean\": 5.000"));
+        assertTrue(json, json.contains("\"throughput_kb_s\": 2000.000"));
+        assertTrue(json, json.contains("\"Accelerometer \\\"LSM6DSL\\\"\": {\"events\": 2000, \"rate_hz\": 300.000}"));
+    }
+
+    @Test
+    public void degradedSession() throws Exception {
+        SessionReport report = newReport(80, 20, 3);
+        assertEquals(3, report.getDegradations().size());
+        String json = report.toJson();
+        assertTrue(json, json.contains("\"degraded\": true"));
+        assertTrue(json, json.contains("\"3 frames dropped by LogFile\""));
+        assertTrue(json, json.contains("\"20 of 100 frames duplicated\""));
+    }
+
+    @Test
+    public void undrainedSession() throws Exception {
+        SessionReport report = newReport(98, 2, 0).addTarget("LogFtp", 60, 1024000, 1000000000L, 0, 40, 20480, 38);
+        assertEquals(1, report.getDegradations().size());
+        String json = report.toJson();
+        assertTrue(json, json.contains("\"38 operations not drained by LogFtp\""));
+        assertTrue(json, json.contains("\"max_queue_bytes\": 20480, \"pending\": 38}"));
+    }
+
+    @Test
+    public void emptySession() throws Exception {
+        String json = new SessionReport("empty").toJson();
+        assertTrue(json, json.contains("\"targets\": {}"));
+        assertTrue(json, json.contains("\"achieved_fps\": 0.000"));
+    }
+}
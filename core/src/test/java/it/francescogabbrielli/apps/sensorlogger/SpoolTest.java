@@ -0,0 +1,133 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the order, the folders and the cursor of a {@link Spool}
+ */
+public class SpoolTest {
+
+    private File root;
+    private Spool spool;
+
+    @Before
+    public void setUp() throws Exception {
+        root = File.createTempFile("spool", "");
+        root.delete();
+        spool = new Spool(root);
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File f) {
+        File[] files = f.listFiles();
+        if (files != null)
+            for (File c : files)
+                delete(c);
+        f.delete();
+    }
+
+    private File file(String folder, String name, int length) throws Exception {
+        File dir = new File(root, folder);
+        dir.mkdirs();
+        File ret = new File(dir, name);
+        FileOutputStream out = new FileOutputStream(ret);
+        out.write(new byte[length]);
+        out.close();
+        return ret;
+    }
+
+    @Test
+    public void oldestFirst() throws Exception {
+        assertNull(spool.next());
+        file("2018-02", "0001.jpg", 10);
+        file("2018-01", "0002.jpg", 10);
+        File first = file("2018-01", "0001.jpg", 10);
+        file("2018-01", "0000.jpg" + Spool.PARTIAL, 10);
+        assertEquals(first, spool.next());
+        first.delete();
+        assertEquals(new File(new File(root, "2018-01"), "0002.jpg"), spool.next());
+    }
+
+    @Test
+    public void recoversPartials() throws Exception {
+        file("2018-01", "data.csv" + Spool.PARTIAL, 10);
+        assertNull(spool.next());
+        assertEquals(1, spool.recoverPartials());
+        assertEquals(new File(new File(root, "2018-01"), "data.csv"), spool.next());
+    }
+
+    @Test
+    public void deletesOnlyOlderEmptyFolders() throws Exception {
+        File old = new File(root, "2018-01"), current = new File(root, "2018-02"), next = new File(root, "2018-03");
+        old.mkdir();
+        spool.setSession("2018-02");
+        current.mkdir();
+        next.mkdir();
+        spool.setSession("2018-01");//an older recording still being closed
+        assertNull(spool.next());
+        assertFalse(old.exists());
+        assertTrue(current.exists());
+        assertTrue(next.exists());
+    }
+
+    @Test
+    public void deletesEmptyFoldersWithNoSession() throws Exception {
+        new File(root, "2018-01").mkdir();
+        new File(root, "2018-02").mkdir();
+        assertNull(spool.next());
+        assertEquals(0, root.list().length);
+    }
+
+    @Test
+    public void keepsFoldersBeingWritten() throws Exception {
+        spool.setSession("2018-02");
+        file("2018-01", "data.csv" + Spool.PARTIAL, 10);
+        assertNull(spool.next());
+        assertTrue(new File(root, "2018-01").exists());
+    }
+
+    @Test
+    public void cursor() throws Exception {
+        File file = file("2018-01", "data.csv", 100), other = file("2018-01", "0001.jpg", 100);
+        assertEquals(-1, spool.getOffset(file));
+        spool.saveCursor(file, 42);
+        assertEquals(42, spool.getOffset(file));
+        assertEquals(-1, spool.getOffset(other));
+        assertFalse(new File(root, Spool.CURSOR + Spool.PARTIAL).exists());
+        assertEquals(42, new Spool(root).getOffset(file));
+        spool.saveCursor(null, 0);
+        assertEquals(-1, spool.getOffset(file));
+        assertFalse(new File(root, Spool.CURSOR).exists());
+    }
+
+    @Test
+    public void ignoresACorruptCursor() throws Exception {
+        File file = file("2018-01", "data.csv", 100);
+        FileOutputStream out = new FileOutputStream(new File(root, Spool.CURSOR));
+        out.write("file=2018-01/data.csv\noffset=x\n".getBytes("ISO-8859-1"));
+        out.close();
+        assertEquals(-1, spool.getOffset(file));
+    }
+
+    @Test
+    public void resume() throws Exception {
+        File file = file("2018-01", "data.csv", 100);
+        assertEquals(60, Spool.resume(file, 40, 60));
+        assertEquals(40, Spool.resume(file, 40, -1));
+        assertEquals(100, Spool.resume(file, 40, 100));
+        assertEquals(0, Spool.resume(file, 40, 150));
+        assertEquals(0, Spool.resume(file, 150, -1));
+    }
+
+}
@@ -0,0 +1,112 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the layout of the entries written by {@link TarArchive}
+ */
+public class TarArchiveTest {
+
+    private static String field(byte[] tar, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && tar[end] != 0)
+            end++;
+        return new String(tar, offset, end - offset).trim();
+    }
+
+    @Test
+    public void writesHeadersContentAndPadding() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarArchive tar = new TarArchive();
+        tar.begin(out);
+        assertTrue(tar.isOpen());
+        byte[] frame = new byte[600];
+        frame[0] = 1;
+        frame[599] = 2;
+        tar.putEntry("frame0000001.jpg", frame, 0, frame.length, 1500000000000L);
+        byte[] rows = "1,2,3\n".getBytes();
+        tar.putEntry("sensors.csv", rows, 0, rows.length, 1500000000000L);
+        tar.finish();
+        assertFalse(tar.isOpen());
+
+        byte[] b = out.toByteArray();
+        //header + 2 blocks of content, header + 1 block, 2 end blocks
+        assertEquals(7 * TarArchive.BLOCK, b.length);
+        assertEquals("frame0000001.jpg", field(b, 0, 100));
+        assertEquals(600, Long.parseLong(field(b, 124, 12), 8));
+        assertEquals(1500000000L, Long.parseLong(field(b, 136, 12), 8));
+        assertEquals("ustar", field(b, 257, 6));
+        assertEquals(1, b[512]);
+        assertEquals(2, b[512 + 599]);
+        assertEquals(0, b[512 + 600]);
+
+        //checksum of the header, with the checksum field as spaces
+        long sum = 0;
+        for (int i = 0; i < TarArchive.BLOCK; i++)
+            sum += i >= 148 && i < 156 ? ' ' : b[i] & 0xff;
+        assertEquals(sum, Long.parseLong(field(b, 148, 8), 8));
+
+        assertEquals("sensors.csv", field(b, 3 * 512, 100));
+        assertEquals("1,2,3", new String(b, 4 * 512, 5));
+        for (int i = 5 * 512; i < b.length; i++)
+            assertEquals(0, b[i]);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsLongNames() throws Exception {
+        TarArchive tar = new TarArchive();
+        tar.begin(new ByteArrayOutputStream());
+        tar.putEntry(new String(new char[101]).replace('\0', 'a'), new byte[1], 0, 1, 0);
+    }
+
+    @Test
+    public void linksRepeatedFrames() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarArchive tar = new TarArchive();
+        tar.begin(out);
+        byte[] frame = new byte[600];
+        tar.putFrame("frame0000001.jpg", frame, 0, frame.length, 0);
+        tar.putRepeat("frame0000002.jpg", "frame0000001.jpg", frame, 0, frame.length, 1);
+        tar.putRepeat("frame.jpg", "frame.jpg", frame, 0, frame.length, 2);
+        tar.finish();
+
+        byte[] b = out.toByteArray();
+        //header + 2 blocks of content, link header, 2 end blocks
+        assertEquals(6 * TarArchive.BLOCK, b.length);
+        assertEquals("frame0000002.jpg", field(b, 3 * 512, 100));
+        assertEquals(0, Long.parseLong(field(b, 3 * 512 + 124, 12), 8));
+        assertEquals('1', b[3 * 512 + 156]);
+        assertEquals("frame0000001.jpg", field(b, 3 * 512 + 157, 100));
+    }
+
+    @Test
+    public void startsAgainAfterAbort() throws Exception {
+        TarArchive tar = new TarArchive();
+        tar.begin(new ByteArrayOutputStream());
+        tar.putEntry("frame0000001.jpg", new byte[10], 0, 10, 0);
+        tar.abort();
+        assertFalse(tar.isOpen());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tar.begin(out);
+        tar.putEntry("frame0000002.jpg", new byte[10], 0, 10, 0);
+        tar.finish();
+        assertEquals("frame0000002.jpg", field(out.toByteArray(), 0, 100));
+        assertEquals(4 * TarArchive.BLOCK, out.size());
+    }
+
+    @Test
+    public void ignoresInterleavedData() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TarArchive tar = new TarArchive();
+        tar.begin(out);
+        assertFalse(tar.isInterleaved());
+        assertFalse(tar.putData("sensors.csv", new byte[10], 0, 10, 0));
+        tar.finish();
+        assertEquals(2 * TarArchive.BLOCK, out.size());
+    }
+}
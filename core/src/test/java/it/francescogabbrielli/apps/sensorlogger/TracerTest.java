@@ -0,0 +1,102 @@
+package it.francescogabbrielli.apps.sensorlogger;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+/**
+ * Check the ring and the Chrome trace export of {@link Tracer}
+ */
+public class TracerTest {
+
+    private static int count(String text, String s) {
+        int ret = 0;
+        for (int i = text.indexOf(s); i >= 0; i = text.indexOf(s, i + 1))
+            ret++;
+        return ret;
+    }
+
+    private static String export(Tracer tracer) throws Exception {
+        StringWriter out = new StringWriter();
+        tracer.write(out, "Test");
+        return out.toString();
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Tracer tracer = new Tracer();
+        assertEquals(0, tracer.begin());
+        tracer.end("nothing", tracer.begin());
+        assertEquals(0, tracer.getCount());
+        tracer.start(16);
+        tracer.stop();
+        tracer.end("nothing", System.nanoTime());
+        assertEquals(0, tracer.getCount());
+        assertEquals(0, count(export(tracer), "\"ph\":\"X\""));
+    }
+
+    @Test
+    public void keepsTheLatestEvents() throws Exception {
+        Tracer tracer = new Tracer();
+        tracer.start(10);//16
+        for (int i = 0; i < 100; i++)
+            tracer.end("frame", tracer.begin(), i);
+        tracer.stop();
+        assertEquals(100, tracer.getCount());
+        String json = export(tracer);
+        assertEquals(16, count(json, "\"ph\":\"X\""));
+        assertFalse(json.contains("\"n\":83}"));
+        assertTrue(json.indexOf("\"n\":84}") < json.indexOf("\"n\":99}"));
+        assertTrue(json, json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n"
+                + "{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"tid\":0,\"args\":{\"name\":\"Test\"}},\n"
+                + "{\"name\":\"frame\",\"ph\":\"X\",\"pid\":1,\"tid\":" + Thread.currentThread().getId() + ",\"ts\":"));
+        assertTrue(json.endsWith("\n]}\n"));
+    }
+
+    @Test
+    public void namesTheThreads() throws Exception {
+        final Tracer tracer = new Tracer();
+        tracer.start(1024);
+        Thread[] threads = new Thread[3];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread("Log\"" + t + "\" Thread") {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++)
+                        tracer.end("send", tracer.begin());
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        tracer.stop();
+        String json = export(tracer);
+        assertEquals(300, count(json, "\"ph\":\"X\""));
+        for (Thread t : threads)
+            assertTrue(json.contains("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + t.getId()
+                    + ",\"args\":{\"name\":\"" + t.getName().replace("\"", "\\\"") + "\"}}"));
+    }
+
+    @Test
+    public void exportsAPreviousTrace() throws Exception {
+        Tracer tracer = new Tracer();
+        tracer.start(16);
+        tracer.end("old", tracer.begin());
+        Tracer.Trace old = tracer.getTrace();
+        tracer.start(16);
+        tracer.end("new", tracer.begin());
+        tracer.stop(old);
+        assertTrue(tracer.isEnabled());
+        StringWriter out = new StringWriter();
+        Tracer.write(out, "Test", old);
+        assertEquals(1, count(out.toString(), "\"ph\":\"X\""));
+        assertTrue(out.toString().contains("\"name\":\"old\""));
+        assertFalse(export(tracer).contains("\"name\":\"old\""));
+        tracer.stop(tracer.getTrace());
+        assertFalse(tracer.isEnabled());
+    }
+
+}
@@ -188,6 +188,12 @@ public abstract class CameraBridgeViewBase extends SurfaceView implements Surfac
          * This method returns single channel gray scale Mat with frame
          */
         public Mat gray();
+
+        /**
+         * This method returns the raw single channel NV21 (YUV420sp) Mat with frame:
+         * the Y plane followed by the interleaved V/U plane (height * 3 / 2 rows)
+         */
+        public Mat yuv();
     };
 
     public void surfaceChanged(SurfaceHolder arg0, int arg1, int arg2, int arg3) {
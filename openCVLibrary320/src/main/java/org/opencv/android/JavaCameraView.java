@@ -307,6 +307,11 @@ public class JavaCameraView extends CameraBridgeViewBase implements PreviewCallb
             return mRgba;
         }
 
+        @Override
+        public Mat yuv() {
+            return mYuvFrameData;
+        }
+
         public JavaCameraFrame(Mat Yuv420sp, int width, int height) {
             super();
             mWidth = width;
@@ -10,7 +10,7 @@ DATA_LEN = 100
 currentIndex = 0
 
 # Create stream client
-sc = StreamClient("192.168.1.2", 8080)
+sc = StreamClient("192.168.1.2", 8080)  # or BinaryStreamClient, faster (binary protocol)
 # Stream Buffer of DATA_LEN readings
 sb = StreamBuffer(DATA_LEN)
 # Display data/image
@@ -1,4 +1,6 @@
 import httplib
+import socket
+import struct
 from base64 import b64encode
 from threading import Lock,Thread
 import re
@@ -100,6 +102,87 @@ class StreamClient:
             restart = max(0, start, restart-StreamClient.CHUNK_SIZE)
 
 
+class BinaryStreamClient:
+    """
+    A streaming client using the binary protocol of the SensorLogger app (GET /binary):
+    each part is a fixed big-endian header (int32 type, int32 sequence, int64 timestamp,
+    int32 length) followed by the payload, so there is no boundary to search nor text to parse.
+    A repeated frame (TYPE_REPEAT) has no payload: the previous image is passed again.
+    The callback is the same of StreamClient
+    """
+
+    HEADER = struct.Struct(">iiqi")
+
+    TYPE_END = 0
+    TYPE_REPEAT = 4
+    TYPE_TEXT_HEADERS = 16
+    TYPE_DATA_CSV = 17
+    TYPE_DATA_BINARY = 18
+
+    def __init__(self, host, port=80):
+        self.host = host
+        self.port = port
+        self.sock = None
+        self.callback = None
+        self.last_seq = {}
+        self.last_image = None
+        self.skipped = 0
+
+    def get(self, callback, get="/binary", user=None, pw=""):
+        """
+        Start the get request of the stream
+        :param get: the url to get
+        :param user: the user (for basic authentication)
+        :param pw: the password
+        """
+        request = "GET %s HTTP/1.0\r\nAccept: application/x-sensorlogger-stream\r\n" % get
+        if user is not None:
+            request += "Authorization: Basic %s\r\n" % b64encode(b"%s:%s" % (user, pw)).decode("ascii")
+        self.sock = socket.create_connection((self.host, self.port))
+        self.sock.sendall(request + "\r\n")
+        self.file = self.sock.makefile("rb")
+        while self.file.readline() not in ("\r\n", "\n", ""):
+            pass
+        self.callback = callback
+        Thread(target=self.read).start()
+
+    def read(self):
+        """
+        The reading thread
+        """
+        print ("START")
+        header = self.file.read(BinaryStreamClient.HEADER.size)
+        while len(header) == BinaryStreamClient.HEADER.size:
+            type, seq, timestamp, length = BinaryStreamClient.HEADER.unpack(header)
+            if type == BinaryStreamClient.TYPE_END:
+                break
+            data = self.file.read(length)
+            if type == BinaryStreamClient.TYPE_REPEAT:
+                data = self.last_image
+            elif type < BinaryStreamClient.TYPE_TEXT_HEADERS:
+                self.last_image = data
+            if type != BinaryStreamClient.TYPE_TEXT_HEADERS:
+                key = "image" if type < BinaryStreamClient.TYPE_TEXT_HEADERS else type
+                last = self.last_seq.get(key)
+                if last is not None and seq > last + 1:
+                    self.skipped += seq - last - 1
+                self.last_seq[key] = seq
+            if type < BinaryStreamClient.TYPE_TEXT_HEADERS:
+                content_type = "image"
+            elif type == BinaryStreamClient.TYPE_DATA_BINARY:
+                content_type = "application"
+            else:
+                content_type = "text"
+            try:
+                self.callback(str(timestamp), content_type, data)
+            except Exception as e:
+                print e
+                traceback.print_exc()
+            header = self.file.read(BinaryStreamClient.HEADER.size)
+        print ("END (%d frames skipped)" % self.skipped)
+        self.sock.close()
+
+
 class Buffer:
 
     def __init__(self, image, data):